@@ -0,0 +1,73 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Logging a record through a logger, with the caller of the record found in
+ * each of the {@link FluentdHandler.CallerInfo} modes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CallerBenchmark {
+
+    @Param({"OFF", "INFER", "FAST"})
+    public FluentdHandler.CallerInfo callerInfo;
+
+    private Logger logger;
+    private Blackhole bh;
+
+    @Setup
+    public void setUp(Blackhole bh) {
+
+        this.bh = bh;
+        CallerResolver callers = callerInfo == FluentdHandler.CallerInfo.OFF ? null : new CallerResolver(callerInfo);
+
+        logger = Logger.getLogger("caller-benchmark-" + callerInfo);
+        logger.setUseParentHandlers(false);
+        logger.addHandler(new Handler() {
+            @Override
+            public void publish(LogRecord r) {
+                if (callers != null) {
+                    callers.resolve(r);
+                    CallerBenchmark.this.bh.consume(r.getSourceClassName());
+                    CallerBenchmark.this.bh.consume(r.getSourceMethodName());
+                }
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+
+    }
+
+    @Benchmark
+    public void log() {
+        logger.info("message");
+    }
+
+}
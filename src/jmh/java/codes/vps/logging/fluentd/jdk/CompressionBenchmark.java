@@ -0,0 +1,86 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.PackBuffer;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+/**
+ * Compression of a chunk of encoded records, as it's done by the fluency flusher thread
+ * when gzip compression is enabled. The chunk is about as big as what fluency flushes
+ * by default. The compression ratio is printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+
+    private final static int CHUNK_SIZE = 1024 * 1024;
+
+    @Param({"params", "thrown"})
+    public String record;
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private CompressingIngester ingester;
+    private ByteBuffer chunk;
+    private int compressed;
+
+    @Setup
+    public void setUp() throws Exception {
+
+        RecordEncoder encoder = new RecordEncoder(FluentdHandler.parseFormat(FluentdHandler.DEFAULT_FORMAT));
+        LogRecord lr = ExtractBenchmark.SampleRecords.make(record);
+
+        // entries of a PackedForward chunk: [time, record]
+        PackBuffer out = new PackBuffer(CHUNK_SIZE + 65536);
+        MessagePacker packer = MessagePack.newDefaultPacker(out);
+        long time = lr.getMillis() / 1000;
+        while (out.size() < CHUNK_SIZE) {
+            RecordEncoder.Encoded e = encoder.encode(lr);
+            try {
+                packer.packArrayHeader(2).packLong(time++);
+                packer.flush();
+                out.write(e.array(), 0, e.length());
+            } finally {
+                e.release();
+            }
+        }
+        chunk = ByteBuffer.wrap(out.array(), 0, out.size());
+
+        // the sender is not used for compressing
+        ingester = new CompressingIngester(null, false, level);
+
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.printf("%n%s, level %d: %d bytes compressed to %d, ratio %.2f%n",
+                record, level, chunk.remaining(), compressed, (double) chunk.remaining() / compressed);
+    }
+
+    @Benchmark
+    public int compress() {
+        return compressed = ingester.compress(chunk);
+    }
+
+}
@@ -0,0 +1,100 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Extraction of {@link FluentdHandler#DEFAULT_FORMAT} fields, separately and
+ * encoded into MessagePack, as the handler does it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExtractBenchmark {
+
+    @Param({"plain", "params", "thrown"})
+    public String record;
+
+    private List<FieldExtractor> extractors;
+    private RecordEncoder encoder;
+    private LogRecord lr;
+
+    @Setup
+    public void setUp() {
+
+        extractors = FluentdHandler.parseFormat(FluentdHandler.DEFAULT_FORMAT);
+        encoder = new RecordEncoder(extractors);
+        lr = SampleRecords.make(record);
+
+    }
+
+    @Benchmark
+    public void extract(Blackhole bh) {
+        for (FieldExtractor fe : extractors) {
+            bh.consume(fe.extract(lr));
+        }
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        RecordEncoder.Encoded encoded = encoder.encode(lr);
+        try {
+            return encoded.length();
+        } finally {
+            encoded.release();
+        }
+    }
+
+    /**
+     * Log records used by the benchmarks.
+     */
+    static class SampleRecords {
+
+        static LogRecord make(String kind) {
+
+            LogRecord lr;
+            switch (kind) {
+                case "plain":
+                    lr = new LogRecord(Level.INFO, "Request processed");
+                    break;
+                case "params":
+                    lr = new LogRecord(Level.INFO, "Request {0} processed in {1} ms");
+                    lr.setParameters(new Object[]{"/api/v1/items", 42});
+                    break;
+                case "thrown":
+                    lr = new LogRecord(Level.SEVERE, "Request failed");
+                    lr.setThrown(ThrowableBenchmark.chain(3));
+                    break;
+                default:
+                    throw new IllegalArgumentException(kind);
+            }
+
+            lr.setLoggerName("com.example.service.RequestHandler");
+            lr.setSourceClassName("com.example.service.RequestHandler");
+            lr.setSourceMethodName("handle");
+            return lr;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,55 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.U;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ListResourceBundle;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatMessageBenchmark {
+
+    @Param({"plain", "params", "bundle"})
+    public String record;
+
+    private LogRecord lr;
+
+    @Setup
+    public void setUp() {
+
+        lr = ExtractBenchmark.SampleRecords.make(record.equals("plain") ? "plain" : "params");
+        if (record.equals("bundle")) {
+            lr.setMessage("processed");
+            lr.setResourceBundle(new ListResourceBundle() {
+                @Override
+                protected Object[][] getContents() {
+                    return new Object[][]{{"processed", "Request {0} processed in {1,number,integer} ms"}};
+                }
+            });
+        }
+
+    }
+
+    @Benchmark
+    public String formatMessage() {
+        return U.formatMessage(lr);
+    }
+
+}
@@ -0,0 +1,52 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+/**
+ * Encoding of the record parameters, joined into a string, and as a MessagePack array.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParamsBenchmark {
+
+    @Param({"${params}", "${params,array}"})
+    public String params;
+
+    private RecordEncoder encoder;
+    private LogRecord lr;
+
+    @Setup
+    public void setUp() {
+        encoder = new RecordEncoder(FluentdHandler.parseFormat("params\"" + params + "\""));
+        lr = ExtractBenchmark.SampleRecords.make("params");
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        RecordEncoder.Encoded encoded = encoder.encode(lr);
+        try {
+            return encoded.length();
+        } finally {
+            encoded.release();
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseFormatBenchmark {
+
+    @Param({
+            FluentdHandler.DEFAULT_FORMAT,
+            "logger\"${logger}\";level\"${level}\";$timestamp\"${millis}\"n;date\"${millis@UTC,yyyy-MM-dd'T'HH:mm:ss.SSSXXX}\";" +
+                    "message\"${l10n}\";host\"${hostname}\";path\"$[PATH]\";stack\"${trace,50,8192}\""
+    })
+    public String format;
+
+    @Benchmark
+    public List<FieldExtractor> parseFormat() {
+        return FluentdHandler.parseFormat(format);
+    }
+
+}
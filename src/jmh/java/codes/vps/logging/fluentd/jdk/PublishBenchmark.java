@@ -0,0 +1,78 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+/**
+ * End-to-end publishing, through fluency, to an in-process forward sink. The latencies from the
+ * event time to the time the sink received the event, and the number of bytes the sink received,
+ * are printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublishBenchmark {
+
+    @Param({"plain", "params", "thrown"})
+    public String record;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    @Param({"NONE", "GZIP"})
+    public FluentdHandler.Compression compression;
+
+    private ForwardServer server;
+    private FluentdHandler handler;
+    private LogRecord lr;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        server = new ForwardServer();
+        handler = new FluentdHandler(new FluentdHandler.Builder()
+                .setPort(String.valueOf(server.getPort()))
+                .setAsync(async)
+                .setCompression(compression));
+        lr = ExtractBenchmark.SampleRecords.make(record);
+
+    }
+
+    @TearDown(Level.Iteration)
+    public void flush() {
+        handler.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        handler.close();
+        server.close();
+        ForwardServer.Latencies l = server.getLatencies();
+        System.out.printf("%n%s, async %s, %s: %d bytes received for %d events, latency p50=%dus p99=%dus max=%dus%n",
+                record, async, compression, server.getBytesReceived(), server.getEvents(),
+                l.percentile(50), l.percentile(99), l.percentile(100));
+    }
+
+    @Benchmark
+    public void publish() {
+        handler.publish(lr);
+    }
+
+}
@@ -0,0 +1,91 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+/**
+ * Concurrent publishing through one, or through multiple fluency instances. The number of
+ * publishing threads is set with {@code -t}, running this with increasing thread counts
+ * (e.g. {@code -Djmh.args="StripesBenchmark -t 1"}, then {@code -t 2}, {@code -t 4}, and so on)
+ * shows how the throughput scales. In asynchronous mode, the records are emitted by the handler
+ * thread, so this shows what striping does to the throughput of the handler thread alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class StripesBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int stripes;
+
+    @Param({"THREAD", "TAG"})
+    public FluentdHandler.StripeBy stripeBy;
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    private ForwardServer server;
+    private FluentdHandler handler;
+
+    @State(Scope.Thread)
+    public static class PerThread {
+
+        LogRecord lr;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            lr = ExtractBenchmark.SampleRecords.make("params");
+            // different tags, so tag striping has something to distribute
+            lr.setLoggerName("bench.thread" + Thread.currentThread().getId());
+        }
+
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        server = new ForwardServer();
+        handler = new FluentdHandler(new FluentdHandler.Builder()
+                .setPort(String.valueOf(server.getPort()))
+                .setStripes(stripes)
+                .setStripeBy(stripeBy)
+                .setAsync(async));
+
+    }
+
+    @TearDown(Level.Iteration)
+    public void flush() {
+        handler.flush();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        handler.close();
+        server.close();
+    }
+
+    @Benchmark
+    public void publish(PerThread t) {
+        handler.publish(t.lr);
+    }
+
+}
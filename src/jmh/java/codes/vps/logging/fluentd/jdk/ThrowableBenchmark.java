@@ -0,0 +1,96 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.U;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stack trace rendering of cause chains of various depth, every throwable
+ * in the chain has a deep stack. The {@code pack*} benchmarks compare
+ * packing a rendered trace with streaming it into the packer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThrowableBenchmark {
+
+    @Param({"1", "5", "20"})
+    public int depth;
+
+    private Throwable thrown;
+    private TraceRenderer cached;
+    private TraceRenderer uncached;
+    private MessageBufferPacker packer;
+
+    @Setup
+    public void setUp() {
+        thrown = chain(depth);
+        cached = new TraceRenderer(0, 0, TraceRenderer.DEFAULT_CACHE_SIZE);
+        uncached = new TraceRenderer(0, 0, 0);
+        packer = MessagePack.newDefaultBufferPacker();
+    }
+
+    @Benchmark
+    public String throwableToString() {
+        return U.throwableToString(thrown);
+    }
+
+    @Benchmark
+    public String cachedTrace() {
+        return cached.render(thrown);
+    }
+
+    @Benchmark
+    public int packRendered() throws IOException {
+        packer.clear();
+        packer.packString(uncached.render(thrown));
+        return packer.getBufferSize();
+    }
+
+    @Benchmark
+    public int packStreamed() throws IOException {
+        packer.clear();
+        uncached.writeTo(packer, thrown);
+        return packer.getBufferSize();
+    }
+
+    @Benchmark
+    public int packCached() throws IOException {
+        packer.clear();
+        cached.writeTo(packer, thrown);
+        return packer.getBufferSize();
+    }
+
+    static Throwable chain(int depth) {
+        return recurse(depth, 30);
+    }
+
+    private static Throwable recurse(int depth, int frames) {
+
+        if (frames > 0) {
+            return recurse(depth, frames - 1);
+        }
+
+        Throwable cause = depth > 1 ? chain(depth - 1) : null;
+        return new IllegalStateException("failure at depth " + depth, cause);
+
+    }
+
+}
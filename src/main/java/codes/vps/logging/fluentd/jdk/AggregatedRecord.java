@@ -0,0 +1,71 @@
+package codes.vps.logging.fluentd.jdk;
+
+import java.util.logging.LogRecord;
+
+/**
+ * Record that stands for a number of repeated records, see {@link Aggregator}.
+ * It is a copy of the first of the repeated records, and additionally carries the
+ * number of the records, and the timestamps of the first and the last one of them.
+ */
+class AggregatedRecord extends LogRecord {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long count;
+    private final long firstNanos;
+    private final long lastNanos;
+
+    AggregatedRecord(LogRecord r, long count, long firstNanos, long lastNanos) {
+
+        super(r.getLevel(), r.getMessage());
+
+        setLoggerName(r.getLoggerName());
+        setParameters(r.getParameters());
+        setThrown(r.getThrown());
+        setResourceBundle(r.getResourceBundle());
+        setResourceBundleName(r.getResourceBundleName());
+        setSequenceNumber(r.getSequenceNumber());
+        setSourceClassName(r.getSourceClassName());
+        setSourceMethodName(r.getSourceMethodName());
+        Records.setThreadId(this, Records.getThreadId(r));
+        Records.setInstant(this, Records.getInstant(r));
+
+        this.count = count;
+        this.firstNanos = firstNanos;
+        this.lastNanos = lastNanos;
+
+    }
+
+    /**
+     * Returns number of the records this record stands for.
+     * @return number of records
+     */
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns timestamp of the first of the records, in nanoseconds since epoch.
+     * @return first timestamp
+     */
+    long getFirstNanos() {
+        return firstNanos;
+    }
+
+    /**
+     * Returns timestamp of the last of the records, in nanoseconds since epoch.
+     * @return last timestamp
+     */
+    long getLastNanos() {
+        return lastNanos;
+    }
+
+    long getFirstMillis() {
+        return Math.floorDiv(firstNanos, 1000000L);
+    }
+
+    long getLastMillis() {
+        return Math.floorDiv(lastNanos, 1000000L);
+    }
+
+}
@@ -0,0 +1,228 @@
+package codes.vps.logging.fluentd.jdk;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Collapses repeated records. Records are the same if they come from the same logger,
+ * have the same level, the same message (as returned by {@link LogRecord#getMessage()},
+ * i.e. before it is localized or formatted), and the same trace of the throwable, if any (see
+ * {@link TraceRenderer#sameTrace(Throwable, Throwable)}). The first record goes through right away,
+ * and opens a window; the same records that come within the window are held back, and when the window
+ * closes, they are published as one {@link AggregatedRecord}. Checking a record is a map lookup,
+ * nothing is formatted; the entire traces are only compared when there is a window for
+ * a throwable of the same class, with the same message and the same top frames.
+ */
+class Aggregator {
+
+    /**
+     * Maximum number of open windows, records that would need more windows than that
+     * are not aggregated.
+     */
+    static final int MAX_WINDOWS = 4096;
+
+    /**
+     * Names of the fields that aggregated records are published with.
+     */
+    static final String COUNT = "count";
+    static final String FIRST = "first";
+    static final String LAST = "last";
+
+    private final long windowNanos;
+    private final LongSupplier clock;
+    private final Consumer<LogRecord> sink;
+    private final Consumer<LogRecord> resolveCaller;
+    private final ConcurrentHashMap<Key, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * Creates new aggregator.
+     * @param windowNanos length of the aggregation window, in nanoseconds
+     * @param clock nanosecond clock
+     * @param sink receives aggregated records
+     */
+    Aggregator(long windowNanos, LongSupplier clock, Consumer<LogRecord> sink) {
+        this(windowNanos, clock, sink, LogRecord::getSourceClassName);
+    }
+
+    /**
+     * Creates new aggregator.
+     * @param windowNanos length of the aggregation window, in nanoseconds
+     * @param clock nanosecond clock
+     * @param sink receives aggregated records
+     * @param resolveCaller makes caller information of the records that are held back available,
+     * it's invoked on the thread that logged the record
+     */
+    Aggregator(long windowNanos, LongSupplier clock, Consumer<LogRecord> sink, Consumer<LogRecord> resolveCaller) {
+        if (windowNanos <= 0) {
+            throw new IllegalArgumentException("Aggregation window must be positive");
+        }
+        this.windowNanos = windowNanos;
+        this.clock = clock;
+        this.sink = sink;
+        this.resolveCaller = resolveCaller;
+    }
+
+    /**
+     * Checks the record against the open windows.
+     * @param r log record
+     * @return {@code true} if the record needs to be published, {@code false} if
+     * it was held back to be aggregated
+     */
+    boolean offer(LogRecord r) {
+
+        Key key = new Key(r);
+        long now = clock.getAsLong();
+
+        while (true) {
+
+            Window w = windows.get(key);
+            if (w == null) {
+                if (windows.size() >= MAX_WINDOWS) {
+                    return true;
+                }
+                if (windows.putIfAbsent(key, new Window(now + windowNanos, resolveCaller)) == null) {
+                    return true;
+                }
+                continue;
+            }
+
+            if (w.add(r, now)) {
+                return false;
+            }
+
+            // the window is over, this record opens the next one
+            close(key, w);
+
+        }
+
+    }
+
+    /**
+     * Publishes aggregated records of the windows that are over.
+     * @param all {@code true} to close all windows, regardless of whether they are over
+     */
+    void flush(boolean all) {
+
+        long now = clock.getAsLong();
+        Iterator<Map.Entry<Key, Window>> i = windows.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<Key, Window> e = i.next();
+            if (all || e.getValue().isOver(now)) {
+                close(e.getKey(), e.getValue());
+            }
+        }
+
+    }
+
+    int size() {
+        return windows.size();
+    }
+
+    private void close(Key key, Window w) {
+
+        LogRecord aggregated = w.close();
+        windows.remove(key, w);
+        if (aggregated != null) {
+            sink.accept(aggregated);
+        }
+
+    }
+
+    private static class Key {
+
+        private final String logger;
+        private final Level level;
+        private final String message;
+        // the key of an open window keeps the throwable of the first record, as does the window itself
+        private final Throwable thrown;
+        private final int hash;
+
+        Key(LogRecord r) {
+            logger = r.getLoggerName();
+            level = r.getLevel();
+            message = r.getMessage();
+            thrown = r.getThrown();
+            hash = Objects.hash(logger, level, message) * 31 + (thrown == null ? 0 : TraceRenderer.traceHash(thrown));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) { return true; }
+            if (!(obj instanceof Key)) { return false; }
+            Key k = (Key) obj;
+            return hash == k.hash && Objects.equals(message, k.message) && Objects.equals(logger, k.logger)
+                    && Objects.equals(level, k.level)
+                    && (thrown == null ? k.thrown == null : k.thrown != null && TraceRenderer.sameTrace(thrown, k.thrown));
+        }
+
+    }
+
+    private static class Window {
+
+        private final long end;
+        private final Consumer<LogRecord> resolveCaller;
+
+        // guarded by "this"
+        private boolean closed;
+        private LogRecord first;
+        private long count;
+        private long firstNanos;
+        private long lastNanos;
+
+        Window(long end, Consumer<LogRecord> resolveCaller) {
+            this.end = end;
+            this.resolveCaller = resolveCaller;
+        }
+
+        boolean isOver(long now) {
+            return now - end >= 0;
+        }
+
+        synchronized boolean add(LogRecord r, long now) {
+
+            if (closed || isOver(now)) {
+                return false;
+            }
+
+            long nanos = Records.getNanos(r);
+            if (count++ == 0) {
+                // the copy is made on another thread, caller information
+                // can only be inferred on this one.
+                resolveCaller.accept(r);
+                first = r;
+                firstNanos = nanos;
+            }
+            lastNanos = nanos;
+            return true;
+
+        }
+
+        /**
+         * Closes the window.
+         * @return aggregated record, or {@code null} if there is nothing to publish
+         */
+        synchronized LogRecord close() {
+
+            if (closed) { return null; }
+            closed = true;
+            if (count == 0) { return null; }
+            LogRecord r = new AggregatedRecord(first, count, firstNanos, lastNanos);
+            first = null;
+            return r;
+
+        }
+
+    }
+
+}
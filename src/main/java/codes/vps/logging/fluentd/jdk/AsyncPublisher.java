@@ -0,0 +1,194 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.MpscRingBuffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.LogRecord;
+
+/**
+ * Hands log records from the application threads over to a single consumer thread,
+ * which then performs all the formatting and emitting. Records are passed through
+ * a bounded {@link MpscRingBuffer}; when the buffer is full, producers wait for space
+ * according to the configured {@link FluentdHandler.WaitStrategy}.
+ */
+class AsyncPublisher {
+
+    private final static long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final MpscRingBuffer<LogRecord> ring;
+    private final FluentdHandler.WaitStrategy waitStrategy;
+    private final Consumer<LogRecord> sink;
+    private final Consumer<Exception> onError;
+    private final Thread consumer;
+
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+    // records that the sink is done with, only written by the consumer thread
+    private volatile long processed;
+
+    AsyncPublisher(int capacity, FluentdHandler.WaitStrategy waitStrategy, Consumer<LogRecord> sink, Consumer<Exception> onError) {
+
+        this.ring = new MpscRingBuffer<>(capacity);
+        this.waitStrategy = waitStrategy;
+        this.sink = sink;
+        this.onError = onError;
+
+        consumer = new Thread(this::consume, "fluentd-handler-async");
+        consumer.setDaemon(true);
+        consumer.start();
+
+    }
+
+    /**
+     * Enqueues a record for publishing, waiting for free space if needed.
+     * @param record record to publish
+     */
+    void publish(LogRecord record) {
+
+        if (!running) {
+            throw new IllegalStateException("Handler is closed");
+        }
+
+        int idle = 0;
+        while (!ring.offer(record)) {
+            if (!running) {
+                throw new IllegalStateException("Handler is closed");
+            }
+            if (!consumer.isAlive()) {
+                // nothing will ever make room
+                throw new IllegalStateException("Handler thread is not running");
+            }
+            // when blocking, make sure the consumer is awake
+            // to make the room for us.
+            wakeUp();
+            idle = backOff(idle, true);
+        }
+
+        if (sleeping) {
+            wakeUp();
+        }
+
+    }
+
+    /**
+     * Waits until all records that were enqueued before this call
+     * are processed by the consumer thread.
+     */
+    void drain() {
+
+        long target = ring.getProduced();
+        int idle = 0;
+        // the record is taken out of the ring before it's processed, so the
+        // consumed count is not enough to know that it's been emitted
+        while (processed < target && consumer.isAlive()) {
+            wakeUp();
+            idle = backOff(idle, true);
+        }
+
+    }
+
+    /**
+     * Stops accepting new records, processes all pending records, and
+     * terminates the consumer thread.
+     */
+    void close() {
+
+        running = false;
+        wakeUp();
+
+        boolean interrupted = false;
+        while (consumer.isAlive()) {
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+    }
+
+    int getPending() {
+        return ring.size();
+    }
+
+    private void wakeUp() {
+        LockSupport.unpark(consumer);
+    }
+
+    private void consume() {
+
+        int idle = 0;
+
+        while (true) {
+
+            LogRecord record = ring.poll();
+
+            if (record != null) {
+                idle = 0;
+                try {
+                    sink.accept(record);
+                } catch (Exception e) {
+                    onError.accept(e);
+                } catch (Throwable e) {
+                    // errors of a single record (e.g. a toString() of a parameter overflowing the
+                    // stack) must not stop the thread, the producers would wait for it forever
+                    onError.accept(new IllegalStateException("Failed to publish log record", e));
+                }
+                //noinspection NonAtomicOperationOnVolatileField
+                processed++;
+                continue;
+            }
+
+            if (!running && ring.isEmpty()) {
+                break;
+            }
+
+            if (waitStrategy == FluentdHandler.WaitStrategy.BLOCK) {
+                sleeping = true;
+                // re-check after announcing, otherwise a producer
+                // could have missed us going to sleep.
+                if (ring.isEmpty() && running) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            } else {
+                idle = backOff(idle, false);
+            }
+
+        }
+
+    }
+
+    private int backOff(int idle, boolean producer) {
+
+        switch (waitStrategy) {
+            case SPIN:
+                // only the handler thread is allowed to burn the CPU, application threads
+                // waiting for it would otherwise compete with it for the cores.
+                if (producer && idle >= 100) {
+                    Thread.yield();
+                }
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+            case BLOCK:
+                if (idle < 100) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this, Math.min(MAX_PARK_NANOS, 1000L << Math.min(idle - 100, 10)));
+                }
+                break;
+        }
+
+        return idle == Integer.MAX_VALUE ? idle : idle + 1;
+
+    }
+
+}
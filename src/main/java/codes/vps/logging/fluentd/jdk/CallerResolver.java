@@ -0,0 +1,182 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.U;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Makes caller information (source class and method) of log records available, while the
+ * records are still on the thread that logged them, see {@link FluentdHandler.CallerInfo}.
+ * <p>
+ * In the fast mode, the caller is found with a {@code StackWalker} (JDK 9+), bound once as
+ * a method handle. The walk stops at the first frame after the logging frames, and whether a class
+ * is a logging class is only figured out once for each class. The caller is only stored in the record
+ * if the record was created by the logger method that the caller invoked, i.e. the logging call
+ * couldn't have supplied its own source; otherwise, and on JDK 8, the record infers its caller itself.
+ */
+class CallerResolver {
+
+    // logger methods that create records without the source class and method (except for log(LogRecord))
+    private final static Set<String> CREATING = new HashSet<>(Arrays.asList(
+            "log", "severe", "warning", "info", "config", "fine", "finer", "finest"));
+
+    private final static ClassValue<Boolean> logging = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            String name = type.getName();
+            return name.startsWith("java.util.logging.") || name.startsWith("sun.util.logging.")
+                    || name.startsWith("jdk.internal.logger.") || name.startsWith("java.lang.System$Logger");
+        }
+    };
+
+    private final static Function<Stream<?>, Object> finder = CallerResolver::find;
+
+    private final static MethodHandle walk;
+    private final static MethodHandle declaringClass;
+    private final static MethodHandle methodName;
+
+    static {
+
+        MethodHandle w = null;
+        MethodHandle dc = null;
+        MethodHandle mn = null;
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        try {
+
+            Class<?> walker = Class.forName("java.lang.StackWalker");
+            Class<?> option = Class.forName("java.lang.StackWalker$Option");
+            Class<?> frame = Class.forName("java.lang.StackWalker$StackFrame");
+
+            Object retain = option.getField("RETAIN_CLASS_REFERENCE").get(null);
+            Object instance = lookup.findStatic(walker, "getInstance", MethodType.methodType(walker, option)).invoke(retain);
+
+            w = lookup.findVirtual(walker, "walk", MethodType.methodType(Object.class, Function.class)).bindTo(instance);
+            dc = lookup.findVirtual(frame, "getDeclaringClass", MethodType.methodType(Class.class))
+                    .asType(MethodType.methodType(Class.class, Object.class));
+            mn = lookup.findVirtual(frame, "getMethodName", MethodType.methodType(String.class))
+                    .asType(MethodType.methodType(String.class, Object.class));
+
+        } catch (ClassNotFoundException e) {
+            // JDK 8, records infer their callers
+        } catch (Throwable e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+        walk = w;
+        declaringClass = dc;
+        methodName = mn;
+
+    }
+
+    private final boolean fast;
+
+    /**
+     * Creates new resolver.
+     * @param mode caller information mode, must not be {@link FluentdHandler.CallerInfo#OFF}
+     */
+    CallerResolver(FluentdHandler.CallerInfo mode) {
+        fast = mode == FluentdHandler.CallerInfo.FAST && walk != null;
+    }
+
+    /**
+     * Returns whether the fast mode is available in this JVM.
+     * @return {@code true} if there is a stack walker
+     */
+    static boolean isFastSupported() {
+        return walk != null;
+    }
+
+    /**
+     * Makes caller information of the record available. Must be invoked on the thread
+     * that logged the record.
+     * @param r log record
+     */
+    void resolve(LogRecord r) {
+
+        if (fast) {
+            Object frame;
+            try {
+                frame = (Object) walk.invokeExact(finder);
+            } catch (Throwable e) {
+                throw U.doThrow(e);
+            }
+            if (frame != null) {
+                r.setSourceClassName(declaringClass(frame).getName());
+                r.setSourceMethodName(methodName(frame));
+                return;
+            }
+        }
+
+        // the record walks the stack itself, if its caller is not known yet
+        r.getSourceClassName();
+
+    }
+
+    /**
+     * Finds the frame that invoked the logger, skipping the frames of the handler, and
+     * then the frames of the logging framework.
+     * @return caller frame, or {@code null} if there is no logger invocation on the stack, or
+     * if the logging call could have supplied the source itself.
+     */
+    private static Object find(Stream<?> frames) {
+
+        boolean inLogger = false;
+        // method names are expensive to get, only the last logger frame is asked for one
+        Object api = null;
+        int loggerFrames = 0;
+
+        for (Iterator<?> i = frames.iterator(); i.hasNext(); ) {
+
+            Object frame = i.next();
+            Class<?> c = declaringClass(frame);
+
+            if (logging.get(c)) {
+                inLogger = true;
+                if (c == Logger.class) {
+                    api = frame;
+                    loggerFrames++;
+                }
+            } else if (inLogger) {
+                if (api == null) { return null; }
+                String name = methodName(api);
+                // log(LogRecord) publishes the record it's given, all the other log()
+                // methods create the record, and pass it on to log(LogRecord).
+                boolean created = CREATING.contains(name) && (loggerFrames > 1 || !"log".equals(name));
+                return created ? frame : null;
+            }
+
+        }
+
+        return null;
+
+    }
+
+    private static Class<?> declaringClass(Object frame) {
+        try {
+            return (Class<?>) declaringClass.invokeExact(frame);
+        } catch (Throwable e) {
+            throw U.doThrow(e);
+        }
+    }
+
+    private static String methodName(Object frame) {
+        try {
+            return (String) methodName.invokeExact(frame);
+        } catch (Throwable e) {
+            throw U.doThrow(e);
+        }
+    }
+
+}
@@ -0,0 +1,163 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.PackBuffer;
+import org.komamitsu.fluency.fluentd.ingester.sender.FluentdSender;
+import org.komamitsu.fluency.ingester.Ingester;
+import org.komamitsu.fluency.ingester.sender.Sender;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Sends chunks in the CompressedPackedForward mode: the entries of each chunk are
+ * gzip-compressed, and the chunk is marked with the {@code compressed: "gzip"} option.
+ * Fluency hands chunks to the ingester on its flusher thread, so this is where
+ * the compression runs. The deflater and the buffers are reused between chunks.
+ */
+class CompressingIngester implements Ingester {
+
+    // minimal gzip header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+    private final static byte [] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final FluentdSender sender;
+    private final boolean ackResponseMode;
+
+    // guarded by "this"
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private byte [] input = new byte[0];
+    private byte [] output = new byte[8192];
+    private final PackBuffer header = new PackBuffer(64);
+    private final MessagePacker packer = MessagePack.newDefaultPacker(header);
+
+    /**
+     * Creates new ingester.
+     * @param sender sender to send the chunks with
+     * @param ackResponseMode whether chunks must be acknowledged
+     * @param level compression level, from {@code 0} to {@code 9}, or {@code -1} for the default level
+     */
+    CompressingIngester(FluentdSender sender, boolean ackResponseMode, int level) {
+        this.sender = sender;
+        this.ackResponseMode = ackResponseMode;
+        this.deflater = new Deflater(level, true);
+    }
+
+    @Override
+    public synchronized void ingest(String tag, ByteBuffer dataBuffer) throws IOException {
+
+        int size = dataBuffer.remaining();
+        int length = compress(dataBuffer);
+        String chunk = ackResponseMode ? UUID.randomUUID().toString() : null;
+
+        // [tag, entries, option]
+        header.reset();
+        packer.packArrayHeader(3);
+        packer.packString(tag);
+        packer.packRawStringHeader(length);
+        packer.flush();
+        ByteBuffer head = ByteBuffer.wrap(Arrays.copyOf(header.array(), header.size()));
+
+        header.reset();
+        packer.packMapHeader(chunk == null ? 2 : 3);
+        packer.packString("size").packInt(size);
+        packer.packString("compressed").packString("gzip");
+        if (chunk != null) {
+            packer.packString("chunk").packString(chunk);
+        }
+        packer.flush();
+        ByteBuffer option = ByteBuffer.wrap(Arrays.copyOf(header.array(), header.size()));
+
+        ByteBuffer entries = ByteBuffer.wrap(output, 0, length);
+        if (chunk == null) {
+            sender.send(Arrays.asList(head, entries, option));
+        } else {
+            sender.sendWithAck(Arrays.asList(head, entries, option), chunk);
+        }
+
+    }
+
+    /**
+     * Compresses the remaining data of the buffer into a single gzip member,
+     * in {@link #output}. The position of the buffer is not changed.
+     * @param data data to compress
+     * @return length of the compressed data
+     */
+    synchronized int compress(ByteBuffer data) {
+
+        byte [] in;
+        int off;
+        int len = data.remaining();
+        if (data.hasArray()) {
+            in = data.array();
+            off = data.arrayOffset() + data.position();
+        } else {
+            // direct buffer, the deflater can only take arrays before JDK 11
+            if (input.length < len) {
+                input = new byte[len];
+            }
+            data.duplicate().get(input, 0, len);
+            in = input;
+            off = 0;
+        }
+
+        crc.reset();
+        crc.update(in, off, len);
+        deflater.reset();
+        deflater.setInput(in, off, len);
+        deflater.finish();
+
+        System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+        int pos = GZIP_HEADER.length;
+        while (!deflater.finished()) {
+            if (pos == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            pos += deflater.deflate(output, pos, output.length - pos);
+        }
+
+        if (output.length - pos < 8) {
+            output = Arrays.copyOf(output, pos + 8);
+        }
+        pos = putIntLE(output, pos, (int) crc.getValue());
+        pos = putIntLE(output, pos, len);
+        return pos;
+
+    }
+
+    /**
+     * Returns the buffer that the last chunk was compressed into.
+     * @return compressed data, see {@link #compress(ByteBuffer)} for its length
+     */
+    synchronized byte [] getOutput() {
+        return output;
+    }
+
+    @Override
+    public Sender getSender() {
+        return sender;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sender.close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int putIntLE(byte [] b, int pos, int v) {
+        b[pos] = (byte) v;
+        b[pos + 1] = (byte) (v >>> 8);
+        b[pos + 2] = (byte) (v >>> 16);
+        b[pos + 3] = (byte) (v >>> 24);
+        return pos + 4;
+    }
+
+}
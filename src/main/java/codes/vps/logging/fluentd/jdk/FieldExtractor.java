@@ -1,5 +1,10 @@
 package codes.vps.logging.fluentd.jdk;
 
+import codes.vps.logging.fluentd.jdk.util.MsgPack;
+import codes.vps.logging.fluentd.jdk.util.U;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
 import java.util.logging.LogRecord;
 
 /**
@@ -21,4 +26,86 @@ public interface FieldExtractor {
      */
     Object extract(LogRecord l);
 
+    /**
+     * Type of the values that this extractor produces. Values of extractors that declare
+     * a primitive type are encoded with {@link #extractLong(LogRecord)} or {@link #extractBoolean(LogRecord)},
+     * without boxing them. Default implementation returns {@link Type#OBJECT}.
+     * @return value type
+     */
+    default Type getType() {
+        return Type.OBJECT;
+    }
+
+    /**
+     * Whether the extractor uses caller information of the records, i.e. the source class
+     * or method name. The handler only looks up the callers of the records if any
+     * of its extractors need them. Default implementation returns {@code true}.
+     * @return {@code true} if the caller information is used
+     */
+    default boolean needsCaller() {
+        return true;
+    }
+
+    /**
+     * Extracts data as a number. Default implementation converts the value
+     * returned by {@link #extract(LogRecord)}.
+     * @param l log record to extract data from
+     * @return numeric value
+     * @throws NumberFormatException if the value is not a number
+     */
+    default long extractLong(LogRecord l) {
+        return U.toLong(extract(l));
+    }
+
+    /**
+     * Extracts data as a boolean. Default implementation converts the value
+     * returned by {@link #extract(LogRecord)}.
+     * @param l log record to extract data from
+     * @return boolean value
+     */
+    default boolean extractBoolean(LogRecord l) {
+        return U.toBoolean(extract(l));
+    }
+
+    /**
+     * Writes the data extracted from the log record as a single MessagePack value.
+     * This is used by the handler to encode outgoing messages without building an
+     * intermediate map. Default implementation packs the value returned by
+     * {@link #extractLong(LogRecord)} or {@link #extractBoolean(LogRecord)}, depending on
+     * the {@link #getType() type}, or by {@link #extract(LogRecord)}.
+     * @param packer packer to write the value into
+     * @param l log record to extract data from
+     * @throws IOException if writing into the packer fails
+     */
+    default void writeTo(MessagePacker packer, LogRecord l) throws IOException {
+        switch (getType()) {
+            case LONG:
+                packer.packLong(extractLong(l));
+                break;
+            case BOOLEAN:
+                packer.packBoolean(extractBoolean(l));
+                break;
+            default:
+                MsgPack.packValue(packer, extract(l));
+        }
+    }
+
+    /**
+     * Types of the extracted values.
+     */
+    enum Type {
+        /**
+         * Any object, see {@link FieldExtractor#extract(LogRecord)}.
+         */
+        OBJECT,
+        /**
+         * Number, see {@link FieldExtractor#extractLong(LogRecord)}.
+         */
+        LONG,
+        /**
+         * Boolean, see {@link FieldExtractor#extractBoolean(LogRecord)}.
+         */
+        BOOLEAN
+    }
+
 }
@@ -1,16 +1,16 @@
 package codes.vps.logging.fluentd.jdk;
 
 import codes.vps.logging.fluentd.jdk.util.ForwardString;
+import codes.vps.logging.fluentd.jdk.util.MsgPack;
 import codes.vps.logging.fluentd.jdk.util.StringWinder;
 import codes.vps.logging.fluentd.jdk.util.U;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.math.BigInteger;
-import java.text.SimpleDateFormat;
-import java.time.Instant;
-import java.util.Date;
-import java.util.function.BiFunction;
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.Collection;
 import java.util.function.Function;
 import java.util.logging.LogRecord;
 
@@ -18,35 +18,35 @@ public class FieldExtractorImpl implements FieldExtractor {
 
     private final String fieldName;
     private final Function<LogRecord, Object> extract;
-    private final static Method getLongThreadID;
-    private final static Method getInstant;
-
-    static {
-
-        Method m;
-        try {
-            m = LogRecord.class.getMethod("getLongThreadID");
-        } catch (NoSuchMethodException e) {
-            m = null;
-        }
-        getLongThreadID = m;
-
-        try {
-            m = LogRecord.class.getMethod("getInstant");
-        } catch (NoSuchMethodException e) {
-            m = null;
-        }
-        getInstant = m;
-
-    }
+    private final Template template;
+    private final char type;
+    private final Object constant;
+    private final byte [] encodedConstant;
+    // operation that writes the whole value straight into the packer, if any
+    private final byte direct;
+    // the value is one of the names that keep repeating, its encoding is cached
+    private final boolean name;
+    private final Type valueType;
 
     @SuppressWarnings("unused")
     public FieldExtractorImpl(String fieldName, Function<LogRecord, Object> extract) {
         this.fieldName = fieldName;
         this.extract = extract;
+        this.template = null;
+        this.type = 0;
+        this.constant = null;
+        this.encodedConstant = null;
+        this.direct = 0;
+        this.name = false;
+        this.valueType = Type.OBJECT;
     }
 
-    FieldExtractorImpl(String item) {
+    /**
+     * Parses a single item of the format.
+     * @param item item, e.g. {@code message"${l10n}"s}
+     * @return field extractor
+     */
+    static FieldExtractorImpl parse(String item) {
 
         StringWinder sw = new ForwardString(item);
 
@@ -101,9 +101,7 @@ public class FieldExtractorImpl implements FieldExtractor {
         String type = U.sTrim(sb.toString());
         if (format == null) { format = ""; }
 
-        this.fieldName = fieldName;
-
-        Function<LogRecord, Object> ext = null;
+        Template.Builder tb = new Template.Builder();
 
         sw = new ForwardString(format);
 
@@ -111,16 +109,6 @@ public class FieldExtractorImpl implements FieldExtractor {
 
         mode = 0;
 
-        BiFunction<Function<LogRecord, Object>, Function<LogRecord, Object>, Function<LogRecord, Object>> meld = (a, b)->{
-            if (b == null) { throw new RuntimeException("That's not supposed to happen"); }
-            if (a == null) { return b; }
-            return (l)-> String.valueOf(a.apply(l)) + b.apply(l);
-        };
-        BiFunction<Function<Object, Object>, Function<LogRecord, Object>, Function<LogRecord, Object>> sub = (a,b)->{
-            if (b == null || a == null) { throw new RuntimeException("That's not supposed to happen"); }
-            return l->a.apply(b.apply(l));
-        };
-
         while (sw.hasNext()) {
 
             char c = sw.next();
@@ -143,29 +131,24 @@ public class FieldExtractorImpl implements FieldExtractor {
 
             if (mode == 1 && c == '[') {
                 mode = 3;
-                if (sb.length() > 0) {
-                    String constant = sb.toString();
-                    ext = meld.apply(ext, (l)->constant);
-                    sb = new StringBuilder();
-                }
+                tb.constant(sb.toString());
+                sb = new StringBuilder();
                 continue;
             }
 
             if (mode == 3 && c == ']') {
                 mode = 0;
-                String inlay = sb.toString();
-                ext = meld.apply(ext, (l) -> { String v = System.getenv(inlay); if (v == null) { return ""; } return v; });
+                // environment can't change while we run
+                String v = System.getenv(sb.toString());
+                tb.constant(v == null ? "" : v);
                 sb = new StringBuilder();
                 continue;
             }
 
             if (mode == 1 && c == '{') {
                 mode = 2;
-                if (sb.length() > 0) {
-                    String constant = sb.toString();
-                    ext = meld.apply(ext, (l)->constant);
-                    sb = new StringBuilder();
-                }
+                tb.constant(sb.toString());
+                sb = new StringBuilder();
                 continue;
             }
 
@@ -173,58 +156,74 @@ public class FieldExtractorImpl implements FieldExtractor {
                 mode = 0;
                 String inlay = sb.toString();
                 if ("level".equals(inlay)) {
-                    ext = meld.apply(ext, (l)->l.getLevel().getName());
+                    tb.add(Template.OP_LEVEL);
                 } else if ("level10n".equals(inlay)) {
-                    ext = meld.apply(ext, (l)->l.getLevel().getLocalizedName());
+                    tb.add(Template.OP_LEVEL10N);
                 } else if ("sequence".equals(inlay)) {
-                    ext = meld.apply(ext, LogRecord::getSequenceNumber);
+                    tb.add(Template.OP_SEQUENCE);
                 } else if ("class".equals(inlay)) {
-                    ext = meld.apply(ext, LogRecord::getSourceClassName);
+                    tb.add(Template.OP_CLASS);
                 } else if ("method".equals(inlay)) {
-                    ext = meld.apply(ext, LogRecord::getSourceMethodName);
+                    tb.add(Template.OP_METHOD);
                 } else if ("message".equals(inlay)) {
-                    ext = meld.apply(ext, LogRecord::getMessage);
+                    tb.add(Template.OP_MESSAGE);
                 } else if ("l10n".equals(inlay)) {
-                    ext = meld.apply(ext, U::formatMessage);
+                    tb.add(Template.OP_L10N);
                 } else if ("params".equals(inlay)) {
-                    ext = meld.apply(ext, l->{
-                        Object [] ps = l.getParameters();
-                        StringBuilder sb2 = new StringBuilder();
-                        boolean first = true;
-                        if (ps != null) {
-                            for (Object p : ps) {
-                                if (first) {
-                                    first = false;
-                                } else {
-                                    sb2.append(',');
-                                }
-                                sb2.append(p);
-                            }
-                        }
-                        return sb2.toString();
-                    });
+                    tb.add(Template.OP_PARAMS);
+                } else if ("params,array".equals(inlay)) {
+                    // converted values are printed, same as with ${params}
+                    tb.add(type == null ? Template.OP_PARAMS_ARRAY : Template.OP_PARAMS);
                 } else if ("logger".equals(inlay)) {
-                    ext = meld.apply(ext, LogRecord::getLoggerName);
+                    tb.add(Template.OP_LOGGER);
                 } else if ("millis".equals(inlay)) {
-                    ext = meld.apply(ext, LogRecord::getMillis);
+                    tb.add(Template.OP_MILLIS);
                 } else if ("nanos".equals(inlay)) {
-                    ext = meld.apply(ext, this::getNanos);
+                    tb.add(Template.OP_NANOS);
+                } else if ("hostname".equals(inlay)) {
+                    tb.constant(ProcessInfo.getHostName());
+                } else if ("pid".equals(inlay)) {
+                    tb.constant(ProcessInfo.getPid());
+                } else if ("jvm_start".equals(inlay)) {
+                    tb.constant(ProcessInfo.getStartTime());
+                } else if (inlay.startsWith("property,")) {
+                    String v = System.getProperty(inlay.substring(9));
+                    tb.constant(v == null ? "" : v);
+                } else if ("instant".equals(inlay)) {
+                    tb.add(Template.OP_INSTANT);
                 } else if ("tid".equals(inlay)) {
-                    ext = meld.apply(ext, this::getThreadId);
+                    tb.add(Template.OP_TID);
                 } else if ("trace".equals(inlay)) {
-                    ext = meld.apply(ext, l->U.ifNotNull(l.getThrown(), U::throwableToString, ""));
-                } else if (inlay.startsWith("millis,")) {
-                    String dtf = inlay.substring(7);
-                    SimpleDateFormat sdf;
+                    tb.add(Template.OP_TRACE, TraceRenderer.DEFAULT);
+                } else if ("frames".equals(inlay)) {
+                    // converted values are printed, same as with ${trace}
+                    tb.add(type == null ? Template.OP_FRAMES : Template.OP_TRACE, TraceRenderer.DEFAULT);
+                } else if (inlay.startsWith("frames,")) {
+                    tb.add(type == null ? Template.OP_FRAMES : Template.OP_TRACE, parseFrames(inlay, item));
+                } else if (inlay.startsWith("trace,")) {
+                    tb.add(Template.OP_TRACE, parseTrace(inlay, item));
+                } else if (inlay.startsWith("millis,") || inlay.startsWith("millis@")) {
+                    int comma = inlay.indexOf(',');
+                    if (comma < 0) {
+                        throw new IllegalArgumentException("No date format in "+inlay+" in "+item);
+                    }
+                    String dtf = inlay.substring(comma + 1);
+                    ZoneId zone = null;
+                    if (inlay.charAt(6) == '@') {
+                        String zoneId = inlay.substring(7, comma);
+                        try {
+                            zone = ZoneId.of(zoneId);
+                        } catch (Exception e) {
+                            throw new IllegalArgumentException("Failed to parse time zone "+zoneId+" out of "+inlay+" in "+item, e);
+                        }
+                    }
+                    TimestampFormat tsf;
                     try {
-                        sdf = new SimpleDateFormat(dtf);
+                        tsf = new TimestampFormat(dtf, zone);
                     } catch (Exception e) {
                         throw new IllegalArgumentException("Failed to parse date format in "+dtf+" out of "+inlay + " in "+item, e);
                     }
-                    ext = meld.apply(ext, (l)->{
-                        Date date = new Date(l.getMillis());
-                        return sdf.format(date);
-                    });
+                    tb.add(Template.OP_DATE, tsf);
                 } else {
                     throw new IllegalArgumentException("Can't resolve "+inlay + " in "+item);
                 }
@@ -253,61 +252,214 @@ public class FieldExtractorImpl implements FieldExtractor {
             throw new IllegalArgumentException("Unterminated ] in "+item);
         }
 
-        if (sb.length() > 0) {
-            String constant = sb.toString();
-            ext = meld.apply(ext, (l)->constant);
-        }
+        tb.constant(sb.toString());
 
-        if (ext == null) {
-            ext = l->"";
-        }
-
-        if ("s".equals(type)) {
-            ext = sub.apply(String::valueOf, ext);
-        } else if ("n".equals(type)) {
-            ext = sub.apply(o->new Long(String.valueOf(o)), ext);
-        } else if ("b".equals(type)) {
-            ext = sub.apply(o-> Boolean.valueOf(String.valueOf(o)), ext);
-        } else if (type != null) {
+        if (type != null && !"s".equals(type) && !"n".equals(type) && !"b".equals(type)) {
             throw new RuntimeException("Unknown type "+type+" in item");
         }
 
-        extract = ext;
+        return new FieldExtractorImpl(fieldName, tb.build(), type == null ? 0 : type.charAt(0));
 
     }
 
-    protected Object getThreadId(LogRecord r) {
+    private FieldExtractorImpl(String fieldName, Template template, char type) {
 
-        if (getLongThreadID == null) {
-            return r.getThreadID();
+        this.fieldName = fieldName;
+        this.template = template;
+        this.type = type;
+        this.extract = null;
+        // on their own, the parameters are sent as an array, and traces are streamed
+        if (template.isOnly(Template.OP_PARAMS_ARRAY)) {
+            direct = Template.OP_PARAMS_ARRAY;
+        } else if (template.isOnly(Template.OP_FRAMES)) {
+            direct = Template.OP_FRAMES;
+        } else if (template.isOnly(Template.OP_TRACE) && (this.type == 0 || this.type == 's')) {
+            direct = Template.OP_TRACE;
         } else {
-            try {
-                return getLongThreadID.invoke(r);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            direct = 0;
+        }
+        name = template.isName() && (this.type == 0 || this.type == 's');
+
+        if (template.isConstant()) {
+            // value is the same for every record, so it's converted and encoded only once.
+            constant = convert(template.evaluate(null));
+            try (MessageBufferPacker packer = MessagePack.newDefaultBufferPacker()) {
+                MsgPack.packValue(packer, constant);
+                encodedConstant = packer.toByteArray();
+            } catch (IOException e) {
+                throw U.doThrow(e);
+            }
+            valueType = constant instanceof Long ? Type.LONG : constant instanceof Boolean ? Type.BOOLEAN : Type.OBJECT;
+        } else {
+            constant = null;
+            encodedConstant = null;
+            if (this.type == 'n' || (this.type == 0 && template.isNumeric())) {
+                valueType = Type.LONG;
+            } else if (this.type == 'b') {
+                valueType = Type.BOOLEAN;
+            } else {
+                valueType = Type.OBJECT;
             }
         }
 
     }
 
-    protected Object getNanos(LogRecord r) {
+    /**
+     * Returns an extractor that produces the same value, except that the caller
+     * variables ({@code ${class}} and {@code ${method}}) are always {@code null}.
+     * @return extractor without caller information, or this extractor if it doesn't use any
+     */
+    FieldExtractor withoutCaller() {
+        if (!needsCaller()) { return this; }
+        return new FieldExtractorImpl(fieldName, template.withoutCaller(), type);
+    }
+
+    private static TraceRenderer parseFrames(String inlay, String item) {
+
+        // frames,<max frames>
+        try {
+            return new TraceRenderer(Integer.parseInt(inlay.substring(7).trim()), 0, TraceRenderer.DEFAULT_CACHE_SIZE);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Failed to parse frame limit out of "+inlay+" in "+item, e);
+        }
+
+    }
 
-        if (getInstant == null) {
-            return BigInteger.valueOf(r.getMillis()).multiply(BigInteger.valueOf(1000000));
+    private static TraceRenderer parseTrace(String inlay, String item) {
+
+        // trace,<max frames>[,<max bytes>[,<cache size>]]
+        String [] limits = inlay.substring(6).split(",", -1);
+        if (limits.length > 3) {
+            throw new IllegalArgumentException("Too many trace parameters in "+inlay+" in "+item);
         }
 
+        int [] values = {0, 0, TraceRenderer.DEFAULT_CACHE_SIZE};
         try {
-            Instant i = (Instant)getInstant.invoke(r);
-            return BigInteger.valueOf(i.getEpochSecond()).multiply(BigInteger.valueOf(1000000000)).add(BigInteger.valueOf(i.getNano()));
+            for (int i = 0; i < limits.length; i++) {
+                values[i] = Integer.parseInt(limits[i].trim());
+            }
+            return new TraceRenderer(values[0], values[1], values[2]);
         } catch (Exception e) {
-            throw new RuntimeException(e);
+            throw new IllegalArgumentException("Failed to parse trace parameters out of "+inlay+" in "+item, e);
         }
 
+    }
 
+    /**
+     * Returns thread ID of the record.
+     * @param r log record
+     * @return thread ID, as a long value when the JDK supports it
+     * @deprecated not invoked by the extractor anymore, {@code ${tid}} is read straight from the record,
+     * so overriding this method has no effect; to be removed.
+     */
+    @Deprecated
+    protected Object getThreadId(LogRecord r) {
+        return Records.getThreadId(r);
+    }
+
+    /**
+     * Returns event time of the record, in nanoseconds since the epoch.
+     * @param r log record
+     * @return event time in nanoseconds
+     * @deprecated not invoked by the extractor anymore, {@code ${nanos}} is read straight from the record,
+     * so overriding this method has no effect; to be removed.
+     */
+    @Deprecated
+    protected Object getNanos(LogRecord r) {
+        return Records.getNanos(r);
     }
 
     public Object extract(LogRecord l) {
-        return extract.apply(l);
+
+        if (template == null) {
+            return extract.apply(l);
+        }
+
+        if (encodedConstant != null) {
+            return constant;
+        }
+
+        return convert(template.evaluate(l));
+
+    }
+
+    @Override
+    public Type getType() {
+        return valueType;
+    }
+
+    @Override
+    public boolean needsCaller() {
+        return template == null || template.usesCaller();
+    }
+
+    /**
+     * Adds the trace renderers that the extractor uses to the specified collection.
+     * @param to collection to add the renderers to
+     */
+    void addTraceRenderers(Collection<TraceRenderer> to) {
+        if (template != null) {
+            template.addTraceRenderers(to);
+        }
+    }
+
+    @Override
+    public long extractLong(LogRecord l) {
+
+        if (template == null || encodedConstant != null || valueType != Type.LONG) {
+            return FieldExtractor.super.extractLong(l);
+        }
+
+        return template.evaluateLong(l);
+
+    }
+
+    @Override
+    public boolean extractBoolean(LogRecord l) {
+
+        if (template == null || encodedConstant != null) {
+            return FieldExtractor.super.extractBoolean(l);
+        }
+
+        return U.toBoolean(template.evaluate(l));
+
+    }
+
+    @Override
+    public void writeTo(MessagePacker packer, LogRecord l) throws IOException {
+
+        if (encodedConstant != null) {
+            packer.writePayload(encodedConstant);
+        } else if (direct == Template.OP_PARAMS_ARRAY) {
+            ParamCodecs.packParams(packer, l.getParameters());
+        } else if (direct == Template.OP_TRACE) {
+            ((TraceRenderer) template.getArg()).writeTo(packer, l.getThrown());
+        } else if (direct == Template.OP_FRAMES) {
+            ((TraceRenderer) template.getArg()).writeFrames(packer, l.getThrown());
+        } else if (name) {
+            NameCache.DEFAULT.pack(packer, (String) convert(template.evaluate(l)));
+        } else if (template != null && valueType != Type.OBJECT) {
+            // numbers are not boxed, or printed and parsed back
+            FieldExtractor.super.writeTo(packer, l);
+        } else {
+            MsgPack.packValue(packer, extract(l));
+        }
+
+    }
+
+    private Object convert(Object o) {
+
+        switch (type) {
+            case 's':
+                return String.valueOf(o);
+            case 'n':
+                return U.toLong(o);
+            case 'b':
+                return U.toBoolean(o);
+            default:
+                return o;
+        }
+
     }
 
     public String getFieldName() {
@@ -8,18 +8,34 @@ import org.jetbrains.annotations.NotNull;
 import org.komamitsu.fluency.EventTime;
 import org.komamitsu.fluency.Fluency;
 import org.komamitsu.fluency.fluentd.FluencyBuilderForFluentd;
+import org.komamitsu.fluency.fluentd.ingester.sender.FluentdSender;
+import org.komamitsu.fluency.fluentd.ingester.sender.MultiSender;
+import org.komamitsu.fluency.ingester.Ingester;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.logging.ErrorManager;
+import java.util.logging.Filter;
 import java.util.logging.Handler;
+import java.util.logging.Level;
 import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
+import java.util.zip.Deflater;
+import javax.management.ObjectName;
 
 /**
  * JDK logging handler implementation for forwarding logging data
@@ -34,10 +50,35 @@ public class FluentdHandler extends Handler {
      */
     public final static String DEFAULT_FORMAT = "$tag\"\";message\"${level10n} [${tid}] ${class}.${method} ${l10n}\";stack\"${trace}\"";
 
+    private final static int OFF = Level.OFF.intValue();
+
+    /**
+     * JMX domain that handler MBeans are registered in.
+     */
+    public final static String JMX_DOMAIN = "codes.vps.logging.fluentd.jdk";
+
     private Function<LogRecord, Map<String, Object>> mapper;
     private List<FieldExtractor> extractors;
+    private RecordEncoder encoder;
+    private TagCache tags;
+
+    private Fluency [] loggers;
+    private boolean stripeByTag;
+    private AsyncPublisher async;
+    private boolean nanoTime;
+    // null if caller information is not needed
+    private CallerResolver callers;
+
+    // Handler.getLevel() is synchronized on older JDKs, so the level is kept here as well.
+    private volatile int levelThreshold = Level.ALL.intValue();
+
+    private final HandlerMetrics metrics = new HandlerMetrics();
+    private ObjectName jmxName;
 
-    private Fluency logger;
+    private Aggregator aggregator;
+    private RateLimiter rateLimiter;
+    private Spool spool;
+    private ScheduledExecutorService scheduler;
 
     /**
      * Creates new handler from JDK logging configuration. This construction should only
@@ -64,9 +105,102 @@ public class FluentdHandler extends Handler {
 
         this.extractors = b.extractors;
         this.mapper = b.mapper;
+        if (b.callerInfo == CallerInfo.OFF) {
+            if (extractors != null) {
+                List<FieldExtractor> list = new ArrayList<>();
+                for (FieldExtractor fe : extractors) {
+                    list.add(fe instanceof FieldExtractorImpl ? ((FieldExtractorImpl) fe).withoutCaller() : fe);
+                }
+                extractors = list;
+            }
+        } else if (mapper != null || extractors.stream().anyMatch(FieldExtractor::needsCaller)) {
+            callers = new CallerResolver(b.callerInfo);
+        }
+        this.nanoTime = b.nanoTime;
+        this.tags = new TagCache(b.tagPrefix, TagCache.DEFAULT_CAPACITY);
+        setLevel(b.level);
+        setFilter(b.filter);
+        if (mapper == null) {
+            encoder = new RecordEncoder(extractors);
+        }
+
+        if (b.spoolDir != null) {
+            if (mapper != null) {
+                throw new IllegalArgumentException("Spool can only be used with extractors, and not with a mapper");
+            }
+            spool = U.reThrow(()->new Spool(new File(b.spoolDir), b.spoolSegmentSize, b.spoolMaxSize, b.stripes));
+        }
 
         initLogger(b);
 
+        if (spool != null) {
+            // whatever was not sent the last time, before anything new is published
+            try {
+                spool.recover((tag, time, data, off, len)->{
+                    int stripe = stripe(tag, null);
+                    spool.emit(stripe, tag, time, data, off, len, ()->loggers[stripe].emit(tag, time, data, off, len));
+                });
+            } catch (Exception e) {
+                reportError("Failed to replay spooled log records", e, ErrorManager.GENERIC_FAILURE);
+            }
+        }
+
+        if (b.async) {
+            async = new AsyncPublisher(b.asyncCapacity, b.asyncWaitStrategy, this::doPublish,
+                    e->reportError("Failed to publish log record", e, ErrorManager.WRITE_FAILURE));
+        }
+
+        if (b.aggregateMillis > 0) {
+            // aggregated records are not subject to rate limits, they carry the counts
+            aggregator = new Aggregator(TimeUnit.MILLISECONDS.toNanos(b.aggregateMillis), System::nanoTime,
+                    this::publishLimited, this::resolveCaller);
+            long period = Math.max(1, b.aggregateMillis / 4);
+            scheduler().scheduleWithFixedDelay(()->{
+                try {
+                    aggregator.flush(false);
+                } catch (Exception e) {
+                    reportError("Failed to publish aggregated log records", e, ErrorManager.WRITE_FAILURE);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        if (b.rateLimit != null) {
+            rateLimiter = new RateLimiter(b.rateLimit, System::nanoTime, this::publishLimited);
+            scheduler().scheduleWithFixedDelay(()->{
+                try {
+                    rateLimiter.report();
+                } catch (Exception e) {
+                    reportError("Failed to report suppressed log records", e, ErrorManager.WRITE_FAILURE);
+                }
+            }, b.rateLimitReportMillis, b.rateLimitReportMillis, TimeUnit.MILLISECONDS);
+        }
+
+        Set<TraceRenderer> renderers = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (mapper == null) {
+            for (FieldExtractor fe : extractors) {
+                if (fe instanceof FieldExtractorImpl) {
+                    ((FieldExtractorImpl) fe).addTraceRenderers(renderers);
+                }
+            }
+        }
+        metrics.setSources(loggers, async, spool, renderers.toArray(new TraceRenderer[0]));
+        if (b.jmx) {
+            registerMBean(b.jmxId);
+        }
+
+    }
+
+    private ScheduledExecutorService scheduler() {
+
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r->{
+                Thread t = new Thread(r, "fluentd-handler-scheduler");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return scheduler;
+
     }
 
     private void configure() {
@@ -76,6 +210,33 @@ public class FluentdHandler extends Handler {
         cfg("host", p->b.host = p);
         cfg("port", p->b.port = p);
         cfg("format", p->b.extractors = parseFormat(p));
+        cfg("param_codecs", p->{
+            for (String c : p.split(",")) {
+                U.whenNotNull(U.sTrim(c), n->ParamCodecs.register(
+                        (ParamCodec<?>) ClassLoader.getSystemClassLoader().loadClass(n).getDeclaredConstructor().newInstance()));
+            }
+        });
+        bCfg("nano_time", p->b.nanoTime = p);
+        bCfg("async", p->b.async = p);
+        iCfg("async_capacity", p->b.asyncCapacity = p);
+        cfg("caller_info", p->b.callerInfo = CallerInfo.valueOf(p.toUpperCase()));
+        cfg("async_wait_strategy", p->b.asyncWaitStrategy = WaitStrategy.valueOf(p.toUpperCase()));
+        iCfg("stripes", b::setStripes);
+        cfg("stripe_by", p->b.stripeBy = StripeBy.valueOf(p.toUpperCase()));
+        cfg("distribution", p->b.distribution = Distribution.valueOf(p.toUpperCase()));
+        cfg("compression", p->b.compression = Compression.valueOf(p.toUpperCase()));
+        iCfg("compression_level", b::setCompressionLevel);
+        lCfg("aggregate_millis", b::setAggregateMillis);
+        cfg("spool_dir", b::setSpoolDir);
+        iCfg("spool_segment_size", b::setSpoolSegmentSize);
+        lCfg("spool_max_size", b::setSpoolMaxSize);
+        cfg("rate_limit", p->b.rateLimit = p);
+        lCfg("rate_limit_report_millis", p->b.rateLimitReportMillis = p);
+        bCfg("jmx", p->b.jmx = p);
+        cfg("jmx_id", p->b.jmxId = p);
+        // standard handler properties
+        cfg("level", p->b.level = Level.parse(p));
+        cfg("filter", p->b.filter = (Filter) ClassLoader.getSystemClassLoader().loadClass(p).getDeclaredConstructor().newInstance());
 
         FluencyBuilderForFluentd fb = b.fluencyBuilder;
 
@@ -110,7 +271,6 @@ public class FluentdHandler extends Handler {
         U.whenNotNull(getProperty(prop), p->fun.accept(Integer.parseInt(p)));
     }
 
-    @SuppressWarnings("SameParameterValue")
     private void lCfg(String prop, @NotNull ConsumerT<Long, Exception> fun) {
         U.whenNotNull(getProperty(prop), p->fun.accept(Long.parseLong(p)));
     }
@@ -121,7 +281,7 @@ public class FluentdHandler extends Handler {
 
     private void initLogger(Builder b) {
 
-        FluencyBuilderForFluentd builder = new FluencyBuilderForFluentd();
+        FluencyBuilderForFluentd builder = b.fluencyBuilder;
 
         String [] hosts = b.getHost().split(",");
         String [] ports = b.getPort().split(",");
@@ -130,19 +290,85 @@ public class FluentdHandler extends Handler {
             throw new IllegalArgumentException("List of hosts must match list of ports");
         }
 
-        if (hosts.length == 1) {
+        stripeByTag = b.stripeBy == StripeBy.TAG;
+        loggers = new Fluency[b.stripes];
 
-            logger = builder.build(hosts[0], Integer.parseInt(ports[0]));
+        // stripes must not pick up each other's backups
+        String backupDir = builder.getFileBackupDir();
 
-        } else {
+        try {
+
+            b.spool = spool;
+
+            for (int s = 0; s < loggers.length; s++) {
+
+                b.spoolStripe = s;
+
+                if (backupDir != null && loggers.length > 1) {
+                    builder.setFileBackupDir(new File(backupDir, "stripe-" + s).getPath());
+                }
+
+                if (hosts.length == 1) {
+
+                    loggers[s] = builder.build(hosts[0], Integer.parseInt(ports[0]));
+
+                } else {
+
+                    List<InetSocketAddress> list = new ArrayList<>();
+                    for (int i=0; i<hosts.length; i++) {
+                        list.add(new InetSocketAddress(hosts[i], Integer.parseInt(ports[i])));
+                    }
+
+                    loggers[s] = builder.build(list);
+
+                }
 
-            List<InetSocketAddress> list = new ArrayList<>();
-            for (int i=0; i<hosts.length; i++) {
-                list.add(new InetSocketAddress(hosts[i], Integer.parseInt(ports[i])));
             }
 
-            logger = builder.build(list);
+        } finally {
+            builder.setFileBackupDir(backupDir);
+            b.spool = null;
+        }
+
+    }
+
+    /**
+     * Selects the fluency instance to emit the record with. Records are striped by the thread
+     * that logged them, not by the current thread, which in asynchronous mode is always the handler
+     * thread; records replayed from the spool ({@code record} is {@code null}) by the current thread.
+     */
+    private int stripe(String tag, LogRecord record) {
+
+        if (loggers.length == 1) {
+            return 0;
+        }
+
+        int h;
+        if (stripeByTag) {
+            h = tag.hashCode();
+            h ^= h >>> 16;
+        } else {
+            // thread IDs are sequential, so they spread evenly as they are
+            h = Long.hashCode(record == null ? Thread.currentThread().getId() : Records.getThreadId(record));
+        }
+        return Math.floorMod(h, loggers.length);
+
+    }
+
+    private void registerMBean(String id) {
 
+        if (id == null) {
+            id = Integer.toHexString(System.identityHashCode(this));
+        }
+
+        try {
+            // only quote the ID if it has to be
+            String value = id.matches("[^,=:\"*?\\\\\\n]+") ? id : ObjectName.quote(id);
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=FluentdHandler,id=" + value);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            jmxName = name;
+        } catch (Exception e) {
+            reportError("Failed to register MBean for handler " + id, e, ErrorManager.GENERIC_FAILURE);
         }
 
     }
@@ -158,45 +384,204 @@ public class FluentdHandler extends Handler {
     }
 
     /**
-     * Publishes logging record through the handler.
+     * Sets the log level of the handler. Records with lower levels are discarded
+     * by {@link #publish(LogRecord)} before anything else is done with them.
+     * @param newLevel new log level
+     */
+    @Override
+    public synchronized void setLevel(Level newLevel) {
+        super.setLevel(newLevel);
+        levelThreshold = newLevel.intValue();
+    }
+
+    /**
+     * Checks whether the record would be published, based on the level and the filter
+     * of this handler.
+     * @param record log record
+     * @return {@code true} if the record would be published
+     */
+    @Override
+    public boolean isLoggable(LogRecord record) {
+
+        if (record == null) { return false; }
+
+        int threshold = levelThreshold;
+        if (record.getLevel().intValue() < threshold || threshold == OFF) {
+            return false;
+        }
+
+        Filter filter = getFilter();
+        return filter == null || filter.isLoggable(record);
+
+    }
+
+    /**
+     * Returns number of records that were not published because of the level or
+     * the filter of this handler.
+     * @return number of rejected records
+     */
+    public long getRejectedCount() {
+        return metrics.getRejected();
+    }
+
+    /**
+     * Publishes logging record through the handler. In asynchronous mode, the record
+     * is only queued up, and is formatted and sent out by the handler thread.
+     * Records that are not loggable (see {@link #isLoggable(LogRecord)}) are discarded, repeated
+     * records may be held back to be aggregated (see {@link Builder#setAggregateMillis(long)}).
      * @param record record to publish.
      */
     public void publish(LogRecord record) {
 
-        Map<String, Object> result;
-        if (mapper != null) {
-            result = mapper.apply(record);
-        } else {
-            result = new HashMap<>();
-            for (FieldExtractor f : extractors) {
-                result.put(f.getFieldName(), f.extract(record));
-            }
+        if (!isLoggable(record)) {
+            metrics.rejected.increment();
+            return;
+        }
+
+        if (aggregator != null && !aggregator.offer(record)) {
+            metrics.aggregated.increment();
+            return;
+        }
+
+        if (rateLimiter != null && !rateLimiter.tryAcquire(record)) {
+            metrics.suppressed.increment();
+            return;
         }
 
-        String tag = (String) result.remove("$tag");
+        publishLimited(record);
 
-        Long timestamp = U.ifNotNull(result.remove("$timestamp"), r->((Number)r).longValue(), null);
+    }
+
+    /**
+     * Publishes record that passed all the checks.
+     */
+    private void publishLimited(LogRecord record) {
 
-        if (tag == null) {
-            tag = record.getLoggerName();
+        // caller information can only be inferred on the calling thread
+        resolveCaller(record);
+
+        if (async != null) {
+            async.publish(record);
+            return;
         }
-        if (timestamp == null) {
-            timestamp = record.getMillis();
+
+        doPublish(record);
+
+    }
+
+    private void resolveCaller(LogRecord record) {
+        if (callers != null) {
+            callers.resolve(record);
         }
+    }
+
+    private void doPublish(LogRecord record) {
 
         try {
-            logger.emit(tag, EventTime.fromEpochMilli(timestamp), result);
-        } catch (IOException e) {
+            if (mapper != null) {
+                publishMap(record);
+            } else {
+                publishEncoded(record);
+            }
+            metrics.published.increment();
+        } catch (Throwable e) {
+            metrics.failed.increment();
             throw U.doThrow(e);
         }
 
     }
 
+    private void publishEncoded(LogRecord record) throws IOException {
+
+        long start = System.nanoTime();
+        RecordEncoder.Encoded encoded = encoder.encode(record);
+        long extracted = System.nanoTime();
+        metrics.extractTime.record(extracted - start);
+
+        try {
+            String tag = resolveTag(encoded.getTag(), record);
+            EventTime time = resolveTime(encoded.getTimestamp(), record);
+            int stripe = stripe(tag, record);
+            Fluency logger = loggers[stripe];
+            if (spool == null) {
+                logger.emit(tag, time, encoded.array(), 0, encoded.length());
+            } else {
+                spool.emit(stripe, tag, time, encoded.array(), 0, encoded.length(),
+                        ()->logger.emit(tag, time, encoded.array(), 0, encoded.length()));
+            }
+            metrics.emitTime.record(System.nanoTime() - extracted);
+            metrics.bytes.add(encoded.length());
+        } finally {
+            encoded.release();
+        }
+
+    }
+
+    private void publishMap(LogRecord record) throws IOException {
+
+        long start = System.nanoTime();
+        Map<String, Object> result = mapper.apply(record);
+        long extracted = System.nanoTime();
+        metrics.extractTime.record(extracted - start);
+
+        String tag = resolveTag(result.remove("$tag"), record);
+        EventTime time = resolveTime(result.remove("$timestamp"), record);
+
+        if (record instanceof AggregatedRecord) {
+            AggregatedRecord ar = (AggregatedRecord) record;
+            result.putIfAbsent(Aggregator.COUNT, ar.getCount());
+            result.putIfAbsent(Aggregator.FIRST, ar.getFirstMillis());
+            result.putIfAbsent(Aggregator.LAST, ar.getLastMillis());
+        }
+
+        loggers[stripe(tag, record)].emit(tag, time, result);
+        metrics.emitTime.record(System.nanoTime() - extracted);
+
+    }
+
+    private String resolveTag(Object tag, LogRecord record) {
+
+        String name = tag == null ? null : tag.toString();
+        if (name == null || name.isEmpty()) {
+            name = record.getLoggerName();
+        }
+        return tags.resolve(name);
+
+    }
+
+    private EventTime resolveTime(Object timestamp, LogRecord record) {
+
+        if (timestamp == null) {
+            if (nanoTime) {
+                return new EventTime(Records.getEpochSecond(record), Records.getNanoOfSecond(record));
+            }
+            return EventTime.fromEpochMilli(record.getMillis());
+        }
+
+        if (timestamp instanceof EventTime) {
+            return (EventTime) timestamp;
+        }
+
+        if (timestamp instanceof Instant) {
+            Instant i = (Instant) timestamp;
+            return new EventTime(i.getEpochSecond(), i.getNano());
+        }
+
+        return EventTime.fromEpochMilli(((Number)timestamp).longValue());
+
+    }
+
     /**
-     * Flushes logged messages.
+     * Flushes logged messages. In asynchronous mode, this waits until all the
+     * records queued before this call are processed by the handler thread.
      */
     public void flush() {
-        U.reThrow(()->logger.flush());
+        if (async != null) {
+            async.drain();
+        }
+        for (Fluency f : loggers) {
+            U.reThrow(f::flush);
+        }
     }
 
     /**
@@ -204,7 +589,56 @@ public class FluentdHandler extends Handler {
      * Handler must not be used after this method is called.
      */
     public void close() {
-        U.reThrow(()->logger.close());
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (aggregator != null) {
+            try {
+                // windows that are still open
+                aggregator.flush(true);
+            } catch (Exception e) {
+                reportError("Failed to publish aggregated log records", e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+        if (rateLimiter != null) {
+            try {
+                // whatever was suppressed since the last report
+                rateLimiter.report();
+            } catch (Exception e) {
+                reportError("Failed to report suppressed log records", e, ErrorManager.CLOSE_FAILURE);
+            }
+        }
+        if (async != null) {
+            async.close();
+        }
+        if (jmxName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+            } catch (Exception e) {
+                reportError("Failed to unregister MBean " + jmxName, e, ErrorManager.CLOSE_FAILURE);
+            }
+            jmxName = null;
+        }
+        Throwable failure = null;
+        for (Fluency f : loggers) {
+            // all stripes must be closed, even if some fail to
+            try {
+                f.close();
+            } catch (Throwable e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (spool != null) {
+            // the segments with records that fluency didn't manage to send are kept for the next time
+            spool.close();
+        }
+        if (failure != null) {
+            throw U.doThrow(failure);
+        }
     }
 
     /**
@@ -226,7 +660,7 @@ public class FluentdHandler extends Handler {
             String item = U.sTrim(buf2.toString());
             if (item != null) {
                 try {
-                    items.add(new FieldExtractorImpl(item));
+                    items.add(FieldExtractorImpl.parse(item));
                 } catch (Exception e) {
                     throw new IllegalArgumentException("Failed to parse format "+s, e);
                 }
@@ -271,6 +705,109 @@ public class FluentdHandler extends Handler {
 
     }
 
+    /**
+     * Strategy used by the asynchronous mode when there is nothing to do for the handler thread,
+     * or there is no room in the queue for the application threads.
+     */
+    public enum WaitStrategy {
+        /**
+         * Busy spin, lowest latency, occupies a CPU core at all times.
+         */
+        SPIN,
+        /**
+         * Yield the CPU between attempts.
+         */
+        YIELD,
+        /**
+         * Yield, and then park for progressively longer periods (up to a millisecond).
+         */
+        PARK,
+        /**
+         * Handler thread sleeps until woken up by the application threads; this costs
+         * nothing when idle, but may add a wake-up latency to the application threads.
+         */
+        BLOCK
+    }
+
+    /**
+     * How records are distributed between the fluency instances, when there is more than one
+     * (see {@link Builder#setStripes(int)}).
+     */
+    public enum StripeBy {
+        /**
+         * Records logged by the same thread always go through the same instance, so records from
+         * the same thread are sent in order. The thread is the one recorded in the log record
+         * (see {@link LogRecord#getThreadID()}), so in asynchronous mode, records are still
+         * distributed by the threads that logged them, rather than all going through the
+         * instance of the handler thread.
+         */
+        THREAD,
+        /**
+         * Records with the same tag always go through the same instance, so records
+         * with the same tag are sent in order.
+         */
+        TAG
+    }
+
+    /**
+     * How records are distributed between multiple fluentd hosts.
+     */
+    public enum Distribution {
+        /**
+         * All records are sent to the first available host, the other hosts
+         * only receive records when the hosts before them are unavailable.
+         */
+        FAILOVER,
+        /**
+         * Each chunk of records is sent to the next available host in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * Chunks are sent to the host that their tag maps to with consistent hashing, so
+         * all records with the same tag go to the same host. Records of an unavailable host
+         * are spread between the other hosts until it's available again.
+         */
+        HASH
+    }
+
+    /**
+     * How caller information of the records, i.e. the values of the {@code ${class}} and
+     * {@code ${method}} variables, is found when the logging call didn't supply it.
+     * Either way, callers are only looked up if the format uses them.
+     */
+    public enum CallerInfo {
+        /**
+         * Caller information is not used, {@code ${class}} and {@code ${method}} are always {@code null},
+         * even if the logging call supplied them.
+         */
+        OFF,
+        /**
+         * Records infer their callers themselves, see {@link LogRecord#getSourceClassName()}.
+         */
+        INFER,
+        /**
+         * The handler finds the caller with a stack walker, and stores it in the record. The walk
+         * stops at the first frame outside the logging framework, and frames are told apart by
+         * their classes, which are only checked once. Requires JDK 9+, falls back to {@link #INFER}
+         * on older JDKs, and for the records which the logging call could have supplied the caller for.
+         */
+        FAST
+    }
+
+    /**
+     * Compression of the chunks sent to fluentd.
+     */
+    public enum Compression {
+        /**
+         * Chunks are not compressed (PackedForward mode).
+         */
+        NONE,
+        /**
+         * Chunks are compressed with gzip (CompressedPackedForward mode).
+         */
+        GZIP
+    }
+
     /**
      * Builder class used to provide configuration for the handler.
      * When a new build is created, it is populated with default values.
@@ -283,14 +820,56 @@ public class FluentdHandler extends Handler {
         // builder is filled with default values. Fluency default values are based on
         // https://github.com/komamitsu/fluency (and from source code when needed)
 
-        FluencyBuilderForFluentd fluencyBuilder = new FluencyBuilderForFluentd();
+        FluencyBuilderForFluentd fluencyBuilder = new FluencyBuilderForFluentd() {
+            @Override
+            protected Ingester buildIngester(FluentdSender sender) {
+                // multiple hosts are always sent to through a multi sender, which fails over
+                if (distribution != Distribution.FAILOVER && sender instanceof MultiSender) {
+                    sender = new ShardingSender(((MultiSender) sender).getSenders(), distribution == Distribution.HASH);
+                }
+                Ingester ingester = super.buildIngester(sender);
+                if (compression == Compression.GZIP) {
+                    // same sender (wrapped for retries), but the chunks are compressed
+                    ingester = new CompressingIngester((FluentdSender) ingester.getSender(), isAckResponseMode(),
+                            compressionLevel);
+                }
+                if (spool != null) {
+                    // the records are released from the spool once they are sent
+                    ingester = spool.track(ingester, spoolStripe);
+                }
+                return ingester;
+            }
+        };
 
         private String host = "127.0.0.1";
         private String port = "24224";
         private String tagPrefix = "";
         private Function<LogRecord, Map<String, Object>> mapper;
         private List<FieldExtractor> extractors = parseFormat(DEFAULT_FORMAT);
-
+        private boolean nanoTime;
+        private CallerInfo callerInfo = CallerInfo.INFER;
+        private boolean async;
+        private int asyncCapacity = 8192;
+        private WaitStrategy asyncWaitStrategy = WaitStrategy.PARK;
+        private int stripes = 1;
+        private StripeBy stripeBy = StripeBy.THREAD;
+        private Distribution distribution = Distribution.FAILOVER;
+        private Compression compression = Compression.NONE;
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        private Level level = Level.ALL;
+        private Filter filter;
+        private long aggregateMillis;
+        private String rateLimit;
+        private long rateLimitReportMillis = 10000;
+        private boolean jmx;
+        private String jmxId;
+        private String spoolDir;
+        private int spoolSegmentSize = 16 * 1024 * 1024;
+        private long spoolMaxSize = 256L * 1024 * 1024;
+
+        // set by the handler while it builds the fluency instances
+        Spool spool;
+        int spoolStripe;
 
         /**
          * Returns currently set tag prefix.
@@ -350,6 +929,70 @@ public class FluentdHandler extends Handler {
             return this;
         }
 
+        /**
+         * Returns how records are distributed between multiple hosts.
+         * @return distribution mode
+         */
+        public Distribution getDistribution() {
+            return distribution;
+        }
+
+        /**
+         * Sets how records are distributed between multiple hosts, see {@link Distribution}.
+         * Only matters if more than one host is set with {@link #setHost(String)}.
+         * Default is {@link Distribution#FAILOVER}.
+         * @param distribution distribution mode
+         * @return this builder instance
+         */
+        public Builder setDistribution(@NotNull Distribution distribution) {
+            this.distribution = distribution;
+            return this;
+        }
+
+        /**
+         * Returns compression of the chunks sent to fluentd.
+         * @return compression
+         */
+        public Compression getCompression() {
+            return compression;
+        }
+
+        /**
+         * Sets compression of the chunks sent to fluentd, see {@link Compression}. Chunks
+         * are compressed by the fluency flusher thread, just before they are sent.
+         * Default is {@link Compression#NONE}.
+         * @param compression compression to use
+         * @return this builder instance
+         */
+        public Builder setCompression(@NotNull Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Returns compression level.
+         * @return compression level
+         */
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        /**
+         * Sets compression level, from {@code 1} (fastest) to {@code 9} (best compression),
+         * {@code 0} for no compression, or {@code -1} for the default level of the compressor
+         * (which is {@code 6}). Only used if the compression is enabled with
+         * {@link #setCompression(Compression)}. Default is {@code -1}.
+         * @param compressionLevel compression level
+         * @return this builder instance
+         */
+        public Builder setCompressionLevel(int compressionLevel) {
+            if (compressionLevel < -1 || compressionLevel > 9) {
+                throw new IllegalArgumentException("Compression level must be between -1 and 9");
+            }
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
         /**
          * Returns currently set function to map log records to
          * outgoing message. See {@link #setMapper(Function)} for
@@ -367,7 +1010,8 @@ public class FluentdHandler extends Handler {
          * If mapper function is defined, extractors (default or set by {@link #setExtractors(List)}
          * are not used. Mapper function is invoked for every incoming log record,
          * and must produce a map. Except for {@code tag} and {@code timestamp} properties of
-         * the map, its contents are forwarded to fluentd.
+         * the map, its contents are forwarded to fluentd. The timestamp can be a number of
+         * milliseconds since epoch, an {@link Instant}, or an {@link EventTime}.
          * @param mapper mapper to use
          * @return this builder instance
          */
@@ -402,6 +1046,384 @@ public class FluentdHandler extends Handler {
             return this;
         }
 
+        /**
+         * Returns whether event times are sent with nanosecond precision.
+         * @return {@code true} if nanosecond precision is used.
+         */
+        public boolean isNanoTime() {
+            return nanoTime;
+        }
+
+        /**
+         * Sets whether event times should be sent with full (nanosecond) precision of
+         * the log record timestamp. This requires JDK 9+, older JDKs only provide millisecond
+         * precision. Otherwise, event times are always truncated to milliseconds.
+         * This only applies when the event time comes from the log record itself, and not
+         * from the {@code $timestamp} field. Default is {@code false}.
+         * @param nanoTime {@code true} to use nanosecond precision
+         * @return this builder instance
+         */
+        public Builder setNanoTime(boolean nanoTime) {
+            this.nanoTime = nanoTime;
+            return this;
+        }
+
+        /**
+         * Returns how caller information of the records is found.
+         * @return caller information mode
+         */
+        public CallerInfo getCallerInfo() {
+            return callerInfo;
+        }
+
+        /**
+         * Sets how caller information of the records (the values of {@code ${class}} and
+         * {@code ${method}}) is found, see {@link CallerInfo}. Default is {@link CallerInfo#INFER}.
+         * @param callerInfo caller information mode
+         * @return this builder instance
+         */
+        public Builder setCallerInfo(@NotNull CallerInfo callerInfo) {
+            this.callerInfo = callerInfo;
+            return this;
+        }
+
+        /**
+         * Returns whether asynchronous mode is enabled.
+         * @return {@code true} if asynchronous mode is enabled.
+         */
+        public boolean isAsync() {
+            return async;
+        }
+
+        /**
+         * Enables or disables asynchronous mode. In asynchronous mode, {@link FluentdHandler#publish(LogRecord)}
+         * only places the log record into a bounded queue, and all extraction and
+         * sending is done by a dedicated handler thread. Default is {@code false}.
+         * @param async {@code true} to enable asynchronous mode
+         * @return this builder instance
+         */
+        public Builder setAsync(boolean async) {
+            this.async = async;
+            return this;
+        }
+
+        /**
+         * Returns capacity of the queue used in the asynchronous mode.
+         * @return queue capacity
+         */
+        public int getAsyncCapacity() {
+            return asyncCapacity;
+        }
+
+        /**
+         * Sets capacity of the queue used in the asynchronous mode, rounded up to
+         * a power of two. When the queue is full, publishing threads wait for the
+         * space to become available. Default is {@code 8192}.
+         * @param asyncCapacity queue capacity
+         * @return this builder instance
+         */
+        public Builder setAsyncCapacity(int asyncCapacity) {
+            this.asyncCapacity = asyncCapacity;
+            return this;
+        }
+
+        /**
+         * Returns wait strategy used in the asynchronous mode.
+         * @return wait strategy
+         */
+        public WaitStrategy getAsyncWaitStrategy() {
+            return asyncWaitStrategy;
+        }
+
+        /**
+         * Sets wait strategy used in the asynchronous mode. See {@link WaitStrategy}.
+         * Default is {@link WaitStrategy#PARK}.
+         * @param asyncWaitStrategy wait strategy to use
+         * @return this builder instance
+         */
+        public Builder setAsyncWaitStrategy(@NotNull WaitStrategy asyncWaitStrategy) {
+            this.asyncWaitStrategy = asyncWaitStrategy;
+            return this;
+        }
+
+        /**
+         * Returns number of fluency instances that records are distributed between.
+         * @return number of stripes
+         */
+        public int getStripes() {
+            return stripes;
+        }
+
+        /**
+         * Sets number of fluency instances that records are distributed between. Each fluency
+         * instance has its own buffer, flusher and sender(s), all built from the same
+         * {@link #getFluencyBuilder() configuration}, so the threads that publish records through
+         * different instances don't contend with each other. Note that the buffer size limit
+         * applies to each instance separately; if a file backup directory is set, each instance
+         * uses its own subdirectory in it. See {@link #setStripeBy(StripeBy)} for how the instance
+         * is selected. In {@link #setAsync(boolean) asynchronous mode}, all records are emitted by
+         * the one handler thread, so stripes don't reduce contention between the threads that emit,
+         * but each instance still has its own buffer and sender(s). Default is {@code 1}.
+         * @param stripes number of stripes
+         * @return this builder instance
+         */
+        public Builder setStripes(int stripes) {
+            if (stripes <= 0) {
+                throw new IllegalArgumentException("Number of stripes must be positive");
+            }
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Returns how records are distributed between fluency instances.
+         * @return distribution strategy
+         */
+        public StripeBy getStripeBy() {
+            return stripeBy;
+        }
+
+        /**
+         * Sets how records are distributed between fluency instances, see {@link StripeBy}.
+         * Only matters if there is more than one stripe. With {@link StripeBy#THREAD}, the instance
+         * is selected by the thread that logged the record, also in {@link #setAsync(boolean) asynchronous mode},
+         * where the records are emitted by the handler thread. Default is {@link StripeBy#THREAD}.
+         * @param stripeBy distribution strategy
+         * @return this builder instance
+         */
+        public Builder setStripeBy(@NotNull StripeBy stripeBy) {
+            this.stripeBy = stripeBy;
+            return this;
+        }
+
+        /**
+         * Returns log level of the handler.
+         * @return log level
+         */
+        public Level getLevel() {
+            return level;
+        }
+
+        /**
+         * Sets log level of the handler, records with lower levels are discarded as soon
+         * as they are published to the handler. Default is {@link Level#ALL}.
+         * @param level log level
+         * @return this builder instance
+         */
+        public Builder setLevel(@NotNull Level level) {
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * Returns filter of the handler.
+         * @return filter, or {@code null} if there is none
+         */
+        public Filter getFilter() {
+            return filter;
+        }
+
+        /**
+         * Sets filter of the handler, records that the filter doesn't pass are discarded
+         * as soon as they are published to the handler. Default is no filter.
+         * @param filter filter to use, {@code null} for none
+         * @return this builder instance
+         */
+        public Builder setFilter(Filter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Returns length of the window in which repeated records are aggregated.
+         * @return aggregation window, in milliseconds, {@code 0} if records are not aggregated
+         */
+        public long getAggregateMillis() {
+            return aggregateMillis;
+        }
+
+        /**
+         * Sets length of the window in which repeated records are aggregated. Records are repeated
+         * if they come from the same logger, with the same level, the same message (before it's
+         * localized or formatted with the parameters), and the same exception. The first record is
+         * published right away, and the repeated ones that follow it within the window are published
+         * as one record once the window is over: it is the first of them, with the {@code count} field
+         * set to their number, and the {@code first} and {@code last} fields set to the times (in
+         * milliseconds since epoch) of the first and the last one. Default is {@code 0}, which
+         * disables aggregation.
+         * @param aggregateMillis aggregation window, in milliseconds
+         * @return this builder instance
+         */
+        public Builder setAggregateMillis(long aggregateMillis) {
+            if (aggregateMillis < 0) {
+                throw new IllegalArgumentException("Aggregation window can not be negative");
+            }
+            this.aggregateMillis = aggregateMillis;
+            return this;
+        }
+
+        /**
+         * Returns spool directory.
+         * @return spool directory, or {@code null} if records are not spooled
+         */
+        public String getSpoolDir() {
+            return spoolDir;
+        }
+
+        /**
+         * Sets directory of the write-ahead spool. Every record is written into a memory-mapped
+         * segment file in this directory before it's passed to fluency, and stays there until
+         * fluency sends it (and fluentd acknowledges it, if acknowledgements are requested). Records
+         * that are still in the spool when the handler is created again, e.g. because the process
+         * was killed, are sent again, so some records may be sent twice. Records are written to the
+         * memory mapping, and not forced to the disk, so they survive the process crashing, but not
+         * the operating system crashing. The spool can only be used with extractors, and not
+         * with a mapper (see {@link #setMapper(Function)}); it should not be used together with
+         * the fluency file backup, as records would then be restored from both. Default is
+         * no spool.
+         * @param spoolDir spool directory, {@code null} to not spool records
+         * @return this builder instance
+         */
+        public Builder setSpoolDir(String spoolDir) {
+            this.spoolDir = spoolDir;
+            return this;
+        }
+
+        /**
+         * Returns size of each spool segment file.
+         * @return segment size, in bytes
+         */
+        public int getSpoolSegmentSize() {
+            return spoolSegmentSize;
+        }
+
+        /**
+         * Sets size of each spool segment file. A segment is deleted once all the records in it are
+         * sent, so smaller segments free the disk space sooner. Records that are larger
+         * than a segment are not spooled. Default is {@code 16777216} (16MiB).
+         * @param spoolSegmentSize segment size, in bytes
+         * @return this builder instance
+         */
+        public Builder setSpoolSegmentSize(int spoolSegmentSize) {
+            if (spoolSegmentSize < 4096) {
+                throw new IllegalArgumentException("Spool segment size must be at least 4096 bytes");
+            }
+            this.spoolSegmentSize = spoolSegmentSize;
+            return this;
+        }
+
+        /**
+         * Returns maximum total size of the spool segment files.
+         * @return maximum spool size, in bytes
+         */
+        public long getSpoolMaxSize() {
+            return spoolMaxSize;
+        }
+
+        /**
+         * Sets maximum total size of the spool segment files. When a new segment is needed, and
+         * there is no room for it, the oldest segment is deleted, even if not all of its records
+         * were sent. At least two segments are always kept. Default is {@code 268435456} (256MiB).
+         * @param spoolMaxSize maximum spool size, in bytes
+         * @return this builder instance
+         */
+        public Builder setSpoolMaxSize(long spoolMaxSize) {
+            if (spoolMaxSize <= 0) {
+                throw new IllegalArgumentException("Maximum spool size must be positive");
+            }
+            this.spoolMaxSize = spoolMaxSize;
+            return this;
+        }
+
+        /**
+         * Returns rate limit rules.
+         * @return rate limit rules, or {@code null} if there are none
+         */
+        public String getRateLimit() {
+            return rateLimit;
+        }
+
+        /**
+         * Sets rate limit rules. Rules are separated with {@code ;}, each rule is
+         * {@code <logger prefix>[:<level>]=<records per second>[/<burst>]}, for example
+         * {@code com.example.db:WARNING=100/500;=1000}. Each logger is limited by the rule for
+         * the longest matching logger prefix (a prefix matches the logger with the same name and all of
+         * its descendants, empty prefix matches all loggers), the limit of a rule is shared by all the
+         * loggers it applies to, and each level is limited separately. If the level is specified, the rule only applies to records of that level,
+         * and below. Burst is the number of records that can be published at once, it's the same
+         * as the rate by default. Records over the limit are discarded, and
+         * their numbers are periodically reported in synthetic records. Default is no limits.
+         * @param rateLimit rate limit rules, {@code null} for no limits
+         * @return this builder instance
+         */
+        public Builder setRateLimit(String rateLimit) {
+            if (rateLimit != null) {
+                // fail early
+                RateLimiter.parse(rateLimit);
+            }
+            this.rateLimit = rateLimit;
+            return this;
+        }
+
+        /**
+         * Returns how often the numbers of records suppressed by rate limits are reported.
+         * @return report interval, in milliseconds
+         */
+        public long getRateLimitReportMillis() {
+            return rateLimitReportMillis;
+        }
+
+        /**
+         * Sets how often the numbers of records suppressed by rate limits are reported.
+         * Default is {@code 10000}.
+         * @param rateLimitReportMillis report interval, in milliseconds
+         * @return this builder instance
+         */
+        public Builder setRateLimitReportMillis(long rateLimitReportMillis) {
+            this.rateLimitReportMillis = rateLimitReportMillis;
+            return this;
+        }
+
+        /**
+         * Returns whether the handler registers an MBean.
+         * @return {@code true} if the MBean is registered
+         */
+        public boolean isJmx() {
+            return jmx;
+        }
+
+        /**
+         * Sets whether the handler registers an MBean ({@link FluentdHandlerMXBean}) with
+         * the platform MBean server. The MBean is unregistered when the handler is closed.
+         * Default is {@code false}.
+         * @param jmx {@code true} to register the MBean
+         * @return this builder instance
+         */
+        public Builder setJmx(boolean jmx) {
+            this.jmx = jmx;
+            return this;
+        }
+
+        /**
+         * Returns ID used in the name of the MBean.
+         * @return MBean ID, or {@code null} if it's derived from the handler instance
+         */
+        public String getJmxId() {
+            return jmxId;
+        }
+
+        /**
+         * Sets ID used in the name of the handler MBean, the MBean is registered as
+         * {@code codes.vps.logging.fluentd.jdk:type=FluentdHandler,id=<ID>}.
+         * By default, the ID is derived from the identity of the handler instance.
+         * @param jmxId MBean ID
+         * @return this builder instance
+         */
+        public Builder setJmxId(String jmxId) {
+            this.jmxId = jmxId;
+            return this;
+        }
+
         /**
          * Return underlying fluency fluentd builder. Configure this builder
          * to modify fluency specific parameters.
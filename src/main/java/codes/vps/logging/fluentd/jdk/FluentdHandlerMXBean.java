@@ -0,0 +1,165 @@
+package codes.vps.logging.fluentd.jdk;
+
+/**
+ * Management interface of {@link FluentdHandler}. Handlers with JMX enabled (see
+ * {@link FluentdHandler.Builder#setJmx(boolean)}) register an MBean under
+ * {@code codes.vps.logging.fluentd.jdk:type=FluentdHandler,id=<id>}, see
+ * {@link FluentdHandler.Builder#setJmxId(String)}. All times are in nanoseconds.
+ */
+public interface FluentdHandlerMXBean {
+
+    /**
+     * Returns number of records that were successfully passed to fluency.
+     * @return number of published records
+     */
+    long getPublished();
+
+    /**
+     * Returns number of records that were discarded because of the level or the filter.
+     * @return number of rejected records
+     */
+    long getRejected();
+
+    /**
+     * Returns number of records that were discarded because of the rate limits.
+     * @return number of suppressed records
+     */
+    long getSuppressed();
+
+    /**
+     * Returns number of repeated records that were held back and published as aggregated records.
+     * @return number of aggregated records
+     */
+    long getAggregated();
+
+    /**
+     * Returns number of records that failed to be formatted or passed to fluency.
+     * @return number of failed records
+     */
+    long getFailed();
+
+    /**
+     * Returns total size of the encoded records that were passed to fluency. Records
+     * produced by a mapper function are not counted.
+     * @return number of bytes
+     */
+    long getBytesEmitted();
+
+    /**
+     * Returns number of records waiting in the queue in asynchronous mode.
+     * @return number of queued records, {@code 0} if asynchronous mode is not used
+     */
+    long getAsyncPending();
+
+    /**
+     * Returns usage of the fluency buffer. With multiple stripes, this is the usage of
+     * the fullest buffer.
+     * @return buffer usage, between {@code 0} and {@code 1}
+     */
+    float getBufferUsage();
+
+    /**
+     * Returns amount of data in the fluency buffer(s).
+     * @return buffered data size, in bytes
+     */
+    long getBufferedDataSize();
+
+    /**
+     * Returns number of segment files in the spool.
+     * @return number of spool segments, {@code 0} if the spool is not used
+     */
+    int getSpoolSegments();
+
+    /**
+     * Returns number of records that were deleted from the spool before they were sent,
+     * to keep the spool within its maximum size.
+     * @return number of evicted records
+     */
+    long getSpoolEvicted();
+
+    /**
+     * Returns number of damaged segments and records found in the spool when the handler was created.
+     * @return number of corruptions
+     */
+    long getSpoolCorrupted();
+
+    /**
+     * Returns number of stack traces that were found in the cache of rendered traces. The cache of
+     * {@code ${trace}} without parameters is shared by all handlers, so its hits are counted by each
+     * handler that uses it.
+     * @return number of trace cache hits
+     */
+    long getTraceCacheHits();
+
+    /**
+     * Returns number of stack traces that had to be rendered, because they were not in the cache
+     * of rendered traces. Shared the same way as {@link #getTraceCacheHits()}.
+     * @return number of trace cache misses
+     */
+    long getTraceCacheMisses();
+
+    /**
+     * Returns mean time spent extracting the fields of records and encoding them (or running the
+     * mapper function), since the handler was created, or since {@link #resetTimes()}.
+     * @return mean extract time, in nanoseconds, {@code 0} if nothing was recorded
+     */
+    double getExtractTimeMean();
+
+    /**
+     * Returns median time spent extracting and encoding records, since the handler was created,
+     * or since {@link #resetTimes()}. The value is within 12.5% of the actual median.
+     * @return median extract time, in nanoseconds, {@code 0} if nothing was recorded
+     */
+    long getExtractTime50thPercentile();
+
+    /**
+     * Returns 99th percentile of time spent extracting and encoding records, since the handler
+     * was created, or since {@link #resetTimes()}. The value is within 12.5% of the actual percentile.
+     * @return 99th percentile of extract time, in nanoseconds, {@code 0} if nothing was recorded
+     */
+    long getExtractTime99thPercentile();
+
+    /**
+     * Returns longest time spent extracting and encoding a record, since the handler was created,
+     * or since {@link #resetTimes()}.
+     * @return maximum extract time, in nanoseconds, {@code 0} if nothing was recorded
+     */
+    long getExtractTimeMax();
+
+    /**
+     * Returns mean time spent passing records to fluency, this includes
+     * time spent waiting for space in the fluency buffer. Counted since the handler was
+     * created, or since {@link #resetTimes()}.
+     * @return mean emit time, in nanoseconds, {@code 0} if nothing was recorded
+     */
+    double getEmitTimeMean();
+
+    /**
+     * Returns median time spent passing records to fluency, since the handler was created,
+     * or since {@link #resetTimes()}. The value is within 12.5% of the actual median.
+     * @return median emit time, in nanoseconds, {@code 0} if nothing was recorded
+     */
+    long getEmitTime50thPercentile();
+
+    /**
+     * Returns 99th percentile of time spent passing records to fluency, since the handler
+     * was created, or since {@link #resetTimes()}. The value is within 12.5% of the actual percentile.
+     * @return 99th percentile of emit time, in nanoseconds, {@code 0} if nothing was recorded
+     */
+    long getEmitTime99thPercentile();
+
+    /**
+     * Returns longest time spent passing a record to fluency, since the handler was created,
+     * or since {@link #resetTimes()}.
+     * @return maximum emit time, in nanoseconds, {@code 0} if nothing was recorded
+     */
+    long getEmitTimeMax();
+
+    /**
+     * Clears the extract and emit time histograms, so the time statistics only cover the records
+     * published from now on. The counters are not affected. Records that are being published
+     * while the histograms are cleared may be partially counted.
+     */
+    void resetTimes();
+
+}
@@ -0,0 +1,183 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.Histogram;
+import org.komamitsu.fluency.Fluency;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a handler, exposed over JMX. All counters are striped,
+ * so updating them doesn't make the publishing threads contend.
+ */
+class HandlerMetrics implements FluentdHandlerMXBean {
+
+    final LongAdder published = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder suppressed = new LongAdder();
+    final LongAdder aggregated = new LongAdder();
+    final LongAdder failed = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final Histogram extractTime = new Histogram();
+    final Histogram emitTime = new Histogram();
+
+    private volatile Fluency [] fluency;
+    private volatile AsyncPublisher async;
+    private volatile Spool spool;
+    private volatile TraceRenderer [] renderers;
+
+    void setSources(Fluency [] fluency, AsyncPublisher async, Spool spool, TraceRenderer [] renderers) {
+        this.fluency = fluency;
+        this.async = async;
+        this.spool = spool;
+        this.renderers = renderers;
+    }
+
+    @Override
+    public long getPublished() {
+        return published.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    @Override
+    public long getAggregated() {
+        return aggregated.sum();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public long getBytesEmitted() {
+        return bytes.sum();
+    }
+
+    @Override
+    public long getAsyncPending() {
+        AsyncPublisher a = async;
+        return a == null ? 0 : a.getPending();
+    }
+
+    @Override
+    public float getBufferUsage() {
+        float usage = 0;
+        Fluency [] all = fluency;
+        if (all != null) {
+            for (Fluency f : all) {
+                usage = Math.max(usage, f.getBuffer().getBufferUsage());
+            }
+        }
+        return usage;
+    }
+
+    @Override
+    public long getBufferedDataSize() {
+        long size = 0;
+        Fluency [] all = fluency;
+        if (all != null) {
+            for (Fluency f : all) {
+                size += f.getBufferedDataSize();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int getSpoolSegments() {
+        Spool s = spool;
+        return s == null ? 0 : s.getSegmentCount();
+    }
+
+    @Override
+    public long getSpoolEvicted() {
+        Spool s = spool;
+        return s == null ? 0 : s.getEvicted();
+    }
+
+    @Override
+    public long getSpoolCorrupted() {
+        Spool s = spool;
+        return s == null ? 0 : s.getCorrupted();
+    }
+
+    @Override
+    public long getTraceCacheHits() {
+        long hits = 0;
+        TraceRenderer [] all = renderers;
+        if (all != null) {
+            for (TraceRenderer r : all) {
+                hits += r.getHits();
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public long getTraceCacheMisses() {
+        long misses = 0;
+        TraceRenderer [] all = renderers;
+        if (all != null) {
+            for (TraceRenderer r : all) {
+                misses += r.getMisses();
+            }
+        }
+        return misses;
+    }
+
+    @Override
+    public double getExtractTimeMean() {
+        return extractTime.getMean();
+    }
+
+    @Override
+    public long getExtractTime50thPercentile() {
+        return extractTime.getPercentile(50);
+    }
+
+    @Override
+    public long getExtractTime99thPercentile() {
+        return extractTime.getPercentile(99);
+    }
+
+    @Override
+    public long getExtractTimeMax() {
+        return extractTime.getMax();
+    }
+
+    @Override
+    public double getEmitTimeMean() {
+        return emitTime.getMean();
+    }
+
+    @Override
+    public long getEmitTime50thPercentile() {
+        return emitTime.getPercentile(50);
+    }
+
+    @Override
+    public long getEmitTime99thPercentile() {
+        return emitTime.getPercentile(99);
+    }
+
+    @Override
+    public long getEmitTimeMax() {
+        return emitTime.getMax();
+    }
+
+    @Override
+    public void resetTimes() {
+        extractTime.reset();
+        emitTime.reset();
+    }
+
+}
@@ -0,0 +1,60 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.BoundedCache;
+import codes.vps.logging.fluentd.jdk.util.MsgPack;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+
+/**
+ * Caches MessagePack encoding of the names that records keep repeating: source classes and
+ * methods, loggers and levels. An application only has so many of them, so the encoded names are
+ * copied into the output as they are, instead of being encoded for every record. The cache is
+ * bounded, so dynamically generated names only cost a cache miss.
+ */
+class NameCache {
+
+    static final int DEFAULT_CAPACITY = 4096;
+
+    // longer strings are not names, and are not worth keeping
+    static final int MAX_LENGTH = 256;
+
+    static final NameCache DEFAULT = new NameCache(DEFAULT_CAPACITY);
+
+    private final BoundedCache<String, byte[]> cache;
+
+    NameCache(int capacity) {
+        this.cache = new BoundedCache<>(capacity);
+    }
+
+    /**
+     * Writes the name as a MessagePack string.
+     * @param packer packer to write to
+     * @param name name to write, {@code nil} is written if it's {@code null}
+     * @throws IOException if the packer fails
+     */
+    void pack(MessagePacker packer, String name) throws IOException {
+
+        if (name == null) {
+            packer.packNil();
+        } else if (name.length() > MAX_LENGTH) {
+            packer.packString(name);
+        } else {
+            packer.writePayload(cache.computeIfAbsent(name, MsgPack::encodeString));
+        }
+
+    }
+
+    int size() {
+        return cache.size();
+    }
+
+    long getHits() {
+        return cache.getHits();
+    }
+
+    long getMisses() {
+        return cache.getMisses();
+    }
+
+}
@@ -0,0 +1,31 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+
+/**
+ * Encodes log record parameters of a specific type, when they are sent as
+ * a MessagePack array with {@code ${params,array}}. Codecs are registered with
+ * {@link ParamCodecs#register(ParamCodec)}.
+ * @param <T> type of the parameters that this codec encodes
+ */
+public interface ParamCodec<T> {
+
+    /**
+     * Type of the parameters that this codec encodes. The codec is also used for the
+     * subclasses, and the implementations of this type, unless there is a codec registered
+     * for a more specific type.
+     * @return parameter type
+     */
+    Class<T> getType();
+
+    /**
+     * Writes the parameter as a single MessagePack value.
+     * @param packer packer to write the value into
+     * @param value parameter value, never {@code null}
+     * @throws IOException if writing into the packer fails
+     */
+    void pack(MessagePacker packer, T value) throws IOException;
+
+}
@@ -0,0 +1,161 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.MsgPack;
+import org.jetbrains.annotations.NotNull;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the codecs used to encode log record parameters as a MessagePack array
+ * (see {@code ${params,array}}). Strings, integral numbers, floating point numbers, booleans,
+ * {@link BigInteger}s, {@link Instant}s (as fluentd EventTime) and byte arrays are always encoded as
+ * their native MessagePack types. Parameters of other types are encoded with the codec registered for
+ * the closest type: the class itself, then its superclasses, then the interfaces it implements;
+ * if there is none, the parameter is encoded as its string representation. The codec that
+ * a class resolves to is cached (without keeping the class from being unloaded), registering
+ * a codec drops the cache.
+ */
+public final class ParamCodecs {
+
+    private final static ParamCodec<Object> TO_STRING = new ParamCodec<Object>() {
+        @Override
+        public Class<Object> getType() {
+            return Object.class;
+        }
+
+        @Override
+        public void pack(MessagePacker packer, Object value) throws IOException {
+            packer.packString(String.valueOf(value));
+        }
+    };
+
+    private final static Map<Class<?>, ParamCodec<?>> registered = new ConcurrentHashMap<>();
+    // replaced, and not cleared, so that a resolution racing with a registration can't stick
+    private static volatile ClassValue<ParamCodec<?>> resolved = newCache();
+
+    private ParamCodecs() {}
+
+    /**
+     * Registers a codec for the parameters of its type, replacing the codec
+     * that was registered for the same type before, if any. Types that are always
+     * encoded natively (see above) can not be overridden.
+     * @param codec codec to register
+     */
+    public static void register(@NotNull ParamCodec<?> codec) {
+        registered.put(codec.getType(), codec);
+        resolved = newCache();
+    }
+
+    /**
+     * Removes the codec registered for the specified type.
+     * @param type parameter type
+     */
+    public static void unregister(@NotNull Class<?> type) {
+        registered.remove(type);
+        resolved = newCache();
+    }
+
+    /**
+     * Packs the parameters as a MessagePack array, {@code null} parameters
+     * are packed as an empty array.
+     * @param packer packer to write to
+     * @param params parameters to pack
+     * @throws IOException if the packer fails
+     */
+    static void packParams(MessagePacker packer, Object [] params) throws IOException {
+
+        if (params == null) {
+            packer.packArrayHeader(0);
+            return;
+        }
+
+        packer.packArrayHeader(params.length);
+        for (Object p : params) {
+            packParam(packer, p);
+        }
+
+    }
+
+    static void packParam(MessagePacker packer, Object o) throws IOException {
+
+        if (o == null) {
+            packer.packNil();
+        } else if (o instanceof String) {
+            packer.packString((String) o);
+        } else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+            packer.packLong(((Number) o).longValue());
+        } else if (o instanceof Double) {
+            packer.packDouble((Double) o);
+        } else if (o instanceof Float) {
+            packer.packFloat((Float) o);
+        } else if (o instanceof Boolean) {
+            packer.packBoolean((Boolean) o);
+        } else if (o instanceof BigInteger) {
+            packer.packBigInteger((BigInteger) o);
+        } else if (o instanceof Instant) {
+            Instant i = (Instant) o;
+            MsgPack.packEventTime(packer, i.getEpochSecond(), i.getNano());
+        } else if (o instanceof byte[]) {
+            byte [] b = (byte[]) o;
+            packer.packBinaryHeader(b.length);
+            packer.writePayload(b);
+        } else {
+            @SuppressWarnings("unchecked")
+            ParamCodec<Object> codec = (ParamCodec<Object>) resolve(o.getClass());
+            codec.pack(packer, o);
+        }
+
+    }
+
+    static ParamCodec<?> resolve(Class<?> type) {
+        return resolved.get(type);
+    }
+
+    private static ClassValue<ParamCodec<?>> newCache() {
+        return new ClassValue<ParamCodec<?>>() {
+            @Override
+            protected ParamCodec<?> computeValue(Class<?> type) {
+                return lookup(type);
+            }
+        };
+    }
+
+    private static ParamCodec<?> lookup(Class<?> type) {
+
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            ParamCodec<?> codec = registered.get(c);
+            if (codec != null) { return codec; }
+        }
+
+        // interfaces, closest first
+        Deque<Class<?>> queue = new ArrayDeque<>();
+        Set<Class<?>> seen = new HashSet<>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Class<?> i : c.getInterfaces()) {
+                queue.add(i);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Class<?> i = queue.poll();
+            if (!seen.add(i)) { continue; }
+            ParamCodec<?> codec = registered.get(i);
+            if (codec != null) { return codec; }
+            for (Class<?> s : i.getInterfaces()) {
+                queue.add(s);
+            }
+        }
+
+        return TO_STRING;
+
+    }
+
+}
@@ -0,0 +1,97 @@
+package codes.vps.logging.fluentd.jdk;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.RuntimeMXBean;
+import java.net.InetAddress;
+
+/**
+ * Information about the running process that can't change during its lifetime.
+ * Each value is only computed the first time it's needed.
+ */
+final class ProcessInfo {
+
+    private ProcessInfo() {}
+
+    /**
+     * Returns local host name. If it can't be resolved, {@code HOSTNAME} or
+     * {@code COMPUTERNAME} environment variables are used, or an empty
+     * string if those are not set.
+     * @return host name
+     */
+    static String getHostName() {
+        return HostName.value;
+    }
+
+    /**
+     * Returns process ID of this JVM.
+     * @return process ID, or {@code -1} if it's not known
+     */
+    static long getPid() {
+        return Pid.value;
+    }
+
+    /**
+     * Returns the time this JVM was started at.
+     * @return JVM start time, in milliseconds since epoch
+     */
+    static long getStartTime() {
+        return StartTime.value;
+    }
+
+    private static class HostName {
+
+        static final String value;
+
+        static {
+            String h;
+            try {
+                h = InetAddress.getLocalHost().getHostName();
+            } catch (Exception e) {
+                h = System.getenv("HOSTNAME");
+                if (h == null) {
+                    h = System.getenv("COMPUTERNAME");
+                }
+            }
+            value = h == null ? "" : h;
+        }
+
+    }
+
+    private static class Pid {
+
+        static final long value;
+
+        static {
+            long pid;
+            try {
+                // JDK 9+
+                Class<?> ph = Class.forName("java.lang.ProcessHandle");
+                Object current = ph.getMethod("current").invoke(null);
+                pid = (Long) ph.getMethod("pid").invoke(current);
+            } catch (Exception e) {
+                // JDK 8, the name is "pid@host" on all known JVMs
+                String name = ManagementFactory.getRuntimeMXBean().getName();
+                int at = name.indexOf('@');
+                try {
+                    pid = Long.parseLong(at < 0 ? name : name.substring(0, at));
+                } catch (NumberFormatException ignored) {
+                    pid = -1;
+                }
+            }
+            value = pid;
+        }
+
+    }
+
+    private static class StartTime {
+
+        static final long value;
+
+        static {
+            RuntimeMXBean rt = ManagementFactory.getRuntimeMXBean();
+            value = rt.getStartTime();
+        }
+
+    }
+
+}
@@ -0,0 +1,294 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.BoundedCache;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Limits the rate of records per rule and level. Limits are configured with rules that
+ * apply to logger name prefixes (the longest matching prefix wins), and each rule has
+ * its own token bucket for each level, shared by all the loggers that the rule applies to.
+ * The buckets of each logger are looked up once, and held in a bounded cache, and checking
+ * a bucket is a single CAS. Numbers of suppressed records are counted per logger and level,
+ * and are reported with synthetic records when {@link #report()} is called.
+ */
+class RateLimiter {
+
+    static final int CACHE_SIZE = 4096;
+
+    // slots for the standard levels, custom levels share the slot of the
+    // closest standard level below them.
+    private final static Level [] SLOTS = {
+            Level.SEVERE, Level.WARNING, Level.INFO, Level.CONFIG, Level.FINE, Level.FINER, Level.FINEST
+    };
+
+    private final static Counter UNLIMITED = new Counter(null, null, null);
+
+    private final List<Rule> rules;
+    // bucket of each rule, for each level slot
+    private final Bucket [][] buckets;
+    private final LongSupplier clock;
+    private final Consumer<LogRecord> sink;
+    private final BoundedCache<String, AtomicReferenceArray<Counter>> loggers = new BoundedCache<>(CACHE_SIZE);
+    private final Queue<Counter> suppressed = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Creates new rate limiter.
+     * @param spec rate limit rules, see {@link #parse(String)}
+     * @param clock nanosecond clock
+     * @param sink receives synthetic records that report suppressed records
+     */
+    RateLimiter(String spec, LongSupplier clock, Consumer<LogRecord> sink) {
+        this.rules = parse(spec);
+        this.clock = clock;
+        this.sink = sink;
+        this.buckets = new Bucket[rules.size()][SLOTS.length];
+        for (int i = 0; i < buckets.length; i++) {
+            for (int slot = 0; slot < SLOTS.length; slot++) {
+                buckets[i][slot] = new Bucket(rules.get(i), clock);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the record is within the rate limit.
+     * @param r log record
+     * @return {@code true} if the record can be published
+     */
+    boolean tryAcquire(LogRecord r) {
+
+        String name = r.getLoggerName();
+        if (name == null) { name = ""; }
+
+        AtomicReferenceArray<Counter> counters = loggers.get(name);
+        if (counters == null) {
+            counters = loggers.put(name, new AtomicReferenceArray<>(SLOTS.length));
+        }
+
+        int slot = slot(r.getLevel());
+        Counter c = counters.get(slot);
+        if (c == null) {
+            c = counter(name, slot);
+            if (!counters.compareAndSet(slot, null, c)) {
+                c = counters.get(slot);
+            }
+        }
+
+        if (c == UNLIMITED || c.bucket.tryAcquire(clock.getAsLong())) {
+            return true;
+        }
+
+        c.suppressed.increment();
+        if (!c.queued.get() && c.queued.compareAndSet(false, true)) {
+            suppressed.add(c);
+        }
+        return false;
+
+    }
+
+    /**
+     * Publishes synthetic records for all loggers that had records suppressed since the
+     * last report. The record has the level of the suppressed records, and the name of
+     * their logger.
+     */
+    void report() {
+
+        Counter c;
+        while ((c = suppressed.poll()) != null) {
+
+            // clearing the flag first, so anything suppressed from now on queues the counter again
+            c.queued.set(false);
+            long n = c.suppressed.sumThenReset();
+            if (n == 0) { continue; }
+
+            LogRecord lr = new LogRecord(c.level, "Rate limit of {0} records per second exceeded, {1} records suppressed");
+            lr.setLoggerName(c.logger);
+            lr.setParameters(new Object[]{c.bucket.rule.perSecond, n});
+            lr.setSourceClassName(RateLimiter.class.getName());
+            lr.setSourceMethodName("report");
+            sink.accept(lr);
+
+        }
+
+    }
+
+    private Counter counter(String logger, int slot) {
+
+        for (int i = 0; i < rules.size(); i++) {
+            if (rules.get(i).matches(logger, SLOTS[slot])) {
+                return new Counter(logger, SLOTS[slot], buckets[i][slot]);
+            }
+        }
+        return UNLIMITED;
+
+    }
+
+    private static int slot(Level level) {
+
+        int v = level.intValue();
+        for (int i = 0; i < SLOTS.length - 1; i++) {
+            if (v >= SLOTS[i].intValue()) {
+                return i;
+            }
+        }
+        return SLOTS.length - 1;
+
+    }
+
+    /**
+     * Parses rate limit rules. Rules are separated with {@code ;}, each rule is
+     * {@code <logger prefix>[:<level>]=<records per second>[/<burst>]}. The prefix matches
+     * the logger with that name, and all of its descendants, an empty prefix matches all
+     * loggers. If the level is specified, the rule only applies to the records of that level,
+     * and below. Burst is the number of records that can be published at once, it's the same
+     * as the rate by default.
+     * @param spec rules
+     * @return parsed rules, in the order they need to be checked in
+     */
+    static List<Rule> parse(String spec) {
+
+        List<Rule> rules = new ArrayList<>();
+
+        for (String item : spec.split(";")) {
+
+            item = item.trim();
+            if (item.isEmpty()) { continue; }
+
+            try {
+
+                int eq = item.lastIndexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("No rate specified");
+                }
+
+                String prefix = item.substring(0, eq).trim();
+                Level level = null;
+                int colon = prefix.lastIndexOf(':');
+                if (colon >= 0) {
+                    level = Level.parse(prefix.substring(colon + 1).trim());
+                    prefix = prefix.substring(0, colon).trim();
+                }
+
+                String rate = item.substring(eq + 1).trim();
+                int slash = rate.indexOf('/');
+                double perSecond = Double.parseDouble(slash < 0 ? rate : rate.substring(0, slash).trim());
+                long burst = slash < 0 ? Math.max(1, (long) Math.ceil(perSecond)) : Long.parseLong(rate.substring(slash + 1).trim());
+                if (perSecond <= 0 || burst <= 0) {
+                    throw new IllegalArgumentException("Rate and burst must be positive");
+                }
+
+                rules.add(new Rule(prefix, level, perSecond, burst));
+
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Failed to parse rate limit rule "+item+" in "+spec, e);
+            }
+
+        }
+
+        // more specific rules first, rules with levels are more specific than rules without them.
+        rules.sort(Comparator.comparingInt((Rule r)->-r.prefix.length())
+                .thenComparing(r->r.level == null ? Integer.MAX_VALUE : r.level.intValue()));
+        return rules;
+
+    }
+
+    static class Rule {
+
+        final String prefix;
+        final Level level;
+        final double perSecond;
+        final long burst;
+
+        Rule(String prefix, Level level, double perSecond, long burst) {
+            this.prefix = prefix;
+            this.level = level;
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        boolean matches(String logger, Level l) {
+
+            if (level != null && l.intValue() > level.intValue()) {
+                return false;
+            }
+            if (prefix.isEmpty() || logger.equals(prefix)) {
+                return true;
+            }
+            return logger.startsWith(prefix) && logger.charAt(prefix.length()) == '.';
+
+        }
+
+    }
+
+    /**
+     * Token bucket, implemented as a generic cell rate algorithm: the only state is the
+     * theoretical arrival time of the next record, a record is allowed if it arrives no
+     * earlier than the burst tolerance before that time.
+     */
+    private static class Bucket {
+
+        final Rule rule;
+        final long interval;
+        final long tolerance;
+        final AtomicLong tat;
+
+        Bucket(Rule rule, LongSupplier clock) {
+
+            this.rule = rule;
+            interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rule.perSecond));
+            tolerance = interval * (rule.burst - 1);
+            tat = new AtomicLong(clock.getAsLong());
+
+        }
+
+        boolean tryAcquire(long now) {
+
+            while (true) {
+                long t = tat.get();
+                long next = Math.max(t, now);
+                if (next - now > tolerance) {
+                    return false;
+                }
+                if (tat.compareAndSet(t, next + interval)) {
+                    return true;
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Records of a logger and level that were suppressed since the last report, and the
+     * bucket that limits them.
+     */
+    private static class Counter {
+
+        final String logger;
+        final Level level;
+        final Bucket bucket;
+        final LongAdder suppressed = new LongAdder();
+        final AtomicBoolean queued = new AtomicBoolean();
+
+        Counter(String logger, Level level, Bucket bucket) {
+            this.logger = logger;
+            this.level = level;
+            this.bucket = bucket;
+        }
+
+    }
+
+}
@@ -0,0 +1,154 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.MsgPack;
+import codes.vps.logging.fluentd.jdk.util.PackBuffer;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.LogRecord;
+
+/**
+ * Encodes log records straight into a MessagePack map, using a list of field extractors.
+ * The {@code $tag} and {@code $timestamp} fields are not written into the map, their
+ * values are made available separately. {@link AggregatedRecord}s additionally get
+ * the aggregation fields, unless the format already has fields with those names.
+ * Encoding happens into a buffer that is confined to the calling thread and reused between records.
+ */
+class RecordEncoder {
+
+    // buffers that grew larger than this are not kept around by the threads
+    private final static int MAX_RETAINED_BUFFER = 65536;
+
+    private final static ThreadLocal<Encoded> buffers = ThreadLocal.withInitial(Encoded::new);
+
+    private final FieldExtractor tag;
+    private final FieldExtractor timestamp;
+    private final FieldExtractor [] fields;
+    private final byte [][] keys;
+    private final boolean aggregateFields;
+
+    RecordEncoder(List<FieldExtractor> extractors) {
+
+        // later extractors for the same field win, same as it is with a map
+        Map<String, FieldExtractor> byName = new LinkedHashMap<>();
+        for (FieldExtractor fe : extractors) {
+            byName.put(fe.getFieldName(), fe);
+        }
+
+        tag = byName.remove("$tag");
+        timestamp = byName.remove("$timestamp");
+
+        fields = byName.values().toArray(new FieldExtractor[0]);
+        keys = new byte[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            keys[i] = MsgPack.encodeString(String.valueOf(fields[i].getFieldName()));
+        }
+
+        aggregateFields = !byName.containsKey(Aggregator.COUNT) && !byName.containsKey(Aggregator.FIRST)
+                && !byName.containsKey(Aggregator.LAST);
+
+    }
+
+    /**
+     * Encodes the specified record. The returned object must be released with
+     * {@link Encoded#release()} once the encoded data is no longer needed.
+     * @param record record to encode
+     * @return encoded record
+     * @throws IOException if encoding fails
+     */
+    Encoded encode(LogRecord record) throws IOException {
+
+        Encoded e = buffers.get();
+        if (e.inUse) {
+            // re-entered, i.e. a toString() of a parameter logged something
+            e = new Encoded();
+        }
+
+        e.inUse = true;
+        boolean ok = false;
+
+        try {
+
+            e.tag = tag == null ? null : tag.extract(record);
+            e.timestamp = timestamp == null ? null : timestamp.extract(record);
+
+            MessagePacker packer = e.packer;
+            AggregatedRecord ar = aggregateFields && record instanceof AggregatedRecord ? (AggregatedRecord) record : null;
+            packer.packMapHeader(ar == null ? fields.length : fields.length + 3);
+            for (int i = 0; i < fields.length; i++) {
+                packer.writePayload(keys[i]);
+                fields[i].writeTo(packer, record);
+            }
+            if (ar != null) {
+                packer.packString(Aggregator.COUNT).packLong(ar.getCount());
+                packer.packString(Aggregator.FIRST).packLong(ar.getFirstMillis());
+                packer.packString(Aggregator.LAST).packLong(ar.getLastMillis());
+            }
+            packer.flush();
+            ok = true;
+
+            return e;
+
+        } finally {
+            if (!ok) {
+                e.release();
+            }
+        }
+
+    }
+
+    static class Encoded {
+
+        private final PackBuffer out = new PackBuffer(1024);
+        private final MessagePacker packer = MessagePack.newDefaultPacker(out);
+        private boolean inUse;
+
+        private Object tag;
+        private Object timestamp;
+
+        /**
+         * Value produced by the {@code $tag} extractor, if any.
+         * @return tag value, or {@code null}
+         */
+        Object getTag() {
+            return tag;
+        }
+
+        /**
+         * Value produced by the {@code $timestamp} extractor, if any.
+         * @return timestamp value, or {@code null}
+         */
+        Object getTimestamp() {
+            return timestamp;
+        }
+
+        byte [] array() {
+            return out.array();
+        }
+
+        int length() {
+            return out.size();
+        }
+
+        void release() {
+
+            tag = null;
+            timestamp = null;
+            // drops anything left over in the packer if encoding failed midway
+            packer.clear();
+            out.reset();
+            if (out.array().length > MAX_RETAINED_BUFFER) {
+                // let the thread local lose this one, next call will create a fresh one.
+                buffers.remove();
+            }
+            inUse = false;
+
+        }
+
+    }
+
+}
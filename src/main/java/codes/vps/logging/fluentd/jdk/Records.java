@@ -0,0 +1,210 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.U;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.time.Instant;
+import java.util.logging.LogRecord;
+
+/**
+ * Accessors for {@link LogRecord} properties that only exist in newer JDKs, or only
+ * have deprecated accessors in them.
+ * The best available accessor is bound once, as a constant method handle,
+ * so there is no reflection involved when reading the records.
+ */
+final class Records {
+
+    private final static MethodHandle threadId;
+    private final static MethodHandle nanos;
+    private final static MethodHandle epochSecond;
+    private final static MethodHandle nanoOfSecond;
+    private final static MethodHandle instant;
+    private final static MethodHandle setThreadId;
+    private final static MethodHandle setInstant;
+
+    static {
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        try {
+
+            MethodHandle mh;
+            try {
+                // JDK 16+
+                mh = lookup.findVirtual(LogRecord.class, "getLongThreadID", MethodType.methodType(long.class));
+            } catch (NoSuchMethodException e) {
+                mh = lookup.findVirtual(LogRecord.class, "getThreadID", MethodType.methodType(int.class))
+                        .asType(MethodType.methodType(long.class, LogRecord.class));
+            }
+            threadId = mh;
+
+            try {
+                // JDK 16+
+                mh = lookup.findVirtual(LogRecord.class, "setLongThreadID", MethodType.methodType(LogRecord.class, long.class))
+                        .asType(MethodType.methodType(void.class, LogRecord.class, long.class));
+            } catch (NoSuchMethodException e) {
+                // thread IDs that don't fit are truncated, same as LogRecord does itself
+                mh = MethodHandles.explicitCastArguments(
+                        lookup.findVirtual(LogRecord.class, "setThreadID", MethodType.methodType(void.class, int.class)),
+                        MethodType.methodType(void.class, LogRecord.class, long.class));
+            }
+            setThreadId = mh;
+
+            try {
+                // JDK 9+
+                mh = lookup.findVirtual(LogRecord.class, "setInstant", MethodType.methodType(void.class, Instant.class));
+            } catch (NoSuchMethodException e) {
+                mh = MethodHandles.filterArguments(
+                        lookup.findVirtual(LogRecord.class, "setMillis", MethodType.methodType(void.class, long.class)),
+                        1, lookup.findVirtual(Instant.class, "toEpochMilli", MethodType.methodType(long.class)));
+            }
+            setInstant = mh;
+
+            MethodHandle getInstant;
+            try {
+                // JDK 9+
+                getInstant = lookup.findVirtual(LogRecord.class, "getInstant", MethodType.methodType(Instant.class));
+            } catch (NoSuchMethodException e) {
+                getInstant = null;
+            }
+
+            if (getInstant != null) {
+                nanos = MethodHandles.filterReturnValue(getInstant,
+                        lookup.findStatic(Records.class, "instantToNanos", MethodType.methodType(long.class, Instant.class)));
+                epochSecond = MethodHandles.filterReturnValue(getInstant,
+                        lookup.findVirtual(Instant.class, "getEpochSecond", MethodType.methodType(long.class)));
+                nanoOfSecond = MethodHandles.filterReturnValue(getInstant,
+                        lookup.findVirtual(Instant.class, "getNano", MethodType.methodType(int.class)));
+                instant = getInstant;
+            } else {
+                MethodHandle getMillis = lookup.findVirtual(LogRecord.class, "getMillis", MethodType.methodType(long.class));
+                nanos = MethodHandles.filterReturnValue(getMillis,
+                        lookup.findStatic(Records.class, "millisToNanos", MethodType.methodType(long.class, long.class)));
+                epochSecond = MethodHandles.filterReturnValue(getMillis,
+                        lookup.findStatic(Records.class, "millisToSecond", MethodType.methodType(long.class, long.class)));
+                nanoOfSecond = MethodHandles.filterReturnValue(getMillis,
+                        lookup.findStatic(Records.class, "millisToNanoOfSecond", MethodType.methodType(int.class, long.class)));
+                instant = MethodHandles.filterReturnValue(getMillis,
+                        lookup.findStatic(Instant.class, "ofEpochMilli", MethodType.methodType(Instant.class, long.class)));
+            }
+
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+
+    }
+
+    private Records() {}
+
+    /**
+     * Returns thread ID of the record, as a long value when the JDK supports it.
+     * @param r log record
+     * @return thread ID
+     */
+    static long getThreadId(LogRecord r) {
+        try {
+            return (long) threadId.invokeExact(r);
+        } catch (Throwable e) {
+            throw U.doThrow(e);
+        }
+    }
+
+    /**
+     * Returns record timestamp in nanoseconds since epoch, with the precision
+     * that the JDK supports (milliseconds for JDK 8).
+     * @param r log record
+     * @return timestamp in nanoseconds
+     */
+    static long getNanos(LogRecord r) {
+        try {
+            return (long) nanos.invokeExact(r);
+        } catch (Throwable e) {
+            throw U.doThrow(e);
+        }
+    }
+
+    /**
+     * Returns seconds part of the record timestamp.
+     * @param r log record
+     * @return seconds since epoch
+     */
+    static long getEpochSecond(LogRecord r) {
+        try {
+            return (long) epochSecond.invokeExact(r);
+        } catch (Throwable e) {
+            throw U.doThrow(e);
+        }
+    }
+
+    /**
+     * Returns nanosecond-of-second part of the record timestamp, with the precision
+     * that the JDK supports (milliseconds for JDK 8).
+     * @param r log record
+     * @return nanoseconds of the second
+     */
+    static int getNanoOfSecond(LogRecord r) {
+        try {
+            return (int) nanoOfSecond.invokeExact(r);
+        } catch (Throwable e) {
+            throw U.doThrow(e);
+        }
+    }
+
+    /**
+     * Returns record timestamp as an instant. Only JDK 8 needs to allocate it.
+     * @param r log record
+     * @return record timestamp
+     */
+    static Instant getInstant(LogRecord r) {
+        try {
+            return (Instant) instant.invokeExact(r);
+        } catch (Throwable e) {
+            throw U.doThrow(e);
+        }
+    }
+
+    /**
+     * Sets thread ID of the record, as a long value when the JDK supports it.
+     * @param r log record
+     * @param id thread ID
+     */
+    static void setThreadId(LogRecord r, long id) {
+        try {
+            setThreadId.invokeExact(r, id);
+        } catch (Throwable e) {
+            throw U.doThrow(e);
+        }
+    }
+
+    /**
+     * Sets record timestamp, with the precision that the JDK supports (milliseconds for JDK 8).
+     * @param r log record
+     * @param i timestamp
+     */
+    static void setInstant(LogRecord r, Instant i) {
+        try {
+            setInstant.invokeExact(r, i);
+        } catch (Throwable e) {
+            throw U.doThrow(e);
+        }
+    }
+
+    private static long instantToNanos(Instant i) {
+        return i.getEpochSecond() * 1000000000L + i.getNano();
+    }
+
+    private static long millisToNanos(long millis) {
+        return millis * 1000000L;
+    }
+
+    private static long millisToSecond(long millis) {
+        return Math.floorDiv(millis, 1000L);
+    }
+
+    private static int millisToNanoOfSecond(long millis) {
+        return (int) Math.floorMod(millis, 1000L) * 1000000;
+    }
+
+}
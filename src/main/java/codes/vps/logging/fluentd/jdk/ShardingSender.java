@@ -0,0 +1,216 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.komamitsu.fluency.fluentd.ingester.sender.FluentdSender;
+import org.komamitsu.fluency.fluentd.ingester.sender.InetSocketSender;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends chunks to all the hosts, instead of only sending them to the first available one,
+ * as fluency does by default. Each chunk goes either to the next host in turn, or to the host
+ * that the tag of the chunk maps to on a consistent hash ring. Hosts that fluency's failure
+ * detector considers unavailable are skipped, and the chunk goes to the next host on the ring
+ * (or the next host in turn); once the host is available again, it gets its share back.
+ * If sending to a host fails, the next one is tried, same as fluency does.
+ */
+class ShardingSender extends FluentdSender {
+
+    // virtual nodes per host, so that the load of an unavailable host is spread
+    // between all the other hosts, and not just dumped onto its neighbour.
+    static final int VIRTUAL_NODES = 64;
+
+    private final List<FluentdSender> senders;
+    private final boolean hash;
+
+    // the hash ring: sorted points, and the index of the sender that owns each point
+    private final long [] points;
+    private final int [] owners;
+
+    // guarded by "this"
+    private int next;
+
+    /**
+     * Creates new sender.
+     * @param senders senders for each host
+     * @param hash {@code true} to select host by tag, {@code false} to take turns
+     */
+    ShardingSender(List<FluentdSender> senders, boolean hash) {
+
+        this.senders = senders;
+        this.hash = hash;
+
+        // the ring only depends on the host addresses, so all handlers that are
+        // configured with the same hosts map tags to the same hosts.
+        int n = senders.size() * VIRTUAL_NODES;
+        long [][] ring = new long[n][];
+        for (int i = 0; i < senders.size(); i++) {
+            String id = id(senders.get(i), i);
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring[i * VIRTUAL_NODES + v] = new long[]{hash(id + '#' + v), i};
+            }
+        }
+        Arrays.sort(ring, (a, b)->Long.compare(a[0], b[0]));
+
+        points = new long[n];
+        owners = new int[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+
+    }
+
+    @Override
+    public boolean isAvailable() {
+        for (FluentdSender s : senders) {
+            if (s.isAvailable()) { return true; }
+        }
+        return false;
+    }
+
+    @Override
+    protected synchronized void sendInternal(List<ByteBuffer> buffers, String ackToken) throws IOException {
+
+        int [] order = hash ? byTag(tag(buffers.get(0))) : byTurn();
+
+        IOException failure = null;
+        for (int i : order) {
+
+            FluentdSender s = senders.get(i);
+            if (!s.isAvailable()) { continue; }
+
+            try {
+                if (ackToken == null) {
+                    s.send(buffers);
+                } else {
+                    s.sendWithAck(buffers, ackToken);
+                }
+                return;
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        throw new IOException("All hosts are unavailable: " + senders);
+
+    }
+
+    /**
+     * Returns indexes of all senders, starting with the next one in turn.
+     */
+    private int [] byTurn() {
+
+        int n = senders.size();
+        int start = next;
+        next = (next + 1) % n;
+
+        int [] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = (start + i) % n;
+        }
+        return order;
+
+    }
+
+    /**
+     * Returns indexes of all senders, in the order they are met going around the ring,
+     * starting from the point of the tag.
+     */
+    int [] byTag(String tag) {
+
+        int n = senders.size();
+        int [] order = new int[n];
+        boolean [] seen = new boolean[n];
+        int count = 0;
+
+        int p = Arrays.binarySearch(points, hash(tag));
+        if (p < 0) { p = -p - 1; }
+
+        for (int i = 0; i < points.length && count < n; i++) {
+            int owner = owners[(p + i) % points.length];
+            if (!seen[owner]) {
+                seen[owner] = true;
+                order[count++] = owner;
+            }
+        }
+        return order;
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        IOException failure = null;
+        for (FluentdSender s : senders) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+    }
+
+    @Override
+    public String toString() {
+        return "ShardingSender{" + (hash ? "hash" : "round robin") + ", senders=" + senders + '}';
+    }
+
+    /**
+     * Reads the tag out of the forward protocol header: {@code [tag, entries, ...]}.
+     */
+    private static String tag(ByteBuffer header) throws IOException {
+        try (MessageUnpacker mu = MessagePack.newDefaultUnpacker(header.duplicate())) {
+            mu.unpackArrayHeader();
+            return mu.unpackString();
+        }
+    }
+
+    private static String id(FluentdSender s, int index) {
+        if (s instanceof InetSocketSender) {
+            InetSocketSender<?> is = (InetSocketSender<?>) s;
+            return is.getHost() + ':' + is.getPort();
+        }
+        return String.valueOf(index);
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes, with a final mix so that similar strings
+     * end up far apart on the ring.
+     */
+    static long hash(String s) {
+
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+
+    }
+
+}
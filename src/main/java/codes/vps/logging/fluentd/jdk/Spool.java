@@ -0,0 +1,603 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.RunnableT;
+import codes.vps.logging.fluentd.jdk.util.U;
+import org.komamitsu.fluency.EventTime;
+import org.komamitsu.fluency.ingester.Ingester;
+import org.komamitsu.fluency.ingester.sender.Sender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead spool of encoded events. Every event is appended to a memory-mapped segment file
+ * before it's handed to fluency, so it survives the process being killed (but not the OS crashing,
+ * nothing is forced to the disk). Segments are deleted once all the events in them have been sent
+ * (and acknowledged, if acknowledgements are enabled); the segments that are left over when the
+ * process starts again are replayed. The number of segments is bounded, when a new segment is needed
+ * and there are too many, the oldest segment is deleted, whether its events were sent or not.
+ * <p>
+ * Each segment starts with a header (magic and version), and every record in it has its length
+ * and its CRC32, recovery stops reading a segment at the first record that doesn't check out.
+ * Delivery is at-least-once: events of a segment that was only partially sent are all replayed.
+ * <p>
+ * Fluency doesn't tell which events a chunk had in it, but it keeps the events of each tag in order,
+ * and frames each event in the same way, so the events of a sent chunk are found by counting off
+ * their sizes in the order they were emitted, see {@link #track(Ingester, int)}.
+ * <p>
+ * Each stripe appends to its own active segment, under its own lock; the spool itself is only locked
+ * to roll over to a new segment, and to delete segments. Segments are unmapped before they are deleted,
+ * so their files are actually gone (and can be deleted at all, on Windows).
+ */
+class Spool {
+
+    // fluency frames the record of an event as [time, record]: fixarray header,
+    // and the EventTime as fixext 8
+    static final int ENTRY_OVERHEAD = 1 + 10;
+
+    static final int HEADER_SIZE = 16;
+    private final static byte [] MAGIC = "FJDKSPOL".getBytes(StandardCharsets.US_ASCII);
+    private final static int VERSION = 1;
+
+    // length and CRC of each record
+    private final static int RECORD_OVERHEAD = 8;
+
+    private final static String PREFIX = "spool-";
+    private final static String SUFFIX = ".seg";
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final List<Stripe> stripes = new ArrayList<>();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder corrupted = new LongAdder();
+
+    // guarded by "this"
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final List<File> recovered = new ArrayList<>();
+    // files of the deleted segments that could not be removed yet
+    private final List<File> undeleted = new ArrayList<>();
+    private long nextId;
+
+    private final static MethodHandle unmap;
+
+    static {
+
+        MethodHandle mh = null;
+
+        try {
+            try {
+                // JDK 9+
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field f = unsafeClass.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                mh = MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner",
+                        MethodType.methodType(void.class, ByteBuffer.class)).bindTo(f.get(null));
+            } catch (NoSuchMethodException e) {
+                // JDK 8
+                Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                mh = MethodHandles.filterReturnValue(
+                        MethodHandles.lookup().unreflect(cleaner).asType(MethodType.methodType(Object.class, ByteBuffer.class)),
+                        MethodHandles.lookup().unreflect(clean).asType(MethodType.methodType(void.class, Object.class)));
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the mappings go away when the buffers are collected
+        }
+
+        unmap = mh;
+
+    }
+
+    /**
+     * Opens the spool. Segments that are already in the directory are kept for {@link #recover(Replay)}.
+     * @param dir spool directory, created if it doesn't exist
+     * @param segmentSize size of each segment file
+     * @param maxSize maximum total size of the segment files, at least one more segment than there
+     * are stripes is always kept
+     * @param stripes number of fluency instances that events are emitted to
+     * @throws IOException if the directory can not be used
+     */
+    Spool(File dir, int segmentSize, long maxSize, int stripes) throws IOException {
+
+        if (segmentSize <= HEADER_SIZE + RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("Spool segment size is too small: " + segmentSize);
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create spool directory " + dir);
+        }
+
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.max(stripes + 1, Math.min(Integer.MAX_VALUE, maxSize / segmentSize));
+        for (int i = 0; i < stripes; i++) {
+            this.stripes.add(new Stripe());
+        }
+
+        File [] files = dir.listFiles((d, name)->name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files) {
+                long id = id(f);
+                if (id < 0) { continue; }
+                recovered.add(f);
+                nextId = Math.max(nextId, id + 1);
+            }
+        }
+
+    }
+
+    /**
+     * Appends the event to the spool, and emits it.
+     * @param stripe index of the fluency instance that the event is emitted to
+     * @param tag event tag
+     * @param time event time
+     * @param data encoded record
+     * @param off offset of the record
+     * @param len length of the record
+     * @param emit emits the event to fluency
+     * @throws IOException if emitting fails, the event is then not kept in the spool
+     */
+    void emit(int stripe, String tag, EventTime time, byte [] data, int off, int len, RunnableT<IOException> emit)
+            throws IOException {
+
+        Stripe st = stripes.get(stripe);
+
+        while (true) {
+
+            Pending p = st.pending.computeIfAbsent(tag, t->new Pending());
+
+            // the events must be queued up in the same order they are in the fluency buffer
+            synchronized (p) {
+
+                if (p.removed) {
+                    // drained and removed since it was looked up
+                    continue;
+                }
+
+                Segment s = append(st, tag, time, data, off, len);
+                try {
+                    emit.run();
+                } catch (Throwable e) {
+                    release(s);
+                    throw e;
+                }
+                p.entries.add(new Entry(s, ENTRY_OVERHEAD + len));
+                return;
+
+            }
+
+        }
+
+    }
+
+    /**
+     * Wraps the ingester of a fluency instance, so the events that it sends are
+     * released from the spool.
+     * @param ingester ingester to wrap
+     * @param stripe index of the fluency instance
+     * @return wrapped ingester
+     */
+    Ingester track(Ingester ingester, int stripe) {
+
+        return new Ingester() {
+
+            @Override
+            public void ingest(String tag, ByteBuffer dataBuffer) throws IOException {
+
+                int size = dataBuffer.remaining();
+                ingester.ingest(tag, dataBuffer);
+
+                Stripe st = stripes.get(stripe);
+                Pending p = st.pending.get(tag);
+                if (p == null) {
+                    // i.e. restored by fluency from its own backup
+                    return;
+                }
+                synchronized (p) {
+                    Entry e;
+                    while (size > 0 && (e = p.entries.poll()) != null) {
+                        size -= e.size;
+                        release(e.segment);
+                    }
+                    // tags come and go, only the tags with events in flight are kept
+                    if (p.entries.isEmpty()) {
+                        p.removed = true;
+                        st.pending.remove(tag, p);
+                    }
+                }
+
+            }
+
+            @Override
+            public Sender getSender() {
+                return ingester.getSender();
+            }
+
+            @Override
+            public void close() throws IOException {
+                ingester.close();
+            }
+
+        };
+
+    }
+
+    /**
+     * Replays the events from the segments that were left over from the last time. The replayed
+     * events are expected to be emitted again, through {@link #emit}, the old segments
+     * are deleted once they are replayed.
+     * @param replay receives the events
+     * @return number of replayed events
+     * @throws IOException if reading the segments, or emitting the events fails
+     */
+    long recover(Replay replay) throws IOException {
+
+        List<File> files;
+        synchronized (this) {
+            files = new ArrayList<>(recovered);
+        }
+
+        long count = 0;
+        CRC32 check = new CRC32();
+
+        for (File f : files) {
+
+            // read, and not mapped, so the file can be deleted right after
+            ByteBuffer b;
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                b = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, raf.length()));
+                FileChannel ch = raf.getChannel();
+                while (b.hasRemaining() && ch.read(b) >= 0) {
+                    // keep reading
+                }
+                ((Buffer) b).flip();
+            }
+
+            if (!checkHeader(b)) {
+                corrupted.increment();
+            } else {
+
+                int pos = HEADER_SIZE;
+                while (pos + RECORD_OVERHEAD <= b.limit()) {
+
+                    int length = b.getInt(pos);
+                    if (length == 0) {
+                        // end of the records
+                        break;
+                    }
+                    if (length < 0 || length > b.limit() - pos - RECORD_OVERHEAD) {
+                        corrupted.increment();
+                        break;
+                    }
+
+                    // cast to Buffer, ByteBuffer only overrides position(int) and limit(int) since JDK 9
+                    ByteBuffer record = (ByteBuffer) ((Buffer) b.duplicate()).position(pos + RECORD_OVERHEAD).limit(pos + RECORD_OVERHEAD + length);
+                    check.reset();
+                    check.update(record.duplicate());
+                    if ((int) check.getValue() != b.getInt(pos + 4)) {
+                        // a torn write, or the file got damaged, nothing after it can be trusted
+                        corrupted.increment();
+                        break;
+                    }
+
+                    byte [] tag = new byte[record.getShort() & 0xffff];
+                    record.get(tag);
+                    long seconds = record.getLong();
+                    long nanos = record.getInt() & 0xffffffffL;
+                    byte [] data = new byte[record.remaining()];
+                    record.get(data);
+
+                    replay.accept(new String(tag, StandardCharsets.UTF_8), new EventTime(seconds, nanos), data, 0, data.length);
+                    count++;
+                    pos += RECORD_OVERHEAD + length;
+
+                }
+
+            }
+
+            if (!f.delete()) {
+                throw new IOException("Failed to delete replayed spool segment " + f);
+            }
+            synchronized (this) {
+                recovered.remove(f);
+            }
+
+        }
+
+        return count;
+
+    }
+
+    /**
+     * Returns number of unsent events that were deleted from the spool to keep it within its size.
+     * @return number of evicted events
+     */
+    long getEvicted() {
+        return evicted.sum();
+    }
+
+    /**
+     * Returns number of corrupted segments or records found during recovery.
+     * @return number of corruptions
+     */
+    long getCorrupted() {
+        return corrupted.sum();
+    }
+
+    /**
+     * Returns number of segment files that the spool currently has.
+     * @return number of segments
+     */
+    synchronized int getSegmentCount() {
+        return segments.size() + recovered.size() + undeleted.size();
+    }
+
+    /**
+     * Returns number of tags that have events in flight, in all stripes.
+     * @return number of tags
+     */
+    int getPendingTags() {
+        int count = 0;
+        for (Stripe st : stripes) {
+            count += st.pending.size();
+        }
+        return count;
+    }
+
+    /**
+     * Closes the spool. The segments that still have unsent events in them are
+     * kept for the next time.
+     */
+    void close() {
+
+        for (Stripe st : stripes) {
+            synchronized (st) {
+                synchronized (this) {
+                    if (st.active != null) {
+                        st.active.sealed = true;
+                        st.active = null;
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            for (Segment s : new ArrayList<>(segments)) {
+                if (s.pending.get() == 0) {
+                    delete(s);
+                }
+            }
+            purge();
+        }
+
+    }
+
+    private Segment append(Stripe st, String tag, EventTime time, byte [] data, int off, int len) throws IOException {
+
+        byte [] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + tagBytes.length + 8 + 4 + len;
+        if (tagBytes.length > 0xffff || RECORD_OVERHEAD + length > segmentSize - HEADER_SIZE) {
+            // can't be spooled, the event is only sent
+            return null;
+        }
+
+        synchronized (st) {
+
+            if (st.active == null || st.active.buffer.remaining() < RECORD_OVERHEAD + length) {
+                roll(st);
+            }
+
+            Segment active = st.active;
+            MappedByteBuffer b = active.buffer;
+            int start = b.position();
+            ((Buffer) b).position(start + RECORD_OVERHEAD);
+            b.putShort((short) tagBytes.length);
+            b.put(tagBytes);
+            b.putLong(time.getSeconds());
+            b.putInt((int) time.getNanoseconds());
+            b.put(data, off, len);
+
+            CRC32 crc = st.crc;
+            crc.reset();
+            crc.update((ByteBuffer) ((Buffer) b.duplicate()).position(start + RECORD_OVERHEAD).limit(b.position()));
+            b.putInt(start + 4, (int) crc.getValue());
+            // the length goes in last, until then, the record doesn't exist
+            b.putInt(start, length);
+
+            active.pending.incrementAndGet();
+            return active;
+
+        }
+
+    }
+
+    // invoked with the stripe locked
+    private void roll(Stripe st) throws IOException {
+
+        long id;
+
+        synchronized (this) {
+
+            if (st.active != null) {
+                st.active.sealed = true;
+                if (st.active.pending.get() == 0) {
+                    delete(st.active);
+                }
+                st.active = null;
+            }
+
+            purge();
+
+            // the replayed segments are gone by the time anything new is appended, unless recovery failed;
+            // the active segments of the other stripes are still written to, and are never evicted
+            int count = segments.size() + recovered.size() + undeleted.size();
+            for (Iterator<Segment> i = segments.iterator(); count >= maxSegments && i.hasNext(); ) {
+                Segment oldest = i.next();
+                if (!oldest.sealed) { continue; }
+                i.remove();
+                evicted.add(oldest.pending.get());
+                remove(oldest);
+                count--;
+            }
+
+            id = nextId++;
+
+        }
+
+        File f = new File(dir, String.format("%s%016x%s", PREFIX, id, SUFFIX));
+        MappedByteBuffer b;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(segmentSize);
+            b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        b.put(MAGIC);
+        b.putInt(VERSION);
+        b.putInt(0);
+
+        Segment s = new Segment(f, b);
+        synchronized (this) {
+            segments.addLast(s);
+        }
+        st.active = s;
+
+    }
+
+    private void release(Segment s) {
+
+        if (s == null) { return; }
+        if (s.pending.decrementAndGet() == 0) {
+            synchronized (this) {
+                if (s.sealed && s.pending.get() == 0) {
+                    delete(s);
+                }
+            }
+        }
+
+    }
+
+    // invoked with the spool locked, the segment must be sealed
+    private void delete(Segment s) {
+
+        if (segments.remove(s)) {
+            remove(s);
+        }
+
+    }
+
+    private void remove(Segment s) {
+
+        if (unmap != null) {
+            try {
+                unmap.invokeExact((ByteBuffer) s.buffer);
+            } catch (Throwable e) {
+                throw U.doThrow(e);
+            }
+        }
+        if (!s.file.delete() && s.file.exists()) {
+            // retried when rolling over, and when closing
+            undeleted.add(s.file);
+        }
+
+    }
+
+    private void purge() {
+        undeleted.removeIf(f->f.delete() || !f.exists());
+    }
+
+    private static boolean checkHeader(ByteBuffer b) {
+
+        if (b.limit() < HEADER_SIZE) { return false; }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (b.get(i) != MAGIC[i]) { return false; }
+        }
+        return b.getInt(MAGIC.length) == VERSION;
+
+    }
+
+    private static long id(File f) {
+
+        String name = f.getName();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+    /**
+     * Receives replayed events.
+     */
+    @FunctionalInterface
+    interface Replay {
+        void accept(String tag, EventTime time, byte [] data, int off, int len) throws IOException;
+    }
+
+    private static class Stripe {
+
+        final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+        // guarded by "this"
+        final CRC32 crc = new CRC32();
+        Segment active;
+
+    }
+
+    private static class Segment {
+
+        final File file;
+        final MappedByteBuffer buffer;
+        // events appended, and not yet sent
+        final AtomicInteger pending = new AtomicInteger();
+        // guarded by the spool, appends to a sealed segment are over
+        boolean sealed;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+    }
+
+    private static class Pending {
+        // guarded by "this"
+        final Deque<Entry> entries = new ArrayDeque<>();
+        // guarded by "this", set when it's removed from the stripe, events can't be added to it anymore
+        boolean removed;
+    }
+
+    private static class Entry {
+
+        final Segment segment;
+        final int size;
+
+        Entry(Segment segment, int size) {
+            this.segment = segment;
+            this.size = size;
+        }
+
+    }
+
+}
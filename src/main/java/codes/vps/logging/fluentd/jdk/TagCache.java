@@ -0,0 +1,48 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.BoundedCache;
+
+/**
+ * Resolves fluentd tags from logger names (or from the {@code $tag} values), applying
+ * the tag prefix. There are normally only so many loggers in an application, so the
+ * resulting tags are cached. The cache is
+ * bounded, so dynamically named loggers only cost a cache miss.
+ */
+class TagCache {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private final String prefix;
+    private final BoundedCache<String, String> cache;
+
+    TagCache(String prefix, int capacity) {
+        this.prefix = prefix == null ? "" : prefix;
+        this.cache = new BoundedCache<>(capacity);
+    }
+
+    /**
+     * Returns tag for the specified name.
+     * @param name logger name, or tag value, {@code null} is treated as an empty string
+     * @return tag, with the prefix applied
+     */
+    String resolve(String name) {
+
+        if (name == null) { name = ""; }
+
+        String tag = cache.get(name);
+        if (tag == null) {
+            tag = cache.put(name, prefix + name);
+        }
+        return tag;
+
+    }
+
+    long getHits() {
+        return cache.getHits();
+    }
+
+    long getMisses() {
+        return cache.getMisses();
+    }
+
+}
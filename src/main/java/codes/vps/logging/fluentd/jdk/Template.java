@@ -0,0 +1,385 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.U;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.LogRecord;
+
+/**
+ * Compiled form of a field format. The format is represented as a flat list of
+ * operations, each operation appends a single segment of the value, and adjacent
+ * constants are merged together at compile time. When the value is made up of multiple
+ * segments, all of them are appended into a single thread-confined {@link StringBuilder}.
+ */
+class Template {
+
+    static final byte OP_CONST = 0;
+    static final byte OP_LEVEL = 2;
+    static final byte OP_LEVEL10N = 3;
+    static final byte OP_SEQUENCE = 4;
+    static final byte OP_CLASS = 5;
+    static final byte OP_METHOD = 6;
+    static final byte OP_MESSAGE = 7;
+    static final byte OP_L10N = 8;
+    static final byte OP_PARAMS = 9;
+    static final byte OP_LOGGER = 10;
+    static final byte OP_MILLIS = 11;
+    static final byte OP_NANOS = 12;
+    static final byte OP_TID = 13;
+    static final byte OP_TRACE = 14;
+    static final byte OP_DATE = 15;
+    static final byte OP_INSTANT = 16;
+    static final byte OP_PARAMS_ARRAY = 17;
+    static final byte OP_FRAMES = 18;
+
+    // buffers that grew larger than this are not kept around by the threads
+    private final static int MAX_RETAINED_BUFFER = 16384;
+
+    private final static ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(Buffer::new);
+
+    private final byte [] ops;
+    private final Object [] args;
+
+    private Template(byte [] ops, Object [] args) {
+        this.ops = ops;
+        this.args = args;
+    }
+
+    /**
+     * Produces the value of the template for the specified record. If the template
+     * consists of a single operation, the value that the operation produces is returned
+     * as is (e.g., {@code ${millis}} returns a {@link Long}), otherwise a string is returned.
+     * @param l record to evaluate the template for
+     * @return template value
+     */
+    Object evaluate(LogRecord l) {
+
+        switch (ops.length) {
+            case 0:
+                return "";
+            case 1:
+                return value(ops[0], args[0], l);
+        }
+
+        Buffer buf = buffers.get();
+        if (buf.inUse) {
+            // re-entered, i.e. a toString() of a parameter logged something
+            return appendTo(new StringBuilder(), l).toString();
+        }
+
+        buf.inUse = true;
+        try {
+            StringBuilder sb = buf.sb;
+            sb.setLength(0);
+            String result = appendTo(sb, l).toString();
+            if (sb.capacity() > MAX_RETAINED_BUFFER) {
+                buf.sb = new StringBuilder();
+            }
+            return result;
+        } finally {
+            buf.inUse = false;
+        }
+
+    }
+
+    /**
+     * Produces the value of the template as a number. The numeric variables are
+     * returned as they are, when they are the only operation of the template, anything
+     * else is converted.
+     * @param l record to evaluate the template for
+     * @return template value
+     * @throws NumberFormatException if the value is not a number
+     */
+    long evaluateLong(LogRecord l) {
+
+        if (ops.length == 1) {
+            switch (ops[0]) {
+                case OP_SEQUENCE:
+                    return l.getSequenceNumber();
+                case OP_MILLIS:
+                    return l.getMillis();
+                case OP_NANOS:
+                    return Records.getNanos(l);
+                case OP_TID:
+                    return Records.getThreadId(l);
+            }
+        }
+
+        return U.toLong(evaluate(l));
+
+    }
+
+    /**
+     * Returns whether the template consists of a single variable that is a number.
+     * @return {@code true} if the template always produces a number
+     */
+    boolean isNumeric() {
+        if (ops.length != 1) { return false; }
+        switch (ops[0]) {
+            case OP_SEQUENCE:
+            case OP_MILLIS:
+            case OP_NANOS:
+            case OP_TID:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns whether the template consists of a single variable that is a name: of the source class
+     * or method, of the logger, or of the level. Such names come from a limited set.
+     * @return {@code true} if the template always produces a name
+     */
+    boolean isName() {
+        if (ops.length != 1) { return false; }
+        switch (ops[0]) {
+            case OP_CLASS:
+            case OP_METHOD:
+            case OP_LOGGER:
+            case OP_LEVEL:
+            case OP_LEVEL10N:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns whether the template uses caller information, i.e. {@code ${class}} or {@code ${method}}.
+     * @return {@code true} if the source class or method of the records is needed
+     */
+    boolean usesCaller() {
+        for (byte op : ops) {
+            if (op == OP_CLASS || op == OP_METHOD) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the same template, but with the caller variables replaced with {@code null}s,
+     * i.e. what they produce for records that have no caller information.
+     * @return template without caller variables
+     */
+    Template withoutCaller() {
+
+        Builder b = new Builder();
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == OP_CLASS || ops[i] == OP_METHOD) {
+                b.constant(null);
+            } else if (ops[i] == OP_CONST) {
+                b.constant(args[i]);
+            } else {
+                b.add(ops[i], args[i]);
+            }
+        }
+        return b.build();
+
+    }
+
+    /**
+     * Returns whether the template produces the same value for any record.
+     * Such templates can be evaluated with a {@code null} record.
+     * @return {@code true} if the template is constant.
+     */
+    boolean isConstant() {
+        return ops.length == 0 || (ops.length == 1 && ops[0] == OP_CONST);
+    }
+
+    /**
+     * Returns whether the template consists of the specified operation alone.
+     * @param op operation
+     * @return {@code true} if the template is just that operation
+     */
+    boolean isOnly(byte op) {
+        return ops.length == 1 && ops[0] == op;
+    }
+
+    /**
+     * Adds the trace renderers that the template uses to the specified collection.
+     * @param to collection to add the renderers to
+     */
+    void addTraceRenderers(Collection<TraceRenderer> to) {
+        for (Object arg : args) {
+            if (arg instanceof TraceRenderer) {
+                to.add((TraceRenderer) arg);
+            }
+        }
+    }
+
+    /**
+     * Returns argument of the first operation of the template.
+     * @return operation argument, or {@code null} if the template is empty
+     */
+    Object getArg() {
+        return args.length == 0 ? null : args[0];
+    }
+
+    /**
+     * Appends all segments of the template into the specified string builder.
+     * @param sb string builder to append to
+     * @param l record to evaluate the template for
+     * @return the specified string builder
+     */
+    StringBuilder appendTo(StringBuilder sb, LogRecord l) {
+
+        for (int i = 0; i < ops.length; i++) {
+
+            Object arg = args[i];
+
+            switch (ops[i]) {
+                case OP_CONST:
+                    sb.append(arg);
+                    break;
+                case OP_SEQUENCE:
+                    sb.append(l.getSequenceNumber());
+                    break;
+                case OP_MILLIS:
+                    sb.append(l.getMillis());
+                    break;
+                case OP_NANOS:
+                    sb.append(Records.getNanos(l));
+                    break;
+                case OP_TID:
+                    sb.append(Records.getThreadId(l));
+                    break;
+                case OP_PARAMS:
+                case OP_PARAMS_ARRAY:
+                    appendParams(sb, l);
+                    break;
+                case OP_TRACE:
+                case OP_FRAMES:
+                    ((TraceRenderer) arg).appendTo(sb, l.getThrown());
+                    break;
+                case OP_DATE:
+                    ((TimestampFormat) arg).appendTo(sb, l.getMillis());
+                    break;
+                default:
+                    sb.append(value(ops[i], arg, l));
+            }
+
+        }
+
+        return sb;
+
+    }
+
+    private static Object value(byte op, Object arg, LogRecord l) {
+
+        switch (op) {
+            case OP_CONST:
+                return arg;
+            case OP_LEVEL:
+                return l.getLevel().getName();
+            case OP_LEVEL10N:
+                return l.getLevel().getLocalizedName();
+            case OP_SEQUENCE:
+                return l.getSequenceNumber();
+            case OP_CLASS:
+                return l.getSourceClassName();
+            case OP_METHOD:
+                return l.getSourceMethodName();
+            case OP_MESSAGE:
+                return l.getMessage();
+            case OP_L10N:
+                return U.formatMessage(l);
+            case OP_PARAMS:
+                return appendParams(new StringBuilder(), l).toString();
+            case OP_PARAMS_ARRAY: {
+                Object [] ps = l.getParameters();
+                return ps == null ? Collections.emptyList() : Arrays.asList(ps);
+            }
+            case OP_LOGGER:
+                return l.getLoggerName();
+            case OP_MILLIS:
+                return l.getMillis();
+            case OP_NANOS:
+                return Records.getNanos(l);
+            case OP_TID:
+                return Records.getThreadId(l);
+            case OP_TRACE:
+                return ((TraceRenderer) arg).render(l.getThrown());
+            case OP_FRAMES:
+                return ((TraceRenderer) arg).frames(l.getThrown());
+            case OP_DATE:
+                return ((TimestampFormat) arg).format(l.getMillis());
+            case OP_INSTANT:
+                return Records.getInstant(l);
+            default:
+                throw new IllegalStateException("Unknown template operation "+op);
+        }
+
+    }
+
+    private static StringBuilder appendParams(StringBuilder sb, LogRecord l) {
+
+        Object [] ps = l.getParameters();
+        if (ps != null) {
+            for (int i = 0; i < ps.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(ps[i]);
+            }
+        }
+        return sb;
+
+    }
+
+    private static class Buffer {
+        StringBuilder sb = new StringBuilder();
+        boolean inUse;
+    }
+
+    /**
+     * Collects template operations, merging adjacent constants. A constant that is
+     * not merged with anything keeps its type (i.e. {@code ${pid}} is a number).
+     */
+    static class Builder {
+
+        private final List<Byte> ops = new ArrayList<>();
+        private final List<Object> args = new ArrayList<>();
+
+        Builder constant(Object c) {
+
+            if ("".equals(c)) { return this; }
+
+            int last = ops.size() - 1;
+            if (last >= 0 && ops.get(last) == OP_CONST) {
+                args.set(last, String.valueOf(args.get(last)) + c);
+            } else {
+                add(OP_CONST, c);
+            }
+            return this;
+
+        }
+
+        Builder add(byte op, Object arg) {
+            ops.add(op);
+            args.add(arg);
+            return this;
+        }
+
+        Builder add(byte op) {
+            return add(op, null);
+        }
+
+        Template build() {
+
+            byte [] o = new byte[ops.size()];
+            for (int i = 0; i < o.length; i++) {
+                o[i] = ops.get(i);
+            }
+            return new Template(o, args.toArray());
+
+        }
+
+    }
+
+}
@@ -0,0 +1,330 @@
+package codes.vps.logging.fluentd.jdk;
+
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DecimalStyle;
+import java.time.format.SignStyle;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe formatter of millisecond timestamps, that accepts {@link SimpleDateFormat}
+ * patterns and produces the same output. Everything but the millisecond fields
+ * is rendered once per second and the result is cached, so for most records only the
+ * millisecond digits need to be produced. Numeric fields and zone offsets are rendered
+ * with {@code java.time}; patterns that contain text fields (or used with non-gregorian
+ * calendars) are rendered with a private copy of {@link SimpleDateFormat}.
+ */
+class TimestampFormat {
+
+    // stands in for millisecond fields in the legacy pattern, as it's not
+    // a pattern letter, it doesn't need quoting.
+    private final static char MARKER = '\uffff';
+
+    private final ZoneId zone;
+    private final Locale locale;
+    private final char zeroDigit;
+
+    // parts that are rendered once a second, and the widths of millisecond
+    // fields between them. There is always one more list of parts than there are
+    // millisecond fields.
+    private final Part [][] chunks;
+    private final int [] millisWidths;
+    // used instead of the parts when the pattern has fields that java.time
+    // renders differently
+    private final SimpleDateFormat legacy;
+
+    // indexed by the parity of the second, so records from two adjacent
+    // seconds don't keep evicting each other.
+    private final AtomicReferenceArray<Rendered> cache = new AtomicReferenceArray<>(2);
+
+    /**
+     * Creates new timestamp format.
+     * @param pattern {@link SimpleDateFormat} pattern
+     * @param zone zone to render the time in, {@code null} for system default zone.
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    TimestampFormat(String pattern, ZoneId zone) {
+
+        // this throws for invalid patterns, with the same message the handler always did.
+        SimpleDateFormat proto = new SimpleDateFormat(pattern);
+
+        this.zone = zone == null ? ZoneId.systemDefault() : zone;
+        this.locale = Locale.getDefault(Locale.Category.FORMAT);
+        this.zeroDigit = DecimalFormatSymbols.getInstance(locale).getZeroDigit();
+
+        proto.setTimeZone(TimeZone.getTimeZone(this.zone));
+
+        // non-gregorian default calendars (i.e. Thai Buddhist) number the years differently
+        boolean javaTime = proto.getCalendar().getClass() == GregorianCalendar.class;
+
+        List<List<Part>> chunks = new ArrayList<>();
+        List<Integer> widths = new ArrayList<>();
+        List<Part> current = new ArrayList<>();
+        // same pattern, with millisecond fields replaced by markers
+        StringBuilder legacy = new StringBuilder();
+
+        int len = pattern.length();
+        boolean quoted = false;
+
+        for (int i = 0; i < len; ) {
+
+            char c = pattern.charAt(i);
+
+            if (c == '\'') {
+                if (i + 1 < len && pattern.charAt(i + 1) == '\'') {
+                    current.add(new Literal("'"));
+                    legacy.append("''");
+                    i += 2;
+                } else {
+                    quoted = !quoted;
+                    legacy.append(c);
+                    i++;
+                }
+                continue;
+            }
+
+            if (quoted || !isLetter(c)) {
+                current.add(new Literal(String.valueOf(c)));
+                legacy.append(c);
+                i++;
+                continue;
+            }
+
+            int count = 1;
+            while (i + count < len && pattern.charAt(i + count) == c) { count++; }
+            i += count;
+
+            if (c == 'S') {
+                chunks.add(current);
+                widths.add(count);
+                current = new ArrayList<>();
+                legacy.append(MARKER);
+                continue;
+            }
+
+            legacy.append(pattern, i - count, i);
+
+            DateTimeFormatter dtf = javaTime(c, count);
+            if (dtf == null) {
+                javaTime = false;
+            } else {
+                current.add(new JavaTime(dtf.withLocale(locale).withDecimalStyle(DecimalStyle.of(locale))));
+            }
+
+        }
+
+        chunks.add(current);
+
+        if (javaTime) {
+            this.chunks = new Part[chunks.size()][];
+            for (int i = 0; i < chunks.size(); i++) {
+                this.chunks[i] = chunks.get(i).toArray(new Part[0]);
+            }
+            this.legacy = null;
+        } else {
+            // text fields depend on each other (i.e. month names have a different form
+            // when there is a day of month), so the whole pattern is rendered at once.
+            this.chunks = null;
+            this.legacy = new SimpleDateFormat(legacy.toString(), locale);
+            this.legacy.setTimeZone(proto.getTimeZone());
+        }
+
+        this.millisWidths = new int[widths.size()];
+        for (int i = 0; i < millisWidths.length; i++) {
+            millisWidths[i] = widths.get(i);
+        }
+
+    }
+
+    String format(long millis) {
+        return appendTo(new StringBuilder(32), millis).toString();
+    }
+
+    StringBuilder appendTo(StringBuilder sb, long millis) {
+
+        long second = Math.floorDiv(millis, 1000L);
+        int ms = (int) Math.floorMod(millis, 1000L);
+
+        int slot = (int) (second & 1);
+        Rendered r = cache.get(slot);
+        if (r == null || r.second != second) {
+            r = render(second);
+            cache.set(slot, r);
+        }
+
+        String [] text = r.text;
+        sb.append(text[0]);
+        for (int i = 0; i < millisWidths.length; i++) {
+            appendMillis(sb, ms, millisWidths[i]);
+            sb.append(text[i + 1]);
+        }
+
+        return sb;
+
+    }
+
+    private void appendMillis(StringBuilder sb, int ms, int width) {
+
+        int digits = ms >= 100 ? 3 : ms >= 10 ? 2 : 1;
+        for (int i = digits; i < width; i++) {
+            sb.append(zeroDigit);
+        }
+
+        int offset = zeroDigit - '0';
+        if (digits >= 3) { sb.append((char) (ms / 100 + '0' + offset)); }
+        if (digits >= 2) { sb.append((char) (ms / 10 % 10 + '0' + offset)); }
+        sb.append((char) (ms % 10 + '0' + offset));
+
+    }
+
+    private Rendered render(long second) {
+
+        String [] text;
+
+        if (legacy != null) {
+            // only happens once a second, a private copy is cheaper than locking
+            String s = ((SimpleDateFormat) legacy.clone()).format(new Date(second * 1000L));
+            text = s.split(String.valueOf(MARKER), -1);
+        } else {
+            ZonedDateTime zdt = Instant.ofEpochSecond(second).atZone(zone);
+            text = new String[chunks.length];
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < chunks.length; i++) {
+                sb.setLength(0);
+                for (Part p : chunks[i]) {
+                    p.render(sb, zdt);
+                }
+                text[i] = sb.toString();
+            }
+        }
+
+        return new Rendered(second, text);
+
+    }
+
+    /**
+     * Maps a {@link SimpleDateFormat} field onto a {@link DateTimeFormatter} that
+     * produces identical output.
+     * @return formatter, or {@code null} if there is no such formatter.
+     */
+    private static DateTimeFormatter javaTime(char c, int count) {
+
+        DateTimeFormatterBuilder b = new DateTimeFormatterBuilder();
+
+        switch (c) {
+            case 'y':
+                if (count == 2) {
+                    return b.appendValueReduced(ChronoField.YEAR_OF_ERA, 2, 2, 2000).toFormatter();
+                }
+                return numeric(b, ChronoField.YEAR_OF_ERA, count);
+            case 'M':
+                return count > 2 ? null : numeric(b, ChronoField.MONTH_OF_YEAR, count);
+            case 'd':
+                return numeric(b, ChronoField.DAY_OF_MONTH, count);
+            case 'H':
+                return numeric(b, ChronoField.HOUR_OF_DAY, count);
+            case 'k':
+                return numeric(b, ChronoField.CLOCK_HOUR_OF_DAY, count);
+            case 'K':
+                return numeric(b, ChronoField.HOUR_OF_AMPM, count);
+            case 'h':
+                return numeric(b, ChronoField.CLOCK_HOUR_OF_AMPM, count);
+            case 'm':
+                return numeric(b, ChronoField.MINUTE_OF_HOUR, count);
+            case 's':
+                return numeric(b, ChronoField.SECOND_OF_MINUTE, count);
+            case 'D':
+                return numeric(b, ChronoField.DAY_OF_YEAR, count);
+            case 'F':
+                return numeric(b, ChronoField.ALIGNED_WEEK_OF_MONTH, count);
+            case 'u':
+                return numeric(b, ChronoField.DAY_OF_WEEK, count);
+            case 'Z':
+                return b.appendOffset("+HHMM", "+0000").toFormatter();
+            case 'X':
+                switch (count) {
+                    case 1:
+                        return b.appendOffset("+HH", "Z").toFormatter();
+                    case 2:
+                        return b.appendOffset("+HHMM", "Z").toFormatter();
+                    case 3:
+                        return b.appendOffset("+HH:MM", "Z").toFormatter();
+                }
+                return null;
+            default:
+                // text fields, week based fields, etc.
+                return null;
+        }
+
+    }
+
+    private static DateTimeFormatter numeric(DateTimeFormatterBuilder b, ChronoField field, int count) {
+
+        if (count > 19) { return null; }
+        if (count == 1) {
+            b.appendValue(field);
+        } else {
+            b.appendValue(field, count, 19, SignStyle.NORMAL);
+        }
+        return b.toFormatter();
+
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private interface Part {
+        void render(StringBuilder sb, ZonedDateTime zdt);
+    }
+
+    private static class Literal implements Part {
+
+        private final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+        public void render(StringBuilder sb, ZonedDateTime zdt) {
+            sb.append(text);
+        }
+    }
+
+    private static class JavaTime implements Part {
+
+        private final DateTimeFormatter dtf;
+
+        JavaTime(DateTimeFormatter dtf) {
+            this.dtf = dtf;
+        }
+
+        public void render(StringBuilder sb, ZonedDateTime zdt) {
+            dtf.formatTo(zdt, sb);
+        }
+    }
+
+    private static class Rendered {
+
+        final long second;
+        final String [] text;
+
+        Rendered(long second, String [] text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+}
@@ -0,0 +1,666 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.MsgPack;
+import codes.vps.logging.fluentd.jdk.util.U;
+import codes.vps.logging.fluentd.jdk.util.Utf8Builder;
+import org.msgpack.core.MessagePacker;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Renders stack traces for the {@code ${trace}} variable. The same exception thrown from
+ * the same place tends to be logged over and over, so rendered traces are cached. The cache is
+ * a fixed table, indexed by a hash of the class, the message and the top stack frames of every
+ * throwable in the cause chain, so looking a trace up allocates nothing but the stack traces.
+ * An entry is only used if the entire cause chain matches it, so a cached trace is always identical
+ * to the one that would have been rendered. The entries only consist of strings, so the cache doesn't
+ * keep the classes of the exceptions, or their class loaders, from being unloaded. A trace is only
+ * cached when it's rendered the second time, and only if it's small enough.
+ * <p>
+ * When the trace is the whole value of a field, it's rendered straight into UTF-8 bytes, in a buffer
+ * confined to the calling thread, and copied into the output from there, so the trace is never
+ * built as a string; the cache then keeps the encoded traces. The frames of the traces can also be
+ * written as structured data, see {@link #writeFrames(MessagePacker, Throwable)}.
+ */
+class TraceRenderer {
+
+    static final int DEFAULT_CACHE_SIZE = 256;
+
+    /**
+     * Traces larger than this (in characters, or in encoded bytes) are never cached, so the cache
+     * holds at most {@code cache size * MAX_CACHED_TRACE} bytes of traces, whatever the limits are.
+     */
+    static final int MAX_CACHED_TRACE = 16384;
+
+    /**
+     * Renderer used for {@code ${trace}} without any parameters.
+     */
+    static final TraceRenderer DEFAULT = new TraceRenderer(0, 0, DEFAULT_CACHE_SIZE);
+
+    private final static String TRUNCATED = "\n <...truncated...>";
+
+    // frames of each throwable that the cache hash covers
+    private final static int HASHED_FRAMES = 8;
+
+    // traces with longer cause chains are not cached
+    private final static int MAX_CHAIN = 64;
+
+    // buffers that grew larger than this are not kept around by the threads
+    private final static int MAX_RETAINED_BUFFER = 262144;
+
+    private final static ThreadLocal<Scratch> buffers = ThreadLocal.withInitial(Scratch::new);
+
+    private final static byte [] CLASS = MsgPack.encodeString("class");
+    private final static byte [] MESSAGE = MsgPack.encodeString("message");
+    private final static byte [] FRAMES = MsgPack.encodeString("frames");
+    private final static byte [] SKIPPED = MsgPack.encodeString("skipped");
+    private final static byte [] METHOD = MsgPack.encodeString("method");
+    private final static byte [] FILE = MsgPack.encodeString("file");
+    private final static byte [] LINE = MsgPack.encodeString("line");
+
+    private final int maxFrames;
+    private final int maxBytes;
+    // null if caching is disabled
+    private final AtomicReferenceArray<Entry> cache;
+    // hashes of the traces rendered but not cached yet; racy, a lost update
+    // only means that a trace is cached a little later
+    private final int [] seen;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates new renderer.
+     * @param maxFrames maximum number of frames rendered for each throwable in the chain,
+     * {@code 0} for no limit
+     * @param maxBytes maximum size of the rendered trace, in UTF-8 bytes, {@code 0} for no limit
+     * @param cacheSize number of rendered traces to keep, {@code 0} disables caching
+     */
+    TraceRenderer(int maxFrames, int maxBytes, int cacheSize) {
+
+        if (maxFrames < 0 || maxBytes < 0 || cacheSize < 0) {
+            throw new IllegalArgumentException("Trace limits can not be negative");
+        }
+
+        this.maxFrames = maxFrames == 0 ? Integer.MAX_VALUE : maxFrames;
+        this.maxBytes = maxBytes;
+
+        cache = cacheSize == 0 ? null : new AtomicReferenceArray<>(cacheSize);
+        seen = cacheSize == 0 ? null : new int[cacheSize];
+
+    }
+
+    /**
+     * Renders the trace of the specified throwable.
+     * @param t throwable to render
+     * @return rendered trace, or an empty string if the throwable is {@code null}
+     */
+    String render(Throwable t) {
+
+        if (t == null) { return ""; }
+
+        if (cache == null) {
+            return doRender(t);
+        }
+
+        Scratch s = acquire();
+        try {
+
+            if (!s.walk(t)) {
+                return doRender(t);
+            }
+
+            int hash = s.hash();
+            Entry e = lookup(s, hash);
+            if (e != null) {
+                return e.getText();
+            }
+
+            String trace = doRender(t);
+            if (trace.length() <= MAX_CACHED_TRACE && repeated(hash)) {
+                cache.set(index(hash), new Entry(s, hash, trace, null));
+            }
+            return trace;
+
+        } finally {
+            release(s);
+        }
+
+    }
+
+    StringBuilder appendTo(StringBuilder sb, Throwable t) {
+        return sb.append(render(t));
+    }
+
+    /**
+     * Writes the trace of the specified throwable as a MessagePack string, the same
+     * string that {@link #render(Throwable)} produces.
+     * @param packer packer to write to
+     * @param t throwable to render, an empty string is written if it's {@code null}
+     * @throws IOException if the packer fails
+     */
+    void writeTo(MessagePacker packer, Throwable t) throws IOException {
+
+        if (t == null) {
+            packer.packRawStringHeader(0);
+            return;
+        }
+
+        Scratch s = acquire();
+        try {
+
+            boolean cached = cache != null && s.walk(t);
+            int hash = 0;
+            if (cached) {
+                hash = s.hash();
+                Entry e = lookup(s, hash);
+                if (e != null) {
+                    e.writeTo(packer);
+                    return;
+                }
+            }
+
+            Utf8Builder out = s.out;
+            out.reset();
+            U.throwableToString(out, t, maxFrames);
+            if (maxBytes != 0 && out.size() > maxBytes) {
+                // same as truncate(), the marker is ASCII
+                boolean marker = maxBytes >= TRUNCATED.length();
+                out.truncate(marker ? maxBytes - TRUNCATED.length() : maxBytes);
+                if (marker) {
+                    out.append(TRUNCATED);
+                }
+            }
+
+            packer.packRawStringHeader(out.size());
+            packer.writePayload(out.array(), 0, out.size());
+
+            if (cached && out.size() <= MAX_CACHED_TRACE && repeated(hash)) {
+                cache.set(index(hash), new Entry(s, hash, null, Arrays.copyOf(out.array(), out.size())));
+            }
+
+        } finally {
+            release(s);
+        }
+
+    }
+
+    /**
+     * Writes the cause chain of the specified throwable as a MessagePack array, with a map
+     * for each throwable: its {@code class}, {@code message}, and {@code frames}, an array of maps
+     * with {@code class}, {@code method}, {@code file} and {@code line} of each stack frame. Frames
+     * that a cause has in common with the throwable it caused are left out, same as they are left out
+     * of the rendered trace, as are the frames over the limit; the number of frames left out is
+     * in {@code skipped}, which is only there if any frames were left out.
+     * @param packer packer to write to
+     * @param t throwable to write, an empty array is written if it's {@code null}
+     * @throws IOException if the packer fails
+     */
+    void writeFrames(MessagePacker packer, Throwable t) throws IOException {
+
+        List<Throwable> chain = chain(t);
+        packer.packArrayHeader(chain.size());
+
+        StackTraceElement [] enclosing = null;
+        for (Throwable x : chain) {
+
+            StackTraceElement [] stack = x.getStackTrace();
+            int shown = shown(stack, enclosing);
+            int skipped = stack.length - shown;
+
+            packer.packMapHeader(skipped > 0 ? 4 : 3);
+            packer.writePayload(CLASS);
+            packer.packString(x.getClass().getName());
+            packer.writePayload(MESSAGE);
+            MsgPack.packValue(packer, x.getMessage());
+            packer.writePayload(FRAMES);
+            packer.packArrayHeader(shown);
+            for (int i = 0; i < shown; i++) {
+                StackTraceElement ste = stack[i];
+                packer.packMapHeader(4);
+                packer.writePayload(CLASS);
+                packer.packString(ste.getClassName());
+                packer.writePayload(METHOD);
+                packer.packString(ste.getMethodName());
+                packer.writePayload(FILE);
+                MsgPack.packValue(packer, ste.getFileName());
+                packer.writePayload(LINE);
+                packer.packInt(ste.getLineNumber());
+            }
+            if (skipped > 0) {
+                packer.writePayload(SKIPPED);
+                packer.packInt(skipped);
+            }
+
+            enclosing = stack;
+
+        }
+
+    }
+
+    /**
+     * Returns the same data that {@link #writeFrames(MessagePacker, Throwable)} writes.
+     * @param t throwable
+     * @return list of maps, one for each throwable in the cause chain
+     */
+    List<Map<String, Object>> frames(Throwable t) {
+
+        List<Map<String, Object>> result = new ArrayList<>();
+        StackTraceElement [] enclosing = null;
+        for (Throwable x : chain(t)) {
+
+            StackTraceElement [] stack = x.getStackTrace();
+            int shown = shown(stack, enclosing);
+
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("class", x.getClass().getName());
+            m.put("message", x.getMessage());
+            List<Map<String, Object>> frames = new ArrayList<>();
+            for (int i = 0; i < shown; i++) {
+                StackTraceElement ste = stack[i];
+                Map<String, Object> f = new LinkedHashMap<>();
+                f.put("class", ste.getClassName());
+                f.put("method", ste.getMethodName());
+                f.put("file", ste.getFileName());
+                f.put("line", ste.getLineNumber());
+                frames.add(f);
+            }
+            m.put("frames", frames);
+            if (stack.length > shown) {
+                m.put("skipped", stack.length - shown);
+            }
+            result.add(m);
+
+            enclosing = stack;
+
+        }
+        return result;
+
+    }
+
+    /**
+     * Number of frames of the stack to show: up to the frames it has in common with
+     * the stack of the enclosing throwable, and no more than the limit.
+     */
+    private int shown(StackTraceElement [] stack, StackTraceElement [] enclosing) {
+
+        int n = stack.length;
+        if (enclosing != null) {
+            for (int k = enclosing.length - 1; n > 0 && k >= 0 && stack[n - 1].equals(enclosing[k]); k--) {
+                n--;
+            }
+        }
+        return Math.min(n, maxFrames);
+
+    }
+
+    private static List<Throwable> chain(Throwable t) {
+
+        if (t == null) { return Collections.emptyList(); }
+        List<Throwable> chain = new ArrayList<>();
+        // causes can loop
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        while (t != null && seen.add(t)) {
+            chain.add(t);
+            t = t.getCause();
+        }
+        return chain;
+
+    }
+
+    /**
+     * Hash of the trace of the throwable, which only covers the class, the message and the top
+     * stack frames of the throwable itself, so it's cheap to compute; throwables with
+     * the same trace have the same hash.
+     * @param t throwable
+     * @return hash of the trace
+     */
+    static int traceHash(Throwable t) {
+
+        int h = t.getClass().getName().hashCode() * 31 + Objects.hashCode(t.getMessage());
+        StackTraceElement [] stack = t.getStackTrace();
+        h = h * 31 + stack.length;
+        for (int k = 0, n = Math.min(stack.length, HASHED_FRAMES); k < n; k++) {
+            h = h * 31 + stack[k].getClassName().hashCode();
+            h = h * 31 + stack[k].getMethodName().hashCode();
+            h = h * 31 + stack[k].getLineNumber();
+        }
+        return h;
+
+    }
+
+    /**
+     * Checks whether two throwables have the same trace: the class, the message and the stack
+     * frames of every throwable in their cause chains are the same.
+     * @param a throwable
+     * @param b throwable
+     * @return {@code true} if the traces are the same
+     */
+    static boolean sameTrace(Throwable a, Throwable b) {
+
+        if (a == b) { return true; }
+
+        List<Throwable> ca = chain(a);
+        List<Throwable> cb = chain(b);
+        if (ca.size() != cb.size()) { return false; }
+
+        for (int i = 0; i < ca.size(); i++) {
+            Throwable x = ca.get(i);
+            Throwable y = cb.get(i);
+            if (x.getClass() != y.getClass() || !Objects.equals(x.getMessage(), y.getMessage())
+                    || !Arrays.equals(x.getStackTrace(), y.getStackTrace())) {
+                return false;
+            }
+        }
+
+        // the chains could loop back to different throwables
+        Throwable la = ca.get(ca.size() - 1).getCause();
+        Throwable lb = cb.get(cb.size() - 1).getCause();
+        return la == null ? lb == null : lb != null && ca.indexOf(la) == cb.indexOf(lb);
+
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    private Entry lookup(Scratch s, int hash) {
+
+        Entry e = cache.get(index(hash));
+        if (e != null && e.hash == hash && e.matches(s)) {
+            hits.increment();
+            return e;
+        }
+        misses.increment();
+        return null;
+
+    }
+
+    /**
+     * Returns whether a trace with the same hash was rendered before, and remembers
+     * this one otherwise, so traces that are only logged once are never cached.
+     */
+    private boolean repeated(int hash) {
+
+        int i = index(hash);
+        if (seen[i] == hash) {
+            return true;
+        }
+        seen[i] = hash;
+        return false;
+
+    }
+
+    private int index(int hash) {
+        return (hash & 0x7fffffff) % seen.length;
+    }
+
+    private static Scratch acquire() {
+
+        Scratch s = buffers.get();
+        if (s.inUse) {
+            // rendering a trace logged something, e.g. from getMessage()
+            return new Scratch(false);
+        }
+        s.inUse = true;
+        return s;
+
+    }
+
+    private static void release(Scratch s) {
+
+        s.clear();
+        if (s.owned) {
+            if (s.out.array().length > MAX_RETAINED_BUFFER) {
+                buffers.remove();
+            }
+            s.inUse = false;
+        }
+
+    }
+
+    private String doRender(Throwable t) {
+
+        String s = U.throwableToString(new StringBuilder(), t, maxFrames).toString();
+        if (maxBytes == 0 || s.length() * 3 <= maxBytes) {
+            // can't be over the limit even if all characters take 3 bytes
+            return s;
+        }
+        return truncate(s, maxBytes);
+
+    }
+
+    /**
+     * Cuts the string so its UTF-8 representation fits into the specified number
+     * of bytes, including the truncation marker. Surrogate pairs are never split.
+     */
+    static String truncate(String s, int maxBytes) {
+
+        if (utf8Length(s) <= maxBytes) {
+            return s;
+        }
+
+        boolean marker = maxBytes >= TRUNCATED.length();
+        int limit = marker ? maxBytes - TRUNCATED.length() : maxBytes;
+
+        int bytes = 0;
+        int i = 0;
+        while (i < s.length()) {
+            int cp = s.codePointAt(i);
+            int size = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (bytes + size > limit) { break; }
+            bytes += size;
+            i += Character.charCount(cp);
+        }
+
+        String cut = s.substring(0, i);
+        return marker ? cut + TRUNCATED : cut;
+
+    }
+
+    private static int utf8Length(String s) {
+
+        int bytes = 0;
+        for (int i = 0; i < s.length(); ) {
+            int cp = s.codePointAt(i);
+            bytes += cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            i += Character.charCount(cp);
+        }
+        return bytes;
+
+    }
+
+    /**
+     * Cached trace, along with the cause chain it was rendered for. The trace is kept either
+     * as a string or as UTF-8 bytes, in the form it was rendered in. The other form is made
+     * from it when it's needed, and is not kept; a renderer is normally only used one way.
+     */
+    private static class Entry {
+
+        final int hash;
+        final int circular;
+        final String [] classes;
+        final String [] messages;
+        // class, method and file name of each frame
+        final String [][] frames;
+        final int [][] lines;
+        final String text;
+        final byte [] utf8;
+
+        Entry(Scratch s, int hash, String text, byte [] utf8) {
+
+            this.hash = hash;
+            this.circular = s.circular;
+            this.text = text;
+            this.utf8 = utf8;
+
+            int depth = s.depth;
+            classes = new String[depth];
+            messages = Arrays.copyOf(s.messages, depth);
+            frames = new String[depth][];
+            lines = new int[depth][];
+
+            for (int i = 0; i < depth; i++) {
+                classes[i] = s.chain[i].getClass().getName();
+                StackTraceElement [] stack = s.stacks[i];
+                String [] names = frames[i] = new String[stack.length * 3];
+                int [] l = lines[i] = new int[stack.length];
+                for (int k = 0; k < stack.length; k++) {
+                    names[k * 3] = stack[k].getClassName();
+                    names[k * 3 + 1] = stack[k].getMethodName();
+                    names[k * 3 + 2] = stack[k].getFileName();
+                    l[k] = stack[k].getLineNumber();
+                }
+            }
+
+        }
+
+        boolean matches(Scratch s) {
+
+            if (s.depth != classes.length || s.circular != circular) { return false; }
+
+            for (int i = 0; i < classes.length; i++) {
+
+                if (!classes[i].equals(s.chain[i].getClass().getName()) || !Objects.equals(messages[i], s.messages[i])) {
+                    return false;
+                }
+
+                StackTraceElement [] stack = s.stacks[i];
+                String [] names = frames[i];
+                int [] l = lines[i];
+                if (stack.length != l.length) { return false; }
+                for (int k = 0; k < stack.length; k++) {
+                    StackTraceElement ste = stack[k];
+                    if (ste.getLineNumber() != l[k] || !ste.getMethodName().equals(names[k * 3 + 1])
+                            || !ste.getClassName().equals(names[k * 3])
+                            || !Objects.equals(ste.getFileName(), names[k * 3 + 2])) {
+                        return false;
+                    }
+                }
+
+            }
+            return true;
+
+        }
+
+        String getText() {
+            return text != null ? text : new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        void writeTo(MessagePacker packer) throws IOException {
+            if (utf8 != null) {
+                packer.packRawStringHeader(utf8.length);
+                packer.writePayload(utf8);
+            } else {
+                packer.packString(text);
+            }
+        }
+
+    }
+
+    /**
+     * Buffers of a thread: the output, and the cause chain of the throwable being
+     * rendered, along with the messages and the stack traces.
+     */
+    private static class Scratch {
+
+        final Utf8Builder out = new Utf8Builder(4096);
+        // false for the buffers made for a nested call, which are not kept
+        final boolean owned;
+        boolean inUse;
+
+        Throwable [] chain = new Throwable[4];
+        String [] messages = new String[4];
+        StackTraceElement [][] stacks = new StackTraceElement[4][];
+        int depth;
+        // index of the throwable that the chain loops back to, -1 if it doesn't loop
+        int circular;
+
+        Scratch() {
+            this(true);
+        }
+
+        Scratch(boolean owned) {
+            this.owned = owned;
+        }
+
+        /**
+         * Collects the cause chain of the throwable, up to where it loops,
+         * same as the rendered trace.
+         * @return {@code false} if the chain is too long to be cached
+         */
+        boolean walk(Throwable t) {
+
+            depth = 0;
+            circular = -1;
+            for (Throwable x = t; x != null; x = x.getCause()) {
+
+                for (int i = 0; i < depth; i++) {
+                    if (chain[i] == x) {
+                        circular = i;
+                        return true;
+                    }
+                }
+                if (depth == MAX_CHAIN) { return false; }
+
+                if (depth == chain.length) {
+                    chain = Arrays.copyOf(chain, depth * 2);
+                    messages = Arrays.copyOf(messages, depth * 2);
+                    stacks = Arrays.copyOf(stacks, depth * 2);
+                }
+                chain[depth] = x;
+                messages[depth] = x.getMessage();
+                stacks[depth] = x.getStackTrace();
+                depth++;
+
+            }
+            return true;
+
+        }
+
+        int hash() {
+
+            int h = depth * 31 + circular;
+            for (int i = 0; i < depth; i++) {
+                StackTraceElement [] stack = stacks[i];
+                h = h * 31 + chain[i].getClass().getName().hashCode();
+                h = h * 31 + Objects.hashCode(messages[i]);
+                h = h * 31 + stack.length;
+                for (int k = 0, n = Math.min(stack.length, HASHED_FRAMES); k < n; k++) {
+                    h = h * 31 + stack[k].getClassName().hashCode();
+                    h = h * 31 + stack[k].getMethodName().hashCode();
+                    h = h * 31 + stack[k].getLineNumber();
+                }
+            }
+            // 0 marks empty slots of the seen table
+            return h == 0 ? 1 : h;
+
+        }
+
+        void clear() {
+            // the throwables are not kept around
+            Arrays.fill(chain, 0, depth, null);
+            Arrays.fill(messages, 0, depth, null);
+            Arrays.fill(stacks, 0, depth, null);
+            depth = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,188 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Concurrent cache that holds a bounded number of entries. Lookups are lock-free;
+ * when the cache is over its capacity, entries are evicted with the CLOCK algorithm:
+ * the "hand" goes around the entries, evicting the first entry that was not used since
+ * the hand passed it last time. This approximates LRU without having to reorder
+ * anything on a hit. Entries are evicted in batches, down to 90% of the capacity, by one thread
+ * at a time; threads that add entries while another thread is evicting don't wait for it, so the
+ * cache may briefly hold a few more entries than its capacity.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class BoundedCache<K, V> {
+
+    private final int capacity;
+    // eviction stops once the cache is down to this many entries
+    private final int low;
+    private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private final ReentrantLock evicting = new ReentrantLock();
+    // guarded by "evicting"
+    private Iterator<Map.Entry<K, Entry<V>>> hand;
+
+    /**
+     * Creates new cache.
+     * @param capacity maximum number of entries to keep
+     */
+    public BoundedCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.low = capacity - capacity / 10;
+    }
+
+    /**
+     * Returns cached value.
+     * @param key key to look up
+     * @return cached value, or {@code null} if there is none
+     */
+    public V get(K key) {
+
+        Entry<V> e = map.get(key);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (!e.used) {
+            e.used = true;
+        }
+        return e.value;
+
+    }
+
+    /**
+     * Returns cached value, computing and caching it if there is none. The value
+     * may be computed by concurrent callers more than once, only one of the values
+     * is kept.
+     * @param key key to look up
+     * @param compute function that produces the value for the key, must not return {@code null}
+     * @return cached value
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> compute) {
+
+        V v = get(key);
+        if (v != null) {
+            return v;
+        }
+        return put(key, compute.apply(key));
+
+    }
+
+    /**
+     * Caches the value, unless there is one already.
+     * @param key key
+     * @param value value, must not be {@code null}
+     * @return value that is cached for the key
+     */
+    public V put(K key, V value) {
+
+        Entry<V> e = new Entry<>(value);
+        Entry<V> was = map.putIfAbsent(key, e);
+        if (was != null) {
+            return was.value;
+        }
+
+        if (map.size() > capacity) {
+            evict();
+        }
+        return value;
+
+    }
+
+    /**
+     * Replaces the value cached for the key.
+     * @param key key
+     * @param value value, must not be {@code null}
+     */
+    public void replace(K key, V value) {
+        if (map.put(key, new Entry<>(value)) == null && map.size() > capacity) {
+            evict();
+        }
+    }
+
+    /**
+     * Returns number of cached entries.
+     * @return number of entries
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns number of lookups that found a cached value.
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns number of lookups that didn't find a cached value.
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private void evict() {
+
+        if (!evicting.tryLock()) {
+            // another thread is evicting, and will account for this entry too
+            return;
+        }
+
+        try {
+
+            // the hand may need to pass all entries twice: first time to clear
+            // the "used" marks, and the second time to find the ones that weren't used since.
+            int budget = map.size() * 2 + 1;
+
+            while (map.size() > low && budget-- > 0) {
+
+                if (hand == null || !hand.hasNext()) {
+                    hand = map.entrySet().iterator();
+                    if (!hand.hasNext()) { return; }
+                }
+
+                Map.Entry<K, Entry<V>> me = hand.next();
+                Entry<V> e = me.getValue();
+                if (e.used) {
+                    e.used = false;
+                } else {
+                    map.remove(me.getKey(), e);
+                }
+
+            }
+
+        } finally {
+            evicting.unlock();
+        }
+
+    }
+
+    private static class Entry<V> {
+
+        final V value;
+        // only ever set by the readers, and cleared by the hand, races
+        // merely make the entry live a little longer, or shorter.
+        volatile boolean used;
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative long values (i.e. durations in nanoseconds).
+ * Values are counted in log-linear buckets: values under 16 have their own buckets,
+ * and every power of two above that is split into 8 buckets, so the reported
+ * percentiles are within 12.5% of the actual values. All counters are striped,
+ * recording a value does not contend with other threads recording values.
+ */
+public class Histogram {
+
+    private final static int LINEAR = 16;
+    private final static int SUB_BITS = 3;
+    private final static int SUB = 1 << SUB_BITS;
+    private final static int BUCKETS = LINEAR + (63 - 4) * SUB;
+
+    private final LongAdder [] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a value, negative values are recorded as {@code 0}.
+     * @param value value to record
+     */
+    public void record(long value) {
+
+        if (value < 0) { value = 0; }
+        buckets[index(value)].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns mean of the recorded values.
+     * @return mean value, {@code 0} if nothing was recorded
+     */
+    public double getMean() {
+        long c = count.sum();
+        return c == 0 ? 0 : (double) sum.sum() / c;
+    }
+
+    /**
+     * Returns value at the specified percentile. The value is the upper bound of
+     * the bucket the percentile falls into, but never more than the maximum recorded value.
+     * @param percentile percentile, between 0 and 100
+     * @return value at percentile, {@code 0} if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+
+        // counters are not updated atomically together, so the total is
+        // taken from the buckets themselves.
+        long [] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) { return 0; }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently with the reset
+     * may be partially cleared.
+     */
+    public void reset() {
+        for (LongAdder b : buckets) {
+            b.reset();
+        }
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    static int index(long value) {
+
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+        return LINEAR + (exp - 4) * SUB + sub;
+
+    }
+
+    static long upperBound(int index) {
+
+        if (index < LINEAR) {
+            return index;
+        }
+        int exp = (index - LINEAR) / SUB + 4;
+        int sub = (index - LINEAR) % SUB;
+        long lower = (long) (SUB + sub) << (exp - SUB_BITS);
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+
+    }
+
+}
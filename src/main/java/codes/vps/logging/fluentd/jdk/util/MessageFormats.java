@@ -0,0 +1,157 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+import java.lang.ref.WeakReference;
+import java.text.MessageFormat;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+
+/**
+ * Caches used for formatting localized messages: messages resolved from the resource
+ * bundles (including the ones that are missing from the bundles), and parsed message
+ * patterns. {@link MessageFormat} is not thread-safe, so cached patterns are only used
+ * as prototypes, and each format operation works on a copy.
+ * <p>
+ * The caches are shared by all handlers, so they only keep weak references to the resource
+ * bundles, which would otherwise keep the class loaders that the bundles came from.
+ */
+final class MessageFormats {
+
+    private final static int CACHE_SIZE = 1024;
+
+    private final static BoundedCache<BundleKey, String> bundles = new BoundedCache<>(CACHE_SIZE);
+    private final static BoundedCache<String, Pattern> patterns = new BoundedCache<>(CACHE_SIZE);
+
+    private MessageFormats() {}
+
+    /**
+     * Looks the message up in the resource bundle.
+     * @param catalog resource bundle
+     * @param key message key
+     * @return localized message, or the key, if the bundle doesn't have it
+     */
+    static String localize(ResourceBundle catalog, String key) {
+
+        BundleKey k = new BundleKey(catalog, key);
+        String message = bundles.get(k);
+        if (message != null) {
+            return message;
+        }
+
+        try {
+            message = catalog.getString(key);
+        } catch (MissingResourceException ex) {
+            // Drop through.  Use record message as format
+            message = key;
+        }
+        return bundles.put(k.weak(), message);
+
+    }
+
+    /**
+     * Formats the message the same way {@link MessageFormat#format(String, Object...)} does,
+     * but only if the message looks like it has parameters in it.
+     * @param format message pattern
+     * @param parameters parameters to format
+     * @return formatted message, or the message as is, if it has no parameters,
+     * or if formatting fails
+     */
+    static String format(String format, Object [] parameters) {
+
+        Locale locale = Locale.getDefault(Locale.Category.FORMAT);
+        Pattern p = patterns.get(format);
+        if (p == null || !p.locale.equals(locale)) {
+            p = new Pattern(format, locale);
+            patterns.replace(format, p);
+        }
+
+        if (p.proto == null) {
+            return format;
+        }
+
+        try {
+            return ((MessageFormat) p.proto.clone()).format(parameters);
+        } catch (Exception ex) {
+            // Formatting failed: use localized format string.
+            return format;
+        }
+
+    }
+
+    private static class Pattern {
+
+        final Locale locale;
+        // null if there is nothing to format
+        final MessageFormat proto;
+
+        Pattern(String format, Locale locale) {
+
+            this.locale = locale;
+
+            // Is it a java.text style format?
+            // Ideally we could match with
+            // Pattern.compile("\\{\\d").matcher(format).find())
+            // However the cost is 14% higher, so we cheaply check for
+            // 1 of the first 4 parameters
+            MessageFormat mf = null;
+            if (format.contains("{0") || format.contains("{1") ||
+                    format.contains("{2") || format.contains("{3")) {
+                try {
+                    mf = new MessageFormat(format, locale);
+                } catch (IllegalArgumentException ignored) {
+                    // invalid pattern, the message is used as is
+                }
+            }
+            this.proto = mf;
+
+        }
+
+    }
+
+    /**
+     * Bundle message key. The bundles are compared by identity: the key used for a lookup
+     * refers to its bundle directly, and the cached key refers to it through a weak reference.
+     * A cached key whose bundle was collected doesn't match anything, and is eventually evicted.
+     */
+    private static class BundleKey {
+
+        // ResourceBundle, or WeakReference to it
+        private final Object bundle;
+        private final String key;
+        private final int hash;
+
+        BundleKey(ResourceBundle bundle, String key) {
+            this(bundle, key, System.identityHashCode(bundle) * 31 + key.hashCode());
+        }
+
+        private BundleKey(Object bundle, String key, int hash) {
+            this.bundle = bundle;
+            this.key = key;
+            this.hash = hash;
+        }
+
+        BundleKey weak() {
+            return new BundleKey(new WeakReference<>(bundle()), key, hash);
+        }
+
+        private Object bundle() {
+            return bundle instanceof WeakReference ? ((WeakReference<?>) bundle).get() : bundle;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) { return true; }
+            if (!(obj instanceof BundleKey)) { return false; }
+            BundleKey k = (BundleKey) obj;
+            Object b = bundle();
+            return b != null && hash == k.hash && b == k.bundle() && key.equals(k.key);
+        }
+
+    }
+
+}
@@ -0,0 +1,131 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free, multi-producer/single-consumer ring buffer.
+ * Each slot carries a sequence number that tells whether the slot is free for
+ * the producer that claimed the corresponding position, or populated for the
+ * consumer (this is the well known Vyukov bounded queue scheme).
+ * Only one thread may ever call {@link #poll()}.
+ * @param <T> type of elements held in the buffer
+ */
+public class MpscRingBuffer<T> {
+
+    private final Object [] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Creates new ring buffer.
+     * @param capacity minimal capacity of the buffer, rounded up to the next power of two.
+     */
+    public MpscRingBuffer(int capacity) {
+
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Ring buffer capacity must be positive, got "+capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) { size <<= 1; }
+        if (size <= 0) {
+            throw new IllegalArgumentException("Ring buffer capacity "+capacity+" is too large");
+        }
+
+        slots = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i=0; i<size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+
+    }
+
+    /**
+     * Adds an element to the buffer. Can be called from any thread.
+     * @param e element to add, must not be {@code null}
+     * @return {@code true} if the element was added, {@code false} if the buffer is full.
+     */
+    public boolean offer(T e) {
+
+        long pos = tail.get();
+        int idx;
+
+        while (true) {
+            idx = (int)(pos & mask);
+            long dif = sequences.get(idx) - pos;
+            if (dif == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) { break; }
+                pos = tail.get();
+            } else if (dif < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+
+        slots[idx] = e;
+        // release store, makes the slot contents visible to the consumer
+        sequences.lazySet(idx, pos + 1);
+        return true;
+
+    }
+
+    /**
+     * Removes the next element from the buffer. Must only be called from the consumer thread.
+     * @return next element, or {@code null} if there isn't one available.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+
+        long pos = head.get();
+        int idx = (int)(pos & mask);
+        if (sequences.get(idx) != pos + 1) {
+            return null;
+        }
+
+        T e = (T)slots[idx];
+        slots[idx] = null;
+        sequences.lazySet(idx, pos + mask + 1);
+        head.lazySet(pos + 1);
+        return e;
+
+    }
+
+    /**
+     * Returns total number of positions claimed by the producers so far.
+     * @return total number of offered elements.
+     */
+    public long getProduced() {
+        return tail.get();
+    }
+
+    /**
+     * Returns total number of elements removed by the consumer so far.
+     * @return total number of consumed elements.
+     */
+    public long getConsumed() {
+        return head.get();
+    }
+
+    /**
+     * Returns approximate number of elements in the buffer.
+     * @return number of elements in the buffer
+     */
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+}
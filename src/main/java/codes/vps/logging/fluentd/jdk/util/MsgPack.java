@@ -0,0 +1,125 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.komamitsu.fluency.EventTime;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * MessagePack encoding helpers.
+ */
+public class MsgPack {
+
+    /**
+     * Packs an arbitrary value. Strings, numbers, booleans, byte arrays, maps,
+     * collections and arrays are packed directly, instants and event times are packed as
+     * fluentd EventTime extension values, anything else is serialized
+     * with Jackson, the same way fluency serializes map values.
+     * @param packer packer to write to
+     * @param o value to pack, can be {@code null}
+     * @throws IOException if the packer fails
+     */
+    public static void packValue(MessagePacker packer, Object o) throws IOException {
+
+        if (o == null) {
+            packer.packNil();
+        } else if (o instanceof String) {
+            packer.packString((String) o);
+        } else if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+            packer.packLong(((Number) o).longValue());
+        } else if (o instanceof Boolean) {
+            packer.packBoolean((Boolean) o);
+        } else if (o instanceof Double) {
+            packer.packDouble((Double) o);
+        } else if (o instanceof Float) {
+            packer.packFloat((Float) o);
+        } else if (o instanceof BigInteger) {
+            packer.packBigInteger((BigInteger) o);
+        } else if (o instanceof Instant) {
+            Instant i = (Instant) o;
+            packEventTime(packer, i.getEpochSecond(), i.getNano());
+        } else if (o instanceof EventTime) {
+            EventTime t = (EventTime) o;
+            packEventTime(packer, t.getSeconds(), t.getNanoseconds());
+        } else if (o instanceof byte[]) {
+            byte [] b = (byte[]) o;
+            packer.packBinaryHeader(b.length);
+            packer.writePayload(b);
+        } else if (o instanceof Map) {
+            Map<?, ?> m = (Map<?, ?>) o;
+            packer.packMapHeader(m.size());
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                packer.packString(String.valueOf(e.getKey()));
+                packValue(packer, e.getValue());
+            }
+        } else if (o instanceof Collection) {
+            Collection<?> c = (Collection<?>) o;
+            packer.packArrayHeader(c.size());
+            for (Object e : c) {
+                packValue(packer, e);
+            }
+        } else if (o instanceof Object[]) {
+            Object [] a = (Object[]) o;
+            packer.packArrayHeader(a.length);
+            for (Object e : a) {
+                packValue(packer, e);
+            }
+        } else {
+            packer.writePayload(Jackson.mapper.writeValueAsBytes(o));
+        }
+
+    }
+
+    /**
+     * Packs time using the fluentd EventTime extension type.
+     * @param packer packer to write to
+     * @param seconds seconds since epoch
+     * @param nanos nanoseconds of the second
+     * @throws IOException if the packer fails
+     */
+    public static void packEventTime(MessagePacker packer, long seconds, long nanos) throws IOException {
+
+        packer.packExtensionTypeHeader((byte) 0, 8);
+        byte [] b = new byte[8];
+        b[0] = (byte) (seconds >>> 24);
+        b[1] = (byte) (seconds >>> 16);
+        b[2] = (byte) (seconds >>> 8);
+        b[3] = (byte) seconds;
+        b[4] = (byte) (nanos >>> 24);
+        b[5] = (byte) (nanos >>> 16);
+        b[6] = (byte) (nanos >>> 8);
+        b[7] = (byte) nanos;
+        packer.writePayload(b);
+
+    }
+
+    /**
+     * Encodes a string as a complete MessagePack value.
+     * @param s string to encode
+     * @return encoded string
+     */
+    public static byte [] encodeString(String s) {
+
+        try (MessageBufferPacker p = MessagePack.newDefaultBufferPacker()) {
+            p.packString(s);
+            return p.toByteArray();
+        } catch (IOException e) {
+            throw U.doThrow(e);
+        }
+
+    }
+
+    // lazily initialized, most values never need it.
+    private static class Jackson {
+        static final ObjectMapper mapper = new ObjectMapper(new MessagePackFactory());
+    }
+
+}
@@ -0,0 +1,24 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Byte array output stream that exposes its underlying array, so the
+ * written data can be handed out without copying it.
+ */
+public class PackBuffer extends ByteArrayOutputStream {
+
+    public PackBuffer(int size) {
+        super(size);
+    }
+
+    /**
+     * Returns the underlying array, only the first {@link #size()} bytes
+     * of it are valid.
+     * @return underlying array
+     */
+    public byte [] array() {
+        return buf;
+    }
+
+}
@@ -0,0 +1,59 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+/**
+ * Destination of rendered text, so the same rendering code can produce
+ * either a string, or encoded bytes.
+ */
+public interface TextSink {
+
+    /**
+     * Appends a string, {@code null} is appended as {@code "null"}.
+     * @param s string to append
+     * @return this sink
+     */
+    TextSink append(String s);
+
+    /**
+     * Appends a character.
+     * @param c character to append
+     * @return this sink
+     */
+    TextSink append(char c);
+
+    /**
+     * Appends decimal representation of a number.
+     * @param v number to append
+     * @return this sink
+     */
+    TextSink append(long v);
+
+    /**
+     * Wraps a string builder.
+     * @param sb string builder to append to
+     * @return sink that appends to the string builder
+     */
+    static TextSink of(StringBuilder sb) {
+
+        return new TextSink() {
+            @Override
+            public TextSink append(String s) {
+                sb.append(s);
+                return this;
+            }
+
+            @Override
+            public TextSink append(char c) {
+                sb.append(c);
+                return this;
+            }
+
+            @Override
+            public TextSink append(long v) {
+                sb.append(v);
+                return this;
+            }
+        };
+
+    }
+
+}
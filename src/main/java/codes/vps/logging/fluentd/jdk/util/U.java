@@ -3,6 +3,9 @@ package codes.vps.logging.fluentd.jdk.util;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.function.Function;
 import java.util.logging.LogRecord;
@@ -37,13 +40,53 @@ public class U {
 
     }
 
+    /**
+     * Appends string representation of a throwable, including its stack
+     * trace, into the specified string builder.
+     * @param sb string builder to append to
+     * @param xx throwable object, nothing is appended if it's {@code null}
+     * @return the specified string builder
+     */
     public static StringBuilder throwableToString(StringBuilder sb, Throwable xx) {
 
-        if (xx == null) { return sb; }
+        return throwableToString(sb, xx, Integer.MAX_VALUE);
+
+    }
+
+    /**
+     * Appends string representation of a throwable, including its stack
+     * trace, into the specified string builder. At most the specified number of frames
+     * is printed for the throwable and each of its causes, the rest of the frames are
+     * replaced with a single line that says how many were skipped.
+     * @param sb string builder to append to
+     * @param xx throwable object, nothing is appended if it's {@code null}
+     * @param maxFrames maximum number of frames to print for each throwable
+     * @return the specified string builder
+     */
+    public static StringBuilder throwableToString(StringBuilder sb, Throwable xx, int maxFrames) {
+
+        throwableToString(TextSink.of(sb), xx, maxFrames);
+        return sb;
+
+    }
+
+    /**
+     * Renders a throwable the same way {@link #throwableToString(StringBuilder, Throwable, int)}
+     * does, into the specified sink.
+     * @param sb sink to render into
+     * @param xx throwable object, nothing is rendered if it's {@code null}
+     * @param maxFrames maximum number of frames to print for each throwable
+     */
+    public static void throwableToString(TextSink sb, Throwable xx, int maxFrames) {
+
+        if (xx == null) { return; }
 
         StackTraceElement [] nextStack = xx.getStackTrace();
         Throwable next = xx;
         int nextStop = -1;
+        // causes can loop, only created if there is a cause
+        Set<Throwable> seen = null;
+        Throwable circular = null;
 
         while (true) {
 
@@ -52,6 +95,16 @@ public class U {
             int stop = nextStop;
 
             next = cur.getCause();
+            if (next != null) {
+                if (seen == null) {
+                    seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                    seen.add(cur);
+                }
+                if (!seen.add(next)) {
+                    circular = next;
+                    next = null;
+                }
+            }
             if (next != null) {
                 nextStack = next.getStackTrace();
             }
@@ -129,19 +182,31 @@ public class U {
                         }
                     }
 
+                    if (j + 1 >= maxFrames && j + 1 < stacks.length) {
+                        sb.append("\n <... skipped ").
+                                append(stacks.length - j - 1).
+                                append(" trace lines...>");
+                        break;
+                    }
+
                 }
             }
 
             if (next != null) {
                 sb.append("\nCaused by :");
             } else {
+                if (circular != null) {
+                    sb.append("\nCaused by : [CIRCULAR REFERENCE: ");
+                    sb.append(circular.getClass().getName());
+                    sb.append(' ');
+                    sb.append(circular.getMessage());
+                    sb.append(']');
+                }
                 break;
             }
 
         }
 
-        return sb;
-
     }
 
     /**
@@ -174,42 +239,57 @@ public class U {
         }
     }
 
+    /**
+     * Converts a value to a number, the same way a value of a field with the {@code n} type is converted.
+     * @param o value to convert
+     * @return numeric value
+     * @throws NumberFormatException if the value is not a number
+     */
+    public static long toLong(Object o) {
+        if (o instanceof Long || o instanceof Integer || o instanceof Short || o instanceof Byte) {
+            return ((Number) o).longValue();
+        }
+        return Long.parseLong(String.valueOf(o));
+    }
+
+    /**
+     * Converts a value to a boolean, the same way a value of a field with the {@code b} type is converted.
+     * @param o value to convert
+     * @return boolean value
+     */
+    public static boolean toBoolean(Object o) {
+        if (o instanceof Boolean) {
+            return (Boolean) o;
+        }
+        return Boolean.parseBoolean(String.valueOf(o));
+    }
+
+    /**
+     * Formats the message of a log record, the same way {@link java.util.logging.Formatter#formatMessage(LogRecord)}
+     * does. Resource bundle lookups and parsed message patterns are cached.
+     * @param record log record
+     * @return formatted message
+     */
     public static String formatMessage(LogRecord record) {
 
-        // this is copied from java.util.logging.Formatter.formatMessage()
+        // this follows java.util.logging.Formatter.formatMessage()
         String format = record.getMessage();
+        if (format == null) {
+            return null;
+        }
+
         java.util.ResourceBundle catalog = record.getResourceBundle();
         if (catalog != null) {
-            try {
-                format = catalog.getString(record.getMessage());
-            } catch (java.util.MissingResourceException ex) {
-                // Drop through.  Use record message as format
-                format = record.getMessage();
-            }
+            format = MessageFormats.localize(catalog, format);
         }
-        // Do the formatting.
-        try {
-            Object[] parameters = record.getParameters();
-            if (parameters == null || parameters.length == 0) {
-                // No parameters.  Just return format string.
-                return format;
-            }
-            // Is it a java.text style format?
-            // Ideally we could match with
-            // Pattern.compile("\\{\\d").matcher(format).find())
-            // However the cost is 14% higher, so we cheaply check for
-            // 1 of the first 4 parameters
-            if (format.contains("{0") || format.contains("{1") ||
-                    format.contains("{2") || format.contains("{3")) {
-                return java.text.MessageFormat.format(format, parameters);
-            }
-            return format;
 
-        } catch (Exception ex) {
-            // Formatting failed: use localized format string.
+        Object[] parameters = record.getParameters();
+        if (parameters == null || parameters.length == 0) {
+            // No parameters.  Just return format string.
             return format;
         }
 
+        return MessageFormats.format(format, parameters);
 
     }
 
@@ -0,0 +1,154 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates text as UTF-8 bytes, encoding it as it's appended, without
+ * building any intermediate strings. Characters are encoded the same way
+ * {@link String#getBytes(java.nio.charset.Charset)} encodes them, i.e. unpaired
+ * surrogates become {@code '?'}.
+ */
+public class Utf8Builder implements TextSink {
+
+    private final static byte [] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes();
+
+    private byte [] buf;
+    private int size;
+
+    public Utf8Builder(int capacity) {
+        buf = new byte[capacity];
+    }
+
+    @Override
+    public Utf8Builder append(String s) {
+
+        if (s == null) {
+            s = "null";
+        }
+
+        int len = s.length();
+        ensure(len);
+        for (int i = 0; i < len; i++) {
+
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                // there is always room for the rest of the string, if it's ASCII
+                buf[size++] = (byte) c;
+                continue;
+            }
+
+            if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                appendCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+            } else {
+                append(c);
+            }
+            ensure(len - i - 1);
+
+        }
+        return this;
+
+    }
+
+    @Override
+    public Utf8Builder append(char c) {
+
+        if (c < 0x80) {
+            ensure(1);
+            buf[size++] = (byte) c;
+        } else if (Character.isSurrogate(c)) {
+            ensure(1);
+            buf[size++] = '?';
+        } else {
+            appendCodePoint(c);
+        }
+        return this;
+
+    }
+
+    @Override
+    public Utf8Builder append(long v) {
+
+        if (v == Long.MIN_VALUE) {
+            ensure(MIN_LONG.length);
+            System.arraycopy(MIN_LONG, 0, buf, size, MIN_LONG.length);
+            size += MIN_LONG.length;
+            return this;
+        }
+
+        ensure(20);
+        if (v < 0) {
+            buf[size++] = '-';
+            v = -v;
+        }
+
+        int start = size;
+        do {
+            buf[size++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v != 0);
+
+        // digits went in backwards
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte b = buf[i];
+            buf[i] = buf[j];
+            buf[j] = b;
+        }
+        return this;
+
+    }
+
+    private void appendCodePoint(int cp) {
+
+        ensure(4);
+        if (cp < 0x800) {
+            buf[size++] = (byte) (0xc0 | (cp >> 6));
+        } else if (cp < 0x10000) {
+            buf[size++] = (byte) (0xe0 | (cp >> 12));
+            buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        } else {
+            buf[size++] = (byte) (0xf0 | (cp >> 18));
+            buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        }
+        buf[size++] = (byte) (0x80 | (cp & 0x3f));
+
+    }
+
+    /**
+     * Cuts the text to at most the specified number of bytes, without splitting characters.
+     * @param maxBytes maximum size
+     */
+    public void truncate(int maxBytes) {
+
+        if (size <= maxBytes) { return; }
+        size = maxBytes;
+        // back off from the continuation bytes of the character that got cut
+        while (size > 0 && (buf[size] & 0xc0) == 0x80) {
+            size--;
+        }
+
+    }
+
+    /**
+     * Returns the underlying array, only the first {@link #size()} bytes of it are valid.
+     * @return underlying array
+     */
+    public byte [] array() {
+        return buf;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    private void ensure(int more) {
+        if (buf.length - size < more) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + more));
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class AggregatorTest {
+
+    private static LogRecord record(String logger, Level level, String message, Object param, Throwable thrown) {
+        LogRecord lr = new LogRecord(level, message);
+        lr.setLoggerName(logger);
+        lr.setParameters(new Object[]{param});
+        lr.setThrown(thrown);
+        return lr;
+    }
+
+    @Test
+    public void testCopy() {
+
+        LogRecord lr = record("l", Level.INFO, "m {0}", 1, null);
+        Records.setThreadId(lr, Integer.MAX_VALUE + 10L);
+        Records.setInstant(lr, Instant.ofEpochSecond(1500000000L, 123456789L));
+
+        AggregatedRecord ar = new AggregatedRecord(lr, 2, 0, 0);
+        // as precise as the JDK keeps them
+        Assertions.assertEquals(Records.getThreadId(lr), Records.getThreadId(ar));
+        Assertions.assertEquals(Records.getNanos(lr), Records.getNanos(ar));
+        Assertions.assertEquals(lr.getSequenceNumber(), ar.getSequenceNumber());
+
+    }
+
+    @Test
+    public void testWindows() {
+
+        AtomicLong clock = new AtomicLong(1000);
+        List<LogRecord> aggregated = new ArrayList<>();
+        Aggregator a = new Aggregator(100, clock::get, aggregated::add);
+
+        Exception e = new Exception("boom");
+
+        Assertions.assertTrue(a.offer(record("l", Level.INFO, "m {0}", 1, null)));
+        // parameters don't matter, the message template does
+        LogRecord second = record("l", Level.INFO, "m {0}", 2, null);
+        Assertions.assertFalse(a.offer(second));
+        Assertions.assertFalse(a.offer(record("l", Level.INFO, "m {0}", 3, null)));
+
+        Assertions.assertTrue(a.offer(record("l", Level.WARNING, "m {0}", 1, null)));
+        Assertions.assertTrue(a.offer(record("l2", Level.INFO, "m {0}", 1, null)));
+        Assertions.assertTrue(a.offer(record("l", Level.INFO, "other", 1, null)));
+        Assertions.assertTrue(a.offer(record("l", Level.INFO, "m {0}", 1, e)));
+        Assertions.assertFalse(a.offer(record("l", Level.INFO, "m {0}", 1, e)));
+        Assertions.assertTrue(a.offer(record("l", Level.INFO, "m {0}", 1, new Exception("bang"))));
+
+        a.flush(false);
+        Assertions.assertTrue(aggregated.isEmpty());
+
+        clock.addAndGet(100);
+        a.flush(false);
+        Assertions.assertEquals(2, aggregated.size());
+        Assertions.assertEquals(0, a.size());
+
+        AggregatedRecord ar = (AggregatedRecord) aggregated.stream().filter(r->r.getThrown() == null).findFirst().get();
+        Assertions.assertEquals(2, ar.getCount());
+        Assertions.assertEquals(2, ar.getParameters()[0]);
+        Assertions.assertEquals(Records.getNanos(second), ar.getFirstNanos());
+        Assertions.assertTrue(ar.getLastNanos() >= ar.getFirstNanos());
+        Assertions.assertEquals("l", ar.getLoggerName());
+        Assertions.assertEquals(Level.INFO, ar.getLevel());
+
+        // windows that weren't flushed yet are closed by the next record
+        aggregated.clear();
+        Assertions.assertTrue(a.offer(record("l", Level.INFO, "m {0}", 1, null)));
+        Assertions.assertFalse(a.offer(record("l", Level.INFO, "m {0}", 1, null)));
+        clock.addAndGet(150);
+        Assertions.assertTrue(a.offer(record("l", Level.INFO, "m {0}", 1, null)));
+        Assertions.assertEquals(1, aggregated.size());
+
+        // windows with nothing held back produce nothing
+        aggregated.clear();
+        a.flush(true);
+        Assertions.assertTrue(aggregated.isEmpty());
+        Assertions.assertEquals(0, a.size());
+
+    }
+
+    @Test
+    public void testTraces() {
+
+        Aggregator a = new Aggregator(100, () -> 1000, r -> {});
+
+        Throwable [] same = new Throwable[2];
+        Throwable [] causes = new Throwable[2];
+        for (int i = 0; i < 2; i++) {
+            // same place, so the same trace
+            same[i] = new IllegalStateException("boom");
+            // same top throwable, different causes
+            causes[i] = new IllegalStateException("bang", new RuntimeException("cause " + i));
+        }
+
+        Assertions.assertTrue(a.offer(record("l", Level.INFO, "m", null, same[0])));
+        Assertions.assertFalse(a.offer(record("l", Level.INFO, "m", null, same[1])));
+        Assertions.assertTrue(a.offer(record("l", Level.INFO, "m", null, causes[0])));
+        Assertions.assertTrue(a.offer(record("l", Level.INFO, "m", null, causes[1])));
+        Assertions.assertEquals(3, a.size());
+
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+
+        LogRecord lr = record("l", Level.INFO, "m", null, null);
+        long nanos = Records.getNanos(lr);
+        AggregatedRecord ar = new AggregatedRecord(lr, 5, nanos, nanos + 2000000);
+
+        Map<Value, Value> map = encode(new RecordEncoder(FluentdHandler.parseFormat("message\"${message}\"")), ar);
+        Assertions.assertEquals(4, map.size());
+        Assertions.assertEquals(5, map.get(ValueFactory.newString("count")).asIntegerValue().toLong());
+        Assertions.assertEquals(lr.getMillis(), map.get(ValueFactory.newString("first")).asIntegerValue().toLong());
+        Assertions.assertEquals(lr.getMillis() + 2, map.get(ValueFactory.newString("last")).asIntegerValue().toLong());
+
+        // the format wins
+        map = encode(new RecordEncoder(FluentdHandler.parseFormat("message\"${message}\";count\"n\"")), ar);
+        Assertions.assertEquals(2, map.size());
+        Assertions.assertEquals("n", map.get(ValueFactory.newString("count")).asStringValue().asString());
+
+    }
+
+    private static Map<Value, Value> encode(RecordEncoder encoder, LogRecord r) throws Exception {
+
+        RecordEncoder.Encoded e = encoder.encode(r);
+        try (MessageUnpacker mu = MessagePack.newDefaultUnpacker(e.array(), 0, e.length())) {
+            return mu.unpackValue().asMapValue().map();
+        } finally {
+            e.release();
+        }
+
+    }
+
+}
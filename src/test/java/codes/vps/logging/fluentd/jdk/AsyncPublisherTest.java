@@ -0,0 +1,119 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class AsyncPublisherTest {
+
+    @Test
+    public void testAllDelivered() throws Exception {
+
+        for (FluentdHandler.WaitStrategy ws : FluentdHandler.WaitStrategy.values()) {
+
+            AtomicLong count = new AtomicLong();
+            AtomicLong sum = new AtomicLong();
+
+            // tiny capacity, so producers have to wait for the consumer
+            AsyncPublisher ap = new AsyncPublisher(16, ws, r->{
+                count.incrementAndGet();
+                sum.addAndGet(r.getSequenceNumber());
+            }, e->Assertions.fail(e));
+
+            int threads = 4;
+            int perThread = 5000;
+            List<Thread> producers = new ArrayList<>();
+            AtomicLong expectedSum = new AtomicLong();
+
+            for (int t=0; t<threads; t++) {
+                Thread th = new Thread(()->{
+                    for (int i=0; i<perThread; i++) {
+                        LogRecord lr = new LogRecord(Level.INFO, "a");
+                        expectedSum.addAndGet(lr.getSequenceNumber());
+                        ap.publish(lr);
+                    }
+                });
+                producers.add(th);
+                th.start();
+            }
+
+            for (Thread th : producers) {
+                th.join();
+            }
+
+            ap.drain();
+            Assertions.assertEquals(threads * perThread, count.get(), ws.name());
+            Assertions.assertEquals(expectedSum.get(), sum.get(), ws.name());
+
+            ap.publish(new LogRecord(Level.INFO, "last"));
+            ap.close();
+            Assertions.assertEquals(threads * perThread + 1, count.get(), ws.name());
+            Assertions.assertEquals(0, ap.getPending());
+
+        }
+
+    }
+
+    @Test
+    public void testDrainWaitsForSink() throws Exception {
+
+        AtomicLong count = new AtomicLong();
+        AsyncPublisher ap = new AsyncPublisher(16, FluentdHandler.WaitStrategy.PARK, r->{
+            try {
+                // the record is out of the ring, but not processed yet
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            count.incrementAndGet();
+        }, e->Assertions.fail(e));
+
+        for (int i = 0; i < 3; i++) {
+            ap.publish(new LogRecord(Level.INFO, "a"));
+        }
+        ap.drain();
+        Assertions.assertEquals(3, count.get());
+        ap.close();
+
+    }
+
+    @Test
+    public void testErrorsDontStopConsumer() {
+
+        List<Exception> errors = new CopyOnWriteArrayList<>();
+        AtomicLong count = new AtomicLong();
+        AsyncPublisher ap = new AsyncPublisher(4, FluentdHandler.WaitStrategy.PARK, r->{
+            if ("error".equals(r.getMessage())) {
+                throw new StackOverflowError();
+            }
+            count.incrementAndGet();
+        }, errors::add);
+
+        // more than the ring holds, so the producer depends on the consumer being alive
+        for (int i = 0; i < 20; i++) {
+            ap.publish(new LogRecord(Level.INFO, i % 2 == 0 ? "error" : "ok"));
+        }
+        ap.drain();
+        Assertions.assertEquals(10, count.get());
+        Assertions.assertEquals(10, errors.size());
+        Assertions.assertTrue(errors.get(0).getCause() instanceof StackOverflowError);
+        ap.close();
+
+    }
+
+    @Test
+    public void testClosedRejects() {
+
+        AsyncPublisher ap = new AsyncPublisher(4, FluentdHandler.WaitStrategy.BLOCK, r->{}, e->{});
+        ap.close();
+        Assertions.assertThrows(IllegalStateException.class, ()->ap.publish(new LogRecord(Level.INFO, "a")));
+
+    }
+
+}
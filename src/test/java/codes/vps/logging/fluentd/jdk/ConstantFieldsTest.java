@@ -0,0 +1,57 @@
+package codes.vps.logging.fluentd.jdk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class ConstantFieldsTest {
+
+    @Test
+    public void testConstant() throws Exception {
+
+        System.setProperty("fluentd.test.prop", "val");
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat(
+                "pid\"${pid}\";host\"${hostname}\";start\"${jvm_start}\"n;" +
+                "prop\"p=${property,fluentd.test.prop}${property,fluentd.test.none}\";both\"${pid}:${pid}\";n\"12\"n");
+
+        LogRecord lr = new LogRecord(Level.FINE, "a");
+        Map<String, Object> result = new HashMap<>();
+        for (FieldExtractor fe : extractors) {
+            result.put(fe.getFieldName(), fe.extract(lr));
+        }
+
+        long pid = ProcessInfo.getPid();
+        Assertions.assertTrue(pid > 0);
+        Assertions.assertEquals(pid, result.get("pid"));
+        Assertions.assertEquals(ProcessInfo.getHostName(), result.get("host"));
+        Assertions.assertEquals(ProcessInfo.getStartTime(), result.get("start"));
+        Assertions.assertEquals("p=val", result.get("prop"));
+        Assertions.assertEquals(pid + ":" + pid, result.get("both"));
+        Assertions.assertEquals(12L, result.get("n"));
+
+        // constant values are pre-encoded, and must encode the same
+        RecordEncoder.Encoded encoded = new RecordEncoder(extractors).encode(lr);
+        try {
+            Map<?, ?> decoded = new ObjectMapper(new MessagePackFactory()).readValue(
+                    Arrays.copyOf(encoded.array(), encoded.length()), Map.class);
+            Assertions.assertEquals(pid, ((Number) decoded.get("pid")).longValue());
+            Assertions.assertEquals("p=val", decoded.get("prop"));
+            Assertions.assertEquals(12, decoded.get("n"));
+        } finally {
+            encoded.release();
+        }
+
+        // conversion of constants fails when the format is parsed
+        Assertions.assertThrows(IllegalArgumentException.class, ()->FluentdHandler.parseFormat("n\"x\"n"));
+
+    }
+
+}
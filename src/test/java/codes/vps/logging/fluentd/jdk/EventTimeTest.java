@@ -0,0 +1,59 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.MsgPack;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.msgpack.core.ExtensionTypeHeader;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class EventTimeTest {
+
+    private final boolean isJava8 = System.getProperty("java.version").startsWith("1.8");
+
+    @Test
+    public void testInstant() throws Exception {
+
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat("$timestamp\"${instant}\";at\"at ${instant}\"");
+
+        LogRecord lr = new LogRecord(Level.FINE, "a");
+        lr.setMillis(14812);
+        Instant expected = Instant.ofEpochMilli(14812);
+        if (!isJava8) {
+            expected = Instant.ofEpochSecond(14, 812714563);
+            LogRecord.class.getMethod("setInstant", Instant.class).invoke(lr, expected);
+        }
+
+        Assertions.assertEquals(14L, Records.getEpochSecond(lr));
+        Assertions.assertEquals(expected.getNano(), Records.getNanoOfSecond(lr));
+
+        RecordEncoder.Encoded encoded = new RecordEncoder(extractors).encode(lr);
+        try {
+            Assertions.assertEquals(expected, encoded.getTimestamp());
+            MessageUnpacker mu = MessagePack.newDefaultUnpacker(encoded.array(), 0, encoded.length());
+            Assertions.assertEquals(1, mu.unpackMapHeader());
+            Assertions.assertEquals("at", mu.unpackString());
+            Assertions.assertEquals("at " + expected, mu.unpackString());
+        } finally {
+            encoded.release();
+        }
+
+        MessageBufferPacker mp = MessagePack.newDefaultBufferPacker();
+        MsgPack.packValue(mp, expected);
+        MessageUnpacker mu = MessagePack.newDefaultUnpacker(mp.toByteArray());
+        ExtensionTypeHeader eth = mu.unpackExtensionTypeHeader();
+        Assertions.assertEquals(0, eth.getType());
+        ByteBuffer bb = ByteBuffer.wrap(mu.readPayload(eth.getLength()));
+        Assertions.assertEquals(14, bb.getInt());
+        Assertions.assertEquals(expected.getNano(), bb.getInt());
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package codes.vps.logging.fluentd.jdk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class FieldExtractorTest {
+
+    @Test
+    public void testPrimitive() throws Exception {
+
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat(
+                "millis\"${millis}\";seq\"${sequence}\"n;tid\"${tid}\"s;n\"${millis}0\"n;b\"${message}\"b;pid\"${pid}\";m\"${message}\"");
+        extractors.add(new FieldExtractorImpl("f", r->r.getMillis() + 1));
+
+        LogRecord lr = new LogRecord(Level.FINE, "true");
+        lr.setMillis(42);
+        lr.setSequenceNumber(7);
+
+        FieldExtractor.Type [] types = {FieldExtractor.Type.LONG, FieldExtractor.Type.LONG, FieldExtractor.Type.OBJECT,
+                FieldExtractor.Type.LONG, FieldExtractor.Type.BOOLEAN, FieldExtractor.Type.LONG, FieldExtractor.Type.OBJECT,
+                FieldExtractor.Type.OBJECT};
+        for (int i = 0; i < types.length; i++) {
+            Assertions.assertEquals(types[i], extractors.get(i).getType(), extractors.get(i).getFieldName());
+        }
+
+        Assertions.assertEquals(42, extractors.get(0).extractLong(lr));
+        Assertions.assertEquals(7, extractors.get(1).extractLong(lr));
+        Assertions.assertEquals(Records.getThreadId(lr), extractors.get(2).extractLong(lr));
+        Assertions.assertEquals(420, extractors.get(3).extractLong(lr));
+        Assertions.assertTrue(extractors.get(4).extractBoolean(lr));
+        Assertions.assertEquals(ProcessInfo.getPid(), extractors.get(5).extractLong(lr));
+        Assertions.assertEquals(43, extractors.get(7).extractLong(lr));
+        Assertions.assertThrows(NumberFormatException.class, ()->extractors.get(6).extractLong(lr));
+
+        // boxed values stay the same
+        Assertions.assertEquals(42L, extractors.get(0).extract(lr));
+        Assertions.assertEquals(7L, extractors.get(1).extract(lr));
+        Assertions.assertEquals(420L, extractors.get(3).extract(lr));
+        Assertions.assertEquals(true, extractors.get(4).extract(lr));
+
+        RecordEncoder.Encoded encoded = new RecordEncoder(extractors).encode(lr);
+        try {
+            Map<?, ?> decoded = new ObjectMapper(new MessagePackFactory()).readValue(
+                    Arrays.copyOf(encoded.array(), encoded.length()), Map.class);
+            Assertions.assertEquals(42, decoded.get("millis"));
+            Assertions.assertEquals(7, decoded.get("seq"));
+            Assertions.assertEquals(String.valueOf(Records.getThreadId(lr)), decoded.get("tid"));
+            Assertions.assertEquals(420, decoded.get("n"));
+            Assertions.assertEquals(true, decoded.get("b"));
+            Assertions.assertEquals("true", decoded.get("m"));
+            Assertions.assertEquals(43, decoded.get("f"));
+        } finally {
+            encoded.release();
+        }
+
+    }
+
+}
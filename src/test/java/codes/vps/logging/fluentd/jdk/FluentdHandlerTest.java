@@ -0,0 +1,317 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.ErrorManager;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+public class FluentdHandlerTest {
+
+    @Test
+    public void testRejected() {
+
+        List<LogRecord> mapped = new ArrayList<>();
+
+        FluentdHandler h = new FluentdHandler(new FluentdHandler.Builder()
+                .setLevel(Level.INFO)
+                .setFilter(r->!"quiet".equals(r.getLoggerName()))
+                .setMapper(r->{
+                    mapped.add(r);
+                    // nothing to send to
+                    throw new IllegalStateException("mapped");
+                }));
+
+        LogRecord fine = new LogRecord(Level.FINE, "fine");
+        LogRecord quiet = new LogRecord(Level.SEVERE, "quiet");
+        quiet.setLoggerName("quiet");
+        LogRecord info = new LogRecord(Level.INFO, "info");
+
+        Assertions.assertFalse(h.isLoggable(fine));
+        Assertions.assertFalse(h.isLoggable(quiet));
+        Assertions.assertTrue(h.isLoggable(info));
+
+        h.publish(fine);
+        h.publish(quiet);
+        Assertions.assertThrows(IllegalStateException.class, ()->h.publish(info));
+
+        Assertions.assertEquals(1, mapped.size());
+        Assertions.assertSame(info, mapped.get(0));
+        Assertions.assertEquals(2, h.getRejectedCount());
+
+        h.setLevel(Level.OFF);
+        h.publish(new LogRecord(Level.SEVERE, "severe"));
+        Assertions.assertEquals(3, h.getRejectedCount());
+
+        h.setLevel(Level.ALL);
+        Assertions.assertTrue(h.isLoggable(fine));
+
+    }
+
+    @Test
+    public void testFluencyBuilder() throws Exception {
+
+        try (ForwardServer server = new ForwardServer()) {
+
+            FluentdHandler.Builder b = new FluentdHandler.Builder()
+                    .setPort(String.valueOf(server.getPort()));
+            // only takes effect if the handler uses the configured fluency builder
+            b.getFluencyBuilder().setAckResponseMode(true);
+
+            FluentdHandler h = new FluentdHandler(b);
+            try {
+                h.publish(new LogRecord(Level.INFO, "acked"));
+                h.flush();
+                Assertions.assertTrue(server.awaitEvents(1, 10000));
+            } finally {
+                h.close();
+            }
+
+            Assertions.assertTrue(server.getAcks() > 0);
+
+        }
+
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(FluentdHandler.JMX_DOMAIN + ":type=FluentdHandler,id=metrics-test");
+
+        try (ForwardServer server = new ForwardServer()) {
+
+            FluentdHandler h = new FluentdHandler(new FluentdHandler.Builder()
+                    .setPort(String.valueOf(server.getPort()))
+                    .setLevel(Level.INFO)
+                    .setJmx(true)
+                    .setJmxId("metrics-test"));
+
+            try {
+
+                long traceHits = (Long) mbs.getAttribute(name, "TraceCacheHits");
+                for (int i = 0; i < 10; i++) {
+                    LogRecord info = new LogRecord(Level.INFO, "info");
+                    info.setThrown(new IllegalStateException("trace"));
+                    h.publish(info);
+                    h.publish(new LogRecord(Level.FINE, "fine"));
+                }
+
+                Assertions.assertEquals(10L, mbs.getAttribute(name, "Published"));
+                Assertions.assertEquals(10L, mbs.getAttribute(name, "Rejected"));
+                Assertions.assertEquals(0L, mbs.getAttribute(name, "Failed"));
+                Assertions.assertTrue((Long) mbs.getAttribute(name, "BytesEmitted") > 0);
+                Assertions.assertTrue((Long) mbs.getAttribute(name, "BufferedDataSize") > 0);
+                Assertions.assertTrue((Long) mbs.getAttribute(name, "ExtractTime99thPercentile") > 0);
+                Assertions.assertTrue((Long) mbs.getAttribute(name, "EmitTimeMax") > 0);
+                // the same trace every time, cached once it repeats
+                Assertions.assertTrue((Long) mbs.getAttribute(name, "TraceCacheHits") >= traceHits + 8);
+                Assertions.assertTrue((Long) mbs.getAttribute(name, "TraceCacheMisses") >= 1);
+
+                mbs.invoke(name, "resetTimes", null, null);
+                Assertions.assertEquals(0L, mbs.getAttribute(name, "EmitTimeMax"));
+
+            } finally {
+                h.close();
+            }
+
+            Assertions.assertFalse(mbs.isRegistered(name));
+
+        }
+
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+
+        List<LogRecord> mapped = new ArrayList<>();
+
+        FluentdHandler h = new FluentdHandler(new FluentdHandler.Builder()
+                .setRateLimit("storm=1/2")
+                .setRateLimitReportMillis(3600000)
+                .setJmx(true)
+                .setJmxId("rate-limit-test")
+                .setMapper(r->{
+                    mapped.add(r);
+                    throw new IllegalStateException("mapped");
+                }));
+
+        for (int i = 0; i < 5; i++) {
+            LogRecord lr = new LogRecord(Level.WARNING, "storm");
+            lr.setLoggerName("storm");
+            try {
+                h.publish(lr);
+            } catch (IllegalStateException ignored) {}
+        }
+
+        Assertions.assertEquals(2, mapped.size());
+        ObjectName name = new ObjectName(FluentdHandler.JMX_DOMAIN + ":type=FluentdHandler,id=rate-limit-test");
+        Assertions.assertEquals(3L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Suppressed"));
+
+        // the report of suppressed records is published on close
+        h.close();
+        Assertions.assertEquals(3, mapped.size());
+        Assertions.assertEquals(3L, mapped.get(2).getParameters()[1]);
+
+    }
+
+    @Test
+    public void testCallerInfo() {
+
+        for (FluentdHandler.CallerInfo mode : FluentdHandler.CallerInfo.values()) {
+
+            List<String> callers = new CopyOnWriteArrayList<>();
+
+            // the mapper runs on the handler thread, the callers must have been found before that
+            FluentdHandler h = new FluentdHandler(new FluentdHandler.Builder()
+                    .setCallerInfo(mode)
+                    .setAsync(true)
+                    .setMapper(r->{
+                        callers.add(r.getSourceClassName() + "." + r.getSourceMethodName());
+                        throw new IllegalStateException("mapped");
+                    }));
+            h.setErrorManager(new ErrorManager() {
+                @Override
+                public synchronized void error(String msg, Exception ex, int code) {
+                }
+            });
+
+            Logger logger = Logger.getLogger("caller-info-" + mode);
+            logger.setUseParentHandlers(false);
+            logger.addHandler(h);
+            try {
+                logger.info("inferred");
+                logger.logp(Level.INFO, "Supplied", "supplied", "supplied");
+                h.flush();
+            } finally {
+                logger.removeHandler(h);
+                h.close();
+            }
+
+            String here = getClass().getName() + ".testCallerInfo";
+            // there is no caller on the handler thread
+            Assertions.assertEquals(mode == FluentdHandler.CallerInfo.OFF ? "null.null" : here, callers.get(0), mode.name());
+            Assertions.assertEquals("Supplied.supplied", callers.get(1), mode.name());
+
+        }
+
+        // with a format, the caller variables are dropped altogether
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat("m\"${class}.${method} ${message}\";c\"${class}\";l\"${logger}\"");
+        LogRecord lr = new LogRecord(Level.INFO, "msg");
+        lr.setSourceClassName("Supplied");
+        lr.setSourceMethodName("supplied");
+        lr.setLoggerName("l");
+        FieldExtractorImpl m = (FieldExtractorImpl) extractors.get(0);
+        Assertions.assertTrue(m.needsCaller());
+        Assertions.assertEquals("Supplied.supplied msg", m.extract(lr));
+        Assertions.assertEquals("null.null msg", m.withoutCaller().extract(lr));
+        Assertions.assertFalse(m.withoutCaller().needsCaller());
+        Assertions.assertNull(((FieldExtractorImpl) extractors.get(1)).withoutCaller().extract(lr));
+        FieldExtractorImpl l = (FieldExtractorImpl) extractors.get(2);
+        Assertions.assertFalse(l.needsCaller());
+        Assertions.assertSame(l, l.withoutCaller());
+
+    }
+
+    @Test
+    public void testAggregate() throws Exception {
+
+        try (ForwardServer server = new ForwardServer()) {
+
+            List<ForwardServer.Event> received = new CopyOnWriteArrayList<>();
+            server.setListener(received::add);
+
+            FluentdHandler h = new FluentdHandler(new FluentdHandler.Builder()
+                    .setPort(String.valueOf(server.getPort()))
+                    .setAggregateMillis(3600000)
+                    .setJmx(true)
+                    .setJmxId("aggregate-test"));
+
+            try {
+                for (int i = 0; i < 10; i++) {
+                    LogRecord lr = new LogRecord(Level.WARNING, "retrying {0}");
+                    lr.setLoggerName("flaky");
+                    lr.setParameters(new Object[]{i});
+                    h.publish(lr);
+                }
+                ObjectName name = new ObjectName(FluentdHandler.JMX_DOMAIN + ":type=FluentdHandler,id=aggregate-test");
+                Assertions.assertEquals(9L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Aggregated"));
+            } finally {
+                // open windows are closed with the handler
+                h.close();
+            }
+
+            Assertions.assertTrue(server.awaitEvents(2, 10000));
+            Assertions.assertNull(received.get(0).get("count"));
+            ForwardServer.Event e = received.get(1);
+            Assertions.assertEquals(9, e.get("count").asIntegerValue().toInt());
+            Assertions.assertTrue(e.get("message").asStringValue().asString().endsWith("retrying 1"));
+            Assertions.assertTrue(e.get("last").asIntegerValue().toLong() >= e.get("first").asIntegerValue().toLong());
+
+        }
+
+    }
+
+    @Test
+    public void testStripes() throws Exception {
+
+        try (ForwardServer server = new ForwardServer()) {
+
+            List<ForwardServer.Event> received = new CopyOnWriteArrayList<>();
+            server.setListener(received::add);
+
+            FluentdHandler h = new FluentdHandler(new FluentdHandler.Builder()
+                    .setPort(String.valueOf(server.getPort()))
+                    .setStripes(4)
+                    .setStripeBy(FluentdHandler.StripeBy.TAG));
+
+            Thread [] threads = new Thread[4];
+            try {
+                for (int t = 0; t < threads.length; t++) {
+                    String logger = "stripe" + t;
+                    threads[t] = new Thread(()->{
+                        for (int i = 0; i < 100; i++) {
+                            LogRecord lr = new LogRecord(Level.INFO, "{0}");
+                            lr.setLoggerName(logger);
+                            lr.setParameters(new Object[]{i});
+                            h.publish(lr);
+                        }
+                    });
+                    threads[t].start();
+                }
+                for (Thread t : threads) {
+                    t.join();
+                }
+                h.flush();
+                Assertions.assertTrue(server.awaitEvents(400, 10000));
+            } finally {
+                h.close();
+            }
+
+            // records with the same tag stay in order
+            for (int t = 0; t < threads.length; t++) {
+                String tag = "stripe" + t;
+                int expected = 0;
+                for (ForwardServer.Event e : received) {
+                    if (e.tag.equals(tag)) {
+                        String message = e.get("message").asStringValue().asString();
+                        Assertions.assertTrue(message.endsWith(" " + expected), message);
+                        expected++;
+                    }
+                }
+                Assertions.assertEquals(100, expected);
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,472 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessageInsufficientBufferException;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.ExtensionValue;
+import org.msgpack.value.MapValue;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for fluentd forward input, used by the tests and benchmarks.
+ * Listens on an ephemeral local port, and decodes everything that it receives
+ * according to the Forward protocol (Message, Forward, PackedForward and CompressedPackedForward
+ * modes), acknowledging chunks that ask for it. Delays and failures can be injected, and
+ * there are counters for what was received, and for the latency of the events (the time
+ * between the event time and the time the event was decoded).
+ */
+public class ForwardServer implements AutoCloseable {
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder acks = new LongAdder();
+    private final LongAdder compressedMessages = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final Latencies latencies = new Latencies();
+
+    private volatile long delayMillis;
+    private final AtomicInteger failNext = new AtomicInteger();
+    private volatile Consumer<Event> listener;
+    private volatile Throwable error;
+
+    public ForwardServer() throws IOException {
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        thread = new Thread(this::run, "forward-server");
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public long getBytesReceived() {
+        return bytes.sum();
+    }
+
+    /**
+     * Returns number of forward protocol messages (i.e. chunks) that were received and processed.
+     * @return number of messages
+     */
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getEvents() {
+        return events.sum();
+    }
+
+    public long getAcks() {
+        return acks.sum();
+    }
+
+    /**
+     * Returns number of messages that were received in the CompressedPackedForward mode.
+     * @return number of compressed messages
+     */
+    public long getCompressedMessages() {
+        return compressedMessages.sum();
+    }
+
+    /**
+     * Returns number of messages that were dropped because of injected failures.
+     * @return number of failures
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Returns the error that stopped the server thread, {@link #close()} rethrows it as well,
+     * so tests that use the server fail if the server did.
+     * @return error, or {@code null} if there was none
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public Latencies getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * Makes the server sleep for the specified time before processing each message.
+     * @param delayMillis delay, in milliseconds
+     */
+    public void setDelayMillis(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    /**
+     * Makes the server drop the next messages it receives, the connection
+     * that a dropped message came over is closed.
+     * @param count number of messages to drop
+     */
+    public void failNext(int count) {
+        failNext.set(count);
+    }
+
+    /**
+     * Sets listener that is called (on the server thread) for every received event.
+     * @param listener listener, {@code null} for none
+     */
+    public void setListener(Consumer<Event> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Waits until the server has received the specified number of events.
+     * @param count number of events to wait for
+     * @param timeoutMillis how long to wait for
+     * @return {@code true} if the events were received in time
+     * @throws InterruptedException if interrupted
+     */
+    public boolean awaitEvents(long count, long timeoutMillis) throws InterruptedException {
+        long until = System.currentTimeMillis() + timeoutMillis;
+        while (events.sum() < count) {
+            if (System.currentTimeMillis() > until) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    private void run() {
+
+        while (!closed) {
+
+            try {
+
+                selector.select();
+
+                Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                while (i.hasNext()) {
+
+                    SelectionKey key = i.next();
+                    i.remove();
+
+                    if (!key.isValid()) { continue; }
+
+                    if (key.isAcceptable()) {
+                        SocketChannel sc = server.accept();
+                        if (sc != null) {
+                            sc.configureBlocking(false);
+                            sc.register(selector, SelectionKey.OP_READ, new Connection(sc));
+                        }
+                    } else if (key.isReadable()) {
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (!c.read()) {
+                                key.cancel();
+                                c.channel.close();
+                            }
+                        } catch (IOException e) {
+                            key.cancel();
+                            c.channel.close();
+                        }
+                    }
+
+                }
+
+            } catch (Throwable e) {
+                // the first error is the one that matters
+                if (!closed && error == null) {
+                    error = e;
+                }
+            }
+
+        }
+
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        if (closed) { return; }
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+
+        if (error != null) {
+            throw new IOException("Forward server failed", error);
+        }
+
+    }
+
+    private class Connection {
+
+        final SocketChannel channel;
+        final ByteBuffer readBuf = ByteBuffer.allocate(65536);
+        byte [] pending = new byte[65536];
+        int len;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads available data, and processes all complete messages.
+         * @return {@code false} if the connection must be closed.
+         */
+        boolean read() throws IOException {
+
+            while (true) {
+
+                readBuf.clear();
+                int n = channel.read(readBuf);
+                if (n < 0) { return false; }
+                if (n == 0) { break; }
+
+                bytes.add(n);
+                if (len + n > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(pending.length * 2, len + n));
+                }
+                readBuf.flip();
+                readBuf.get(pending, len, n);
+                len += n;
+
+            }
+
+            int start = 0;
+            while (start < len) {
+
+                // skipping is cheap even for large chunks, as payloads of the
+                // packed modes are skipped over entirely.
+                int size;
+                try (MessageUnpacker mu = MessagePack.newDefaultUnpacker(pending, start, len - start)) {
+                    mu.skipValue();
+                    size = (int) mu.getTotalReadBytes();
+                } catch (MessageInsufficientBufferException e) {
+                    break;
+                }
+
+                Value msg;
+                try (MessageUnpacker mu = MessagePack.newDefaultUnpacker(pending, start, size)) {
+                    msg = mu.unpackValue();
+                }
+                start += size;
+
+                if (!process(msg)) {
+                    return false;
+                }
+
+            }
+
+            System.arraycopy(pending, start, pending, 0, len - start);
+            len -= start;
+            return true;
+
+        }
+
+        private boolean process(Value msg) throws IOException {
+
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (failNext.getAndUpdate(v->v > 0 ? v - 1 : 0) > 0) {
+                failures.increment();
+                return false;
+            }
+
+            ArrayValue a = msg.asArrayValue();
+            String tag = a.get(0).asStringValue().asString();
+            Value entries = a.get(1);
+            MapValue option = null;
+
+            if (entries.isArrayValue()) {
+                // Forward mode
+                for (Value e : entries.asArrayValue()) {
+                    ArrayValue entry = e.asArrayValue();
+                    event(tag, entry.get(0), entry.get(1).asMapValue());
+                }
+                if (a.size() > 2) { option = a.get(2).asMapValue(); }
+            } else if (entries.isRawValue()) {
+                // PackedForward or CompressedPackedForward mode
+                if (a.size() > 2) { option = a.get(2).asMapValue(); }
+                byte [] packed = entries.asRawValue().asByteArray();
+                Value compressed = option == null ? null : option.map().get(ValueFactory.newString("compressed"));
+                if (compressed != null && "gzip".equals(compressed.asStringValue().asString())) {
+                    packed = gunzip(packed);
+                    compressedMessages.increment();
+                }
+                try (MessageUnpacker mu = MessagePack.newDefaultUnpacker(packed)) {
+                    while (mu.hasNext()) {
+                        ArrayValue entry = mu.unpackValue().asArrayValue();
+                        event(tag, entry.get(0), entry.get(1).asMapValue());
+                    }
+                }
+            } else {
+                // Message mode
+                event(tag, entries, a.get(2).asMapValue());
+                if (a.size() > 3) { option = a.get(3).asMapValue(); }
+            }
+
+            messages.increment();
+
+            Value chunk = option == null ? null : option.map().get(ValueFactory.newString("chunk"));
+            if (chunk != null) {
+                acks.increment();
+                try (MessageBufferPacker mp = MessagePack.newDefaultBufferPacker()) {
+                    mp.packMapHeader(1);
+                    mp.packString("ack");
+                    mp.packValue(chunk);
+                    ByteBuffer bb = ByteBuffer.wrap(mp.toByteArray());
+                    while (bb.hasRemaining()) {
+                        channel.write(bb);
+                    }
+                }
+            }
+
+            return true;
+
+        }
+
+        private void event(String tag, Value time, MapValue record) {
+
+            long nanos;
+            if (time.isExtensionValue()) {
+                ExtensionValue ev = time.asExtensionValue();
+                ByteBuffer bb = ByteBuffer.wrap(ev.getData());
+                nanos = TimeUnit.SECONDS.toNanos(bb.getInt() & 0xffffffffL) + bb.getInt();
+            } else {
+                nanos = TimeUnit.SECONDS.toNanos(time.asIntegerValue().toLong());
+            }
+
+            long now = System.currentTimeMillis();
+            latencies.add(Math.max(0, TimeUnit.MILLISECONDS.toMicros(now) - TimeUnit.NANOSECONDS.toMicros(nanos)));
+            events.increment();
+
+            Consumer<Event> l = listener;
+            if (l != null) {
+                l.accept(new Event(tag, nanos, record.map()));
+            }
+
+        }
+
+    }
+
+    private static byte [] gunzip(byte [] data) throws IOException {
+
+        // the data may consist of multiple gzip members, GZIPInputStream reads them all
+        try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(data))) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte [] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) >= 0) {
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        }
+
+    }
+
+    /**
+     * Received event.
+     */
+    public static class Event {
+
+        public final String tag;
+        public final long nanos;
+        public final Map<Value, Value> record;
+
+        Event(String tag, long nanos, Map<Value, Value> record) {
+            this.tag = tag;
+            this.nanos = nanos;
+            this.record = record;
+        }
+
+        public Value get(String key) {
+            return record.get(ValueFactory.newString(key));
+        }
+
+    }
+
+    /**
+     * Collects latency samples, in microseconds.
+     */
+    public static class Latencies {
+
+        private long [] samples = new long[1024];
+        private int count;
+
+        synchronized void add(long micros) {
+            if (count == samples.length) {
+                samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = micros;
+        }
+
+        public synchronized int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns latency percentile.
+         * @param p percentile, between 0 and 100
+         * @return latency, in microseconds, or {@code 0} if there are no samples
+         */
+        public synchronized long percentile(double p) {
+            if (count == 0) { return 0; }
+            long [] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int idx = (int) Math.ceil(p / 100 * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, idx))];
+        }
+
+        public synchronized void clear() {
+            count = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,339 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+import org.msgpack.core.MessagePacker;
+import org.komamitsu.fluency.fluentd.FluencyBuilderForFluentd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Checks {@link ForwardServer} itself, and runs the handler against it, measuring
+ * throughput and latency.
+ */
+public class ForwardServerTest {
+
+    private final static int EVENTS = 20000;
+
+    @Test
+    public void testModes() throws Exception {
+
+        try (ForwardServer server = new ForwardServer();
+             Socket s = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+
+            List<ForwardServer.Event> received = new CopyOnWriteArrayList<>();
+            server.setListener(received::add);
+
+            OutputStream os = s.getOutputStream();
+            InputStream is = s.getInputStream();
+
+            // Message
+            MessageBufferPacker mp = MessagePack.newDefaultBufferPacker();
+            mp.packArrayHeader(3).packString("t1").packLong(1500000000L);
+            record(mp, "message");
+            os.write(mp.toByteArray());
+
+            // Forward, with an ack request
+            mp = MessagePack.newDefaultBufferPacker();
+            mp.packArrayHeader(3).packString("t2").packArrayHeader(2);
+            mp.packArrayHeader(2).packLong(1500000000L);
+            record(mp, "forward1");
+            mp.packArrayHeader(2).packLong(1500000000L);
+            record(mp, "forward2");
+            mp.packMapHeader(1).packString("chunk").packString("c1");
+            byte [] forward = mp.toByteArray();
+            // write it in pieces, so the server has to wait for the rest
+            os.write(forward, 0, 5);
+            os.flush();
+            Thread.sleep(50);
+            os.write(forward, 5, forward.length - 5);
+            Assertions.assertEquals("c1", readAck(is));
+
+            // PackedForward
+            byte [] entries = entries("packed", 3);
+            mp = MessagePack.newDefaultBufferPacker();
+            mp.packArrayHeader(3).packString("t3").packBinaryHeader(entries.length).writePayload(entries);
+            mp.packMapHeader(2).packString("size").packInt(3).packString("chunk").packString("c2");
+            os.write(mp.toByteArray());
+            Assertions.assertEquals("c2", readAck(is));
+
+            // CompressedPackedForward, in two gzip members
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            for (int i = 0; i < 2; i++) {
+                try (GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+                    gz.write(entries("gzip", 2));
+                }
+            }
+            byte [] gzipped = bos.toByteArray();
+            mp = MessagePack.newDefaultBufferPacker();
+            mp.packArrayHeader(3).packString("t4").packRawStringHeader(gzipped.length).writePayload(gzipped);
+            mp.packMapHeader(2).packString("compressed").packString("gzip").packString("chunk").packString("c3");
+            os.write(mp.toByteArray());
+            Assertions.assertEquals("c3", readAck(is));
+
+            Assertions.assertTrue(server.awaitEvents(10, 5000));
+            Assertions.assertEquals(4, server.getMessages());
+            Assertions.assertEquals(3, server.getAcks());
+            Assertions.assertEquals("message", received.get(0).get("m").asStringValue().asString());
+            Assertions.assertEquals(1500000000L * 1000000000L, received.get(0).nanos);
+            Assertions.assertEquals("t2", received.get(2).tag);
+            Assertions.assertEquals("packed", received.get(3).get("m").asStringValue().asString());
+            Assertions.assertEquals("t4", received.get(9).tag);
+            Assertions.assertEquals(10, server.getLatencies().getCount());
+
+        }
+
+    }
+
+    @Test
+    public void testSingleHost() throws Exception {
+
+        try (ForwardServer server = new ForwardServer()) {
+            run("single host", server, new ForwardServer[]{server}, false);
+        }
+
+    }
+
+    @Test
+    public void testMultiHost() throws Exception {
+
+        try (ForwardServer s1 = new ForwardServer(); ForwardServer s2 = new ForwardServer()) {
+            run("multi host", s1, new ForwardServer[]{s1, s2}, false);
+        }
+
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+
+        try (ForwardServer s1 = new ForwardServer(); ForwardServer s2 = new ForwardServer()) {
+            run("round robin", s1, new ForwardServer[]{s1, s2}, false,
+                    b->b.setDistribution(FluentdHandler.Distribution.ROUND_ROBIN));
+            Assertions.assertTrue(s1.getMessages() > 0);
+            Assertions.assertTrue(s2.getMessages() > 0);
+        }
+
+    }
+
+    @Test
+    public void testHash() throws Exception {
+
+        try (ForwardServer s1 = new ForwardServer(); ForwardServer s2 = new ForwardServer();
+             ForwardServer down = new ForwardServer()) {
+
+            ForwardServer [] servers = {s1, s2, down};
+            Map<String, Set<ForwardServer>> byTag = new ConcurrentHashMap<>();
+            for (ForwardServer s : servers) {
+                s.setListener(e->byTag.computeIfAbsent(e.tag, t->ConcurrentHashMap.newKeySet()).add(s));
+            }
+
+            // records that would go to the host that is down go to the other hosts instead
+            FluentdHandler h = handler(servers, false, b->b.setDistribution(FluentdHandler.Distribution.HASH));
+            down.close();
+
+            try {
+                for (int i = 0; i < 1000; i++) {
+                    LogRecord lr = new LogRecord(Level.INFO, "event");
+                    lr.setLoggerName("tag" + (i % 50));
+                    h.publish(lr);
+                }
+                h.flush();
+                Assertions.assertTrue(awaitTotal(new ForwardServer[]{s1, s2}, 1000, 30000));
+            } finally {
+                h.close();
+            }
+
+            Assertions.assertEquals(50, byTag.size());
+            Assertions.assertTrue(s1.getEvents() > 0);
+            Assertions.assertTrue(s2.getEvents() > 0);
+            for (Set<ForwardServer> hosts : byTag.values()) {
+                Assertions.assertEquals(1, hosts.size());
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+
+        try (ForwardServer server = new ForwardServer()) {
+            run("gzip", server, new ForwardServer[]{server}, true, b->b.setCompression(FluentdHandler.Compression.GZIP));
+            Assertions.assertEquals(server.getMessages(), server.getCompressedMessages());
+            Assertions.assertEquals(server.getMessages(), server.getAcks());
+            Assertions.assertTrue(server.getBytesReceived() > 0);
+        }
+
+    }
+
+    @Test
+    public void testSpool() throws Exception {
+
+        File dir = Files.createTempDirectory("spool").toFile();
+        try (ForwardServer server = new ForwardServer()) {
+            // the segments are small, so most of them are deleted while the events are sent
+            run("spool", server, new ForwardServer[]{server}, true,
+                    b->b.setSpoolDir(dir.getPath()).setSpoolSegmentSize(65536));
+            Assertions.assertEquals(server.getMessages(), server.getAcks());
+        }
+        // everything was sent, nothing is left to replay
+        String [] left = dir.list();
+        Assertions.assertNotNull(left);
+        Assertions.assertEquals(0, left.length);
+
+    }
+
+    @Test
+    public void testAckWithFailures() throws Exception {
+
+        try (ForwardServer server = new ForwardServer()) {
+            // dropped chunks are not acknowledged, and must be sent again
+            server.failNext(2);
+            run("ack, with failures", server, new ForwardServer[]{server}, true);
+            Assertions.assertEquals(2, server.getFailures());
+            Assertions.assertEquals(server.getMessages(), server.getAcks());
+        }
+
+    }
+
+    @Test
+    public void testDelay() throws Exception {
+
+        try (ForwardServer server = new ForwardServer()) {
+
+            server.setDelayMillis(100);
+            FluentdHandler h = handler(new ForwardServer[]{server}, true);
+            try {
+                h.publish(new LogRecord(Level.INFO, "slow"));
+                h.flush();
+                Assertions.assertTrue(server.awaitEvents(1, 10000));
+                Assertions.assertTrue(server.getLatencies().percentile(50) >= 100000);
+            } finally {
+                h.close();
+            }
+
+        }
+
+    }
+
+    /**
+     * Publishes {@link #EVENTS} events, and waits until they are all received.
+     */
+    private void run(String name, ForwardServer primary, ForwardServer[] servers, boolean ack) throws Exception {
+        run(name, primary, servers, ack, b->{});
+    }
+
+    private void run(String name, ForwardServer primary, ForwardServer[] servers, boolean ack,
+                     Consumer<FluentdHandler.Builder> config) throws Exception {
+
+        FluentdHandler h = handler(servers, ack, config);
+
+        try {
+
+            for (int i = 0; i < EVENTS; i++) {
+                LogRecord lr = new LogRecord(Level.INFO, "event {0}");
+                lr.setLoggerName("test");
+                lr.setParameters(new Object[]{i});
+                h.publish(lr);
+            }
+            h.flush();
+
+            // with multiple hosts, events may go to any of them
+            Assertions.assertTrue(awaitTotal(servers, EVENTS, 30000), name + ": not all events received");
+            // throughput and latencies are measured by PublishBenchmark, only check that they are recorded
+            Assertions.assertTrue(primary.getLatencies().getCount() > 0, name + ": no latencies recorded");
+
+        } finally {
+            h.close();
+        }
+
+    }
+
+    private static boolean awaitTotal(ForwardServer[] servers, long count, long timeoutMillis) throws InterruptedException {
+
+        long until = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            long total = 0;
+            for (ForwardServer s : servers) {
+                total += s.getEvents();
+            }
+            if (total >= count) { return true; }
+            if (System.currentTimeMillis() > until) { return false; }
+            Thread.sleep(5);
+        }
+
+    }
+
+    private FluentdHandler handler(ForwardServer[] servers, boolean ack) {
+        return handler(servers, ack, b->{});
+    }
+
+    private FluentdHandler handler(ForwardServer[] servers, boolean ack, Consumer<FluentdHandler.Builder> config) {
+
+        StringBuilder hosts = new StringBuilder();
+        StringBuilder ports = new StringBuilder();
+        for (ForwardServer s : servers) {
+            if (hosts.length() > 0) {
+                hosts.append(',');
+                ports.append(',');
+            }
+            hosts.append("127.0.0.1");
+            ports.append(s.getPort());
+        }
+
+        FluentdHandler.Builder b = new FluentdHandler.Builder()
+                .setHost(hosts.toString())
+                .setPort(ports.toString())
+                .setNanoTime(true);
+        config.accept(b);
+        FluencyBuilderForFluentd fb = b.getFluencyBuilder();
+        fb.setAckResponseMode(ack);
+        fb.setBufferChunkRetentionTimeMillis(50);
+        fb.setFlushAttemptIntervalMillis(20);
+        fb.setSenderBaseRetryIntervalMillis(50);
+        fb.setWaitUntilBufferFlushed(10);
+        fb.setWaitUntilFlusherTerminated(10);
+
+        return new FluentdHandler(b);
+
+    }
+
+    private static void record(MessagePacker mp, String m) throws Exception {
+        mp.packMapHeader(1).packString("m").packString(m);
+    }
+
+    private static byte [] entries(String m, int count) throws Exception {
+        MessageBufferPacker mp = MessagePack.newDefaultBufferPacker();
+        for (int i = 0; i < count; i++) {
+            mp.packArrayHeader(2).packLong(1500000000L);
+            record(mp, m);
+        }
+        return mp.toByteArray();
+    }
+
+    private static String readAck(InputStream is) throws Exception {
+        MessageUnpacker mu = MessagePack.newDefaultUnpacker(is);
+        Assertions.assertEquals(1, mu.unpackMapHeader());
+        Assertions.assertEquals("ack", mu.unpackString());
+        return mu.unpackString();
+    }
+
+}
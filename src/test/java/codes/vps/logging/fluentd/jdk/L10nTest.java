@@ -0,0 +1,51 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.text.MessageFormat;
+import java.util.List;
+import java.util.ListResourceBundle;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class L10nTest {
+
+    @Test
+    public void testL10n() {
+
+        ListResourceBundle bundle = new ListResourceBundle() {
+            @Override
+            protected Object[][] getContents() {
+                return new Object[][]{{"hello", "Hello, {0}! {1,number,#.#}"}, {"bad", "{0 broken"}};
+            }
+        };
+
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat("m\"${l10n}\"");
+
+        for (int i = 0; i < 3; i++) {
+
+            LogRecord lr = new LogRecord(Level.INFO, "hello");
+            lr.setResourceBundle(bundle);
+            lr.setParameters(new Object[]{"world", 1.25 + i});
+            Assertions.assertEquals(MessageFormat.format("Hello, {0}! {1,number,#.#}", "world", 1.25 + i),
+                    extractors.get(0).extract(lr));
+
+            // no such key, used as is
+            lr.setMessage("missing {0}");
+            Assertions.assertEquals("missing world", extractors.get(0).extract(lr));
+
+            // invalid pattern, used as is
+            lr.setMessage("bad");
+            Assertions.assertEquals("{0 broken", extractors.get(0).extract(lr));
+
+            // no parameters, no formatting
+            lr.setMessage("hello");
+            lr.setParameters(null);
+            Assertions.assertEquals("Hello, {0}! {1,number,#.#}", extractors.get(0).extract(lr));
+
+        }
+
+    }
+
+}
@@ -0,0 +1,84 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class NameCacheTest {
+
+    @Test
+    public void testPack() throws Exception {
+
+        NameCache nc = new NameCache(2);
+        StringBuilder longName = new StringBuilder();
+        while (longName.length() <= NameCache.MAX_LENGTH) {
+            longName.append("name.");
+        }
+
+        MessageBufferPacker mp = MessagePack.newDefaultBufferPacker();
+        nc.pack(mp, "com.example.Main");
+        nc.pack(mp, "com.example.Main");
+        nc.pack(mp, "é");
+        nc.pack(mp, null);
+        nc.pack(mp, longName.toString());
+        // more names than the cache holds are still written
+        for (int i = 0; i < 10; i++) {
+            nc.pack(mp, "l" + i);
+        }
+
+        MessageUnpacker mu = MessagePack.newDefaultUnpacker(mp.toByteArray());
+        Assertions.assertEquals("com.example.Main", mu.unpackString());
+        Assertions.assertEquals("com.example.Main", mu.unpackString());
+        Assertions.assertEquals("é", mu.unpackString());
+        Assertions.assertTrue(mu.tryUnpackNil());
+        Assertions.assertEquals(longName.toString(), mu.unpackString());
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals("l" + i, mu.unpackString());
+        }
+
+        Assertions.assertEquals(1, nc.getHits());
+        Assertions.assertEquals(12, nc.getMisses());
+        Assertions.assertTrue(nc.size() <= 2);
+
+    }
+
+    @Test
+    public void testFields() throws Exception {
+
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat(
+                "c\"${class}\";m\"${method}\";l\"${logger}\";v\"${level}\";s\"${method}\"s");
+
+        LogRecord lr = new LogRecord(Level.INFO, "a");
+        lr.setSourceClassName("com.example.Main");
+        lr.setSourceMethodName(null);
+        lr.setLoggerName("com.example");
+
+        RecordEncoder.Encoded encoded = new RecordEncoder(extractors).encode(lr);
+        try {
+            MessageUnpacker mu = MessagePack.newDefaultUnpacker(Arrays.copyOf(encoded.array(), encoded.length()));
+            Assertions.assertEquals(5, mu.unpackMapHeader());
+            Assertions.assertEquals("c", mu.unpackString());
+            Assertions.assertEquals("com.example.Main", mu.unpackString());
+            Assertions.assertEquals("m", mu.unpackString());
+            Assertions.assertTrue(mu.tryUnpackNil());
+            Assertions.assertEquals("l", mu.unpackString());
+            Assertions.assertEquals("com.example", mu.unpackString());
+            Assertions.assertEquals("v", mu.unpackString());
+            Assertions.assertEquals("INFO", mu.unpackString());
+            // converted the same way as any other value
+            Assertions.assertEquals("s", mu.unpackString());
+            Assertions.assertEquals("null", mu.unpackString());
+        } finally {
+            encoded.release();
+        }
+
+    }
+
+}
@@ -0,0 +1,93 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.msgpack.core.ExtensionTypeHeader;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessagePacker;
+import org.msgpack.core.MessageUnpacker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class ParamCodecsTest {
+
+    @Test
+    public void testParamsArray() throws Exception {
+
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat(
+                "params\"${params,array}\";joined\"[${params,array}]\";none\"${params,array}\"s");
+
+        Instant at = Instant.ofEpochSecond(14, 812);
+        LogRecord lr = new LogRecord(Level.FINE, "a");
+        lr.setParameters(new Object[]{"x", 1, 2.5, true, null, at, new byte[]{1, 2}, Thread.State.NEW,
+                new StringBuilder("sb")});
+
+        ParamCodecs.register(new ParamCodec<CharSequence>() {
+            @Override
+            public Class<CharSequence> getType() {
+                return CharSequence.class;
+            }
+
+            @Override
+            public void pack(MessagePacker packer, CharSequence value) throws IOException {
+                packer.packString("cs:" + value);
+            }
+        });
+
+        RecordEncoder.Encoded encoded = new RecordEncoder(extractors).encode(lr);
+        try {
+
+            MessageUnpacker mu = MessagePack.newDefaultUnpacker(encoded.array(), 0, encoded.length());
+            Assertions.assertEquals(3, mu.unpackMapHeader());
+
+            Assertions.assertEquals("params", mu.unpackString());
+            Assertions.assertEquals(9, mu.unpackArrayHeader());
+            Assertions.assertEquals("x", mu.unpackString());
+            Assertions.assertEquals(1, mu.unpackLong());
+            Assertions.assertEquals(2.5, mu.unpackDouble());
+            Assertions.assertTrue(mu.unpackBoolean());
+            mu.unpackNil();
+            ExtensionTypeHeader eth = mu.unpackExtensionTypeHeader();
+            Assertions.assertEquals(0, eth.getType());
+            ByteBuffer bb = ByteBuffer.wrap(mu.readPayload(eth.getLength()));
+            Assertions.assertEquals(14, bb.getInt());
+            Assertions.assertEquals(812, bb.getInt());
+            Assertions.assertArrayEquals(new byte[]{1, 2}, mu.readPayload(mu.unpackBinaryHeader()));
+            // no codec, string representation
+            Assertions.assertEquals("NEW", mu.unpackString());
+            // codec of an interface
+            Assertions.assertEquals("cs:sb", mu.unpackString());
+
+            // not on its own, printed as it always was
+            Assertions.assertEquals("joined", mu.unpackString());
+            Assertions.assertTrue(mu.unpackString().startsWith("[x,1,2.5,true,null,"));
+            Assertions.assertEquals("none", mu.unpackString());
+            Assertions.assertTrue(mu.unpackString().startsWith("x,1,"));
+
+        } finally {
+            encoded.release();
+            ParamCodecs.unregister(CharSequence.class);
+        }
+
+        Assertions.assertEquals(Arrays.asList(lr.getParameters()), extractors.get(0).extract(lr));
+
+        lr.setParameters(null);
+        encoded = new RecordEncoder(extractors).encode(lr);
+        try {
+            MessageUnpacker mu = MessagePack.newDefaultUnpacker(encoded.array(), 0, encoded.length());
+            mu.unpackMapHeader();
+            mu.unpackString();
+            Assertions.assertEquals(0, mu.unpackArrayHeader());
+        } finally {
+            encoded.release();
+        }
+
+    }
+
+}
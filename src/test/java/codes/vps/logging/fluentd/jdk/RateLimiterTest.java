@@ -0,0 +1,106 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class RateLimiterTest {
+
+    private static LogRecord record(String logger, Level level) {
+        LogRecord lr = new LogRecord(level, "m");
+        lr.setLoggerName(logger);
+        return lr;
+    }
+
+    private static int allowed(RateLimiter rl, String logger, Level level, int attempts) {
+        int n = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (rl.tryAcquire(record(logger, level))) { n++; }
+        }
+        return n;
+    }
+
+    @Test
+    public void testLimits() {
+
+        AtomicLong clock = new AtomicLong(1000);
+        List<LogRecord> reports = new ArrayList<>();
+        RateLimiter rl = new RateLimiter("com.example:WARNING=10/5; com.example.db=2; =100",
+                clock::get, reports::add);
+
+        // burst, then nothing until the tokens come back
+        Assertions.assertEquals(5, allowed(rl, "com.example.web", Level.WARNING, 20));
+        // each level has its own bucket
+        Assertions.assertEquals(5, allowed(rl, "com.example", Level.INFO, 20));
+        Assertions.assertEquals(2, allowed(rl, "com.example.db", Level.WARNING, 20));
+        // the rule doesn't apply to SEVERE, the catch-all rule does
+        Assertions.assertEquals(20, allowed(rl, "com.example.web", Level.SEVERE, 20));
+        // not a descendant
+        Assertions.assertEquals(20, allowed(rl, "com.examples", Level.WARNING, 20));
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(200));
+        Assertions.assertEquals(2, allowed(rl, "com.example.web", Level.WARNING, 20));
+
+        rl.report();
+        Assertions.assertEquals(3, reports.size());
+        LogRecord web = reports.stream().filter(r->r.getLoggerName().equals("com.example.web")).findFirst().get();
+        Assertions.assertEquals(Level.WARNING, web.getLevel());
+        Assertions.assertEquals(15L + 18L, web.getParameters()[1]);
+
+        reports.clear();
+        rl.report();
+        Assertions.assertTrue(reports.isEmpty());
+
+        Assertions.assertEquals(0, allowed(rl, "com.example.web", Level.WARNING, 1));
+        rl.report();
+        Assertions.assertEquals(1, reports.size());
+        Assertions.assertEquals(1L, reports.get(0).getParameters()[1]);
+
+    }
+
+    @Test
+    public void testSharedBuckets() {
+
+        AtomicLong clock = new AtomicLong(1000);
+        List<LogRecord> reports = new ArrayList<>();
+        RateLimiter rl = new RateLimiter("com.example=10/5", clock::get, reports::add);
+
+        // loggers under the same rule draw from the same bucket, however many there are
+        Assertions.assertEquals(3, allowed(rl, "com.example.a", Level.INFO, 3));
+        Assertions.assertEquals(2, allowed(rl, "com.example.b", Level.INFO, 10));
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertEquals(0, allowed(rl, "com.example.c" + i, Level.INFO, 1));
+        }
+
+        // but the suppressed records are reported for each logger
+        rl.report();
+        Assertions.assertEquals(101, reports.size());
+        LogRecord b = reports.stream().filter(r->r.getLoggerName().equals("com.example.b")).findFirst().get();
+        Assertions.assertEquals(8L, b.getParameters()[1]);
+
+    }
+
+    @Test
+    public void testParse() {
+
+        List<RateLimiter.Rule> rules = RateLimiter.parse("=1;a.b=2;a:FINE=3/7;a=4;");
+        Assertions.assertEquals(4, rules.size());
+        Assertions.assertEquals("a.b", rules.get(0).prefix);
+        Assertions.assertEquals(Level.FINE, rules.get(1).level);
+        Assertions.assertEquals(7, rules.get(1).burst);
+        Assertions.assertEquals(4, rules.get(2).burst);
+        Assertions.assertEquals("", rules.get(3).prefix);
+
+        Assertions.assertThrows(IllegalArgumentException.class, ()->RateLimiter.parse("a"));
+        Assertions.assertThrows(IllegalArgumentException.class, ()->RateLimiter.parse("a=0"));
+        Assertions.assertThrows(IllegalArgumentException.class, ()->RateLimiter.parse("a:LOUD=1"));
+
+    }
+
+}
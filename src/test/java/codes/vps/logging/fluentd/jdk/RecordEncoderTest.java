@@ -0,0 +1,53 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.U;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class RecordEncoderTest {
+
+    @Test
+    public void testEncode() throws Exception {
+
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat(FluentdHandler.DEFAULT_FORMAT +
+                ";$timestamp\"${millis}\";millis\"${millis}\";flag\"true\"b;message\"${message}\"");
+
+        LogRecord lr = new LogRecord(Level.WARNING, "hello {0}");
+        lr.setLoggerName("log");
+        lr.setSourceClassName("src");
+        lr.setSourceMethodName("method");
+        lr.setMillis(100);
+        lr.setParameters(new Object[]{"world"});
+        lr.setThrown(new Exception("boom"));
+
+        RecordEncoder.Encoded encoded = new RecordEncoder(extractors).encode(lr);
+        try {
+
+            Assertions.assertEquals("", encoded.getTag());
+            Assertions.assertEquals(100L, encoded.getTimestamp());
+
+            Map<?, ?> decoded = new ObjectMapper(new MessagePackFactory()).readValue(
+                    Arrays.copyOf(encoded.array(), encoded.length()), Map.class);
+
+            Assertions.assertEquals(4, decoded.size());
+            // last definition of the field wins
+            Assertions.assertEquals("hello {0}", decoded.get("message"));
+            Assertions.assertEquals(U.throwableToString(lr.getThrown()), decoded.get("stack"));
+            Assertions.assertEquals(100, decoded.get("millis"));
+            Assertions.assertEquals(true, decoded.get("flag"));
+
+        } finally {
+            encoded.release();
+        }
+
+    }
+
+}
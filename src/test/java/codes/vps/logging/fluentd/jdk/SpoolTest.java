@@ -0,0 +1,227 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.komamitsu.fluency.EventTime;
+import org.komamitsu.fluency.fluentd.recordformat.FluentdRecordFormatter;
+import org.komamitsu.fluency.ingester.Ingester;
+import org.komamitsu.fluency.ingester.sender.Sender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SpoolTest {
+
+    private final static EventTime TIME = new EventTime(1500000000L, 123456789L);
+
+    @Test
+    public void testEntrySize() {
+
+        byte [] record = {(byte) 0x81, (byte) 0xa1, 'm', (byte) 0xa1, 'x'};
+        byte [] entry = new FluentdRecordFormatter().formatFromMessagePack("tag", TIME, record, 0, record.length);
+        Assertions.assertEquals(Spool.ENTRY_OVERHEAD + record.length, entry.length);
+
+    }
+
+    @Test
+    public void testTrack() throws Exception {
+
+        File dir = Files.createTempDirectory("spool").toFile();
+        // room for two records in each segment
+        Spool spool = new Spool(dir, Spool.HEADER_SIZE + 2 * (8 + 2 + 3 + 12 + 100), Long.MAX_VALUE, 1);
+
+        List<Integer> ingested = new ArrayList<>();
+        Ingester ingester = spool.track(new Ingester() {
+            @Override
+            public void ingest(String tag, ByteBuffer dataBuffer) {
+                ingested.add(dataBuffer.remaining());
+            }
+
+            @Override
+            public Sender getSender() {
+                return null;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, 0);
+
+        for (int i = 0; i < 5; i++) {
+            spool.emit(0, "tag", TIME, new byte[100], 0, 100, ()->{});
+        }
+        Assertions.assertEquals(3, spool.getSegmentCount());
+        Assertions.assertEquals(3, files(dir));
+
+        // a failed emit is not kept
+        Assertions.assertThrows(IOException.class, ()->spool.emit(0, "tag", TIME, new byte[100], 0, 100,
+                ()->{ throw new IOException("buffer full"); }));
+
+        // chunks of other tags don't release anything
+        ingester.ingest("other", ByteBuffer.allocate(3 * (Spool.ENTRY_OVERHEAD + 100)));
+        Assertions.assertEquals(3, spool.getSegmentCount());
+
+        // the first segment is all sent
+        ingester.ingest("tag", ByteBuffer.allocate(2 * (Spool.ENTRY_OVERHEAD + 100)));
+        Assertions.assertEquals(2, spool.getSegmentCount());
+        Assertions.assertEquals(2, files(dir));
+
+        Assertions.assertEquals(1, spool.getPendingTags());
+
+        // the rest is sent, but the last segment is still being written to
+        ingester.ingest("tag", ByteBuffer.allocate(3 * (Spool.ENTRY_OVERHEAD + 100)));
+        Assertions.assertEquals(1, spool.getSegmentCount());
+        // nothing is in flight, the tag is not kept
+        Assertions.assertEquals(0, spool.getPendingTags());
+
+        // and comes back with the next event
+        spool.emit(0, "tag", TIME, new byte[100], 0, 100, ()->{});
+        Assertions.assertEquals(1, spool.getPendingTags());
+        ingester.ingest("tag", ByteBuffer.allocate(Spool.ENTRY_OVERHEAD + 100));
+        Assertions.assertEquals(0, spool.getPendingTags());
+
+        spool.close();
+        Assertions.assertEquals(0, files(dir));
+        Assertions.assertEquals(0, spool.getEvicted());
+
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+
+        File dir = Files.createTempDirectory("spool").toFile();
+        Spool spool = new Spool(dir, 1024, Long.MAX_VALUE, 1);
+
+        for (int i = 0; i < 100; i++) {
+            byte [] data = ("record " + i).getBytes(StandardCharsets.UTF_8);
+            spool.emit(0, "tag" + (i % 3), new EventTime(i, i * 1000L), data, 0, data.length, ()->{});
+        }
+        int segments = spool.getSegmentCount();
+        Assertions.assertTrue(segments > 1);
+
+        // the process is killed, nothing is closed
+
+        Spool again = new Spool(dir, 1024, Long.MAX_VALUE, 1);
+        Assertions.assertEquals(segments, again.getSegmentCount());
+
+        List<String> replayed = new ArrayList<>();
+        Assertions.assertEquals(100, again.recover((tag, time, data, off, len)->{
+            int i = replayed.size();
+            Assertions.assertEquals("tag" + (i % 3), tag);
+            Assertions.assertEquals(i, time.getSeconds());
+            Assertions.assertEquals(i * 1000L, time.getNanoseconds());
+            replayed.add(new String(data, off, len, StandardCharsets.UTF_8));
+        }));
+        Assertions.assertEquals("record 0", replayed.get(0));
+        Assertions.assertEquals("record 99", replayed.get(99));
+        Assertions.assertEquals(0, again.getCorrupted());
+        Assertions.assertEquals(0, again.getSegmentCount());
+        Assertions.assertEquals(0, files(dir));
+
+    }
+
+    @Test
+    public void testCorrupted() throws Exception {
+
+        File dir = Files.createTempDirectory("spool").toFile();
+        Spool spool = new Spool(dir, 4096, Long.MAX_VALUE, 1);
+
+        byte [] data = new byte[10];
+        for (int i = 0; i < 3; i++) {
+            data[0] = (byte) i;
+            spool.emit(0, "tag", TIME, data, 0, data.length, ()->{});
+        }
+
+        // damage the second record
+        File [] segments = dir.listFiles();
+        Assertions.assertNotNull(segments);
+        Assertions.assertEquals(1, segments.length);
+        int second = Spool.HEADER_SIZE + (8 + 2 + 3 + 12 + 10) + 8 + 2 + 3 + 12;
+        try (RandomAccessFile raf = new RandomAccessFile(segments[0], "rw")) {
+            raf.seek(second);
+            raf.write(42);
+        }
+
+        List<Byte> replayed = new ArrayList<>();
+        Assertions.assertEquals(1, new Spool(dir, 4096, Long.MAX_VALUE, 1).recover((tag, time, d, off, len)->replayed.add(d[off])));
+        Assertions.assertEquals((byte) 0, replayed.get(0));
+
+        Spool again = new Spool(dir, 4096, Long.MAX_VALUE, 1);
+        Assertions.assertEquals(0, again.getSegmentCount());
+
+    }
+
+    @Test
+    public void testCorruptedCount() throws Exception {
+
+        File dir = Files.createTempDirectory("spool").toFile();
+        Assertions.assertTrue(new File(dir, "spool-0000000000000001.seg").createNewFile());
+
+        Spool spool = new Spool(dir, 4096, Long.MAX_VALUE, 1);
+        Assertions.assertEquals(0, spool.recover((tag, time, d, off, len)->Assertions.fail()));
+        Assertions.assertEquals(1, spool.getCorrupted());
+
+        // new segments don't reuse the numbers of the old ones
+        spool.emit(0, "tag", TIME, new byte[1], 0, 1, ()->{});
+        Assertions.assertTrue(new File(dir, "spool-0000000000000002.seg").exists());
+
+    }
+
+    @Test
+    public void testEvict() throws Exception {
+
+        File dir = Files.createTempDirectory("spool").toFile();
+        Spool spool = new Spool(dir, 4096, 3 * 4096, 1);
+
+        // nothing is ever sent
+        for (int i = 0; i < 1000; i++) {
+            spool.emit(0, "tag", TIME, new byte[100], 0, 100, ()->{});
+        }
+
+        Assertions.assertEquals(3, spool.getSegmentCount());
+        Assertions.assertEquals(3, files(dir));
+        Assertions.assertTrue(spool.getEvicted() > 0);
+        Assertions.assertTrue(spool.getEvicted() < 1000);
+
+        // records that don't fit into a segment are only emitted
+        boolean [] emitted = {false};
+        spool.emit(0, "tag", TIME, new byte[5000], 0, 5000, ()->emitted[0] = true);
+        Assertions.assertTrue(emitted[0]);
+        Assertions.assertEquals(3, spool.getSegmentCount());
+
+    }
+
+    @Test
+    public void testStripes() throws Exception {
+
+        File dir = Files.createTempDirectory("spool").toFile();
+        // the limit is raised, so each stripe keeps its own active segment
+        Spool spool = new Spool(dir, 4096, 4096, 2);
+
+        spool.emit(1, "tag", TIME, new byte[100], 0, 100, ()->{});
+        for (int i = 0; i < 1000; i++) {
+            spool.emit(0, "tag", TIME, new byte[100], 0, 100, ()->{});
+        }
+
+        Assertions.assertEquals(3, spool.getSegmentCount());
+        Assertions.assertEquals(3, files(dir));
+        // the segment of stripe 1 is still being written to, it's never evicted
+        Assertions.assertTrue(new File(dir, "spool-0000000000000000.seg").exists());
+
+        spool.emit(1, "tag", TIME, new byte[100], 0, 100, ()->{});
+        Assertions.assertEquals(3, spool.getSegmentCount());
+
+    }
+
+    private static int files(File dir) {
+        File [] files = dir.listFiles();
+        return files == null ? 0 : files.length;
+    }
+
+}
@@ -0,0 +1,29 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class TagCacheTest {
+
+    @Test
+    public void testPrefix() {
+
+        TagCache tc = new TagCache("app.", 2);
+
+        String t = tc.resolve("com.example");
+        Assertions.assertEquals("app.com.example", t);
+        Assertions.assertSame(t, tc.resolve("com.example"));
+        Assertions.assertEquals(1, tc.getHits());
+
+        Assertions.assertEquals("app.", tc.resolve(null));
+
+        // more names than the cache holds still resolve
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals("app.l" + i, tc.resolve("l" + i));
+        }
+
+        Assertions.assertEquals("x", new TagCache(null, 2).resolve("x"));
+
+    }
+
+}
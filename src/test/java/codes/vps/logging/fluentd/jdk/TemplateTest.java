@@ -0,0 +1,37 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class TemplateTest {
+
+    @Test
+    public void testComposite() {
+
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat(
+                "all\"a$b ${sequence}/${millis} [${params}] ${class}${trace}$\";seq\"${sequence}\"s;n\"${millis}0\"n;empty\"\"");
+
+        LogRecord lr = new LogRecord(Level.INFO, "msg");
+        lr.setMillis(42);
+        lr.setSequenceNumber(7);
+        lr.setParameters(new Object[]{"x", 1, null});
+
+        Map<String, Object> result = new HashMap<>();
+        for (FieldExtractor fe : extractors) {
+            result.put(fe.getFieldName(), fe.extract(lr));
+        }
+
+        Assertions.assertEquals("a$b 7/42 [x,1,null] null$", result.get("all"));
+        Assertions.assertEquals("7", result.get("seq"));
+        Assertions.assertEquals(420L, result.get("n"));
+        Assertions.assertEquals("", result.get("empty"));
+
+    }
+
+}
@@ -0,0 +1,114 @@
+package codes.vps.logging.fluentd.jdk;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class TimestampFormatTest {
+
+    private final static String [] PATTERNS = {
+            "yyyy-MM-dd'T'HH:mm:ss.SSSZ",
+            "yyyy-MM-dd HH:mm:ss,SSS",
+            "yy/M/d H:m:s.S",
+            "yyyyy.MM.dd hh:mm aaa XXX",
+            "EEE, d MMM yyyy HH:mm:ss Z",
+            "'o''clock' k K h D F u X XX",
+            "SSSS ss SS",
+            "MMMM yyyy GGGG z zzzz",
+            "YYYY-'W'ww-u",
+            "",
+    };
+
+    @Test
+    public void testSameAsSimpleDateFormat() {
+
+        Random r = new Random(1);
+
+        for (String pattern : PATTERNS) {
+
+            for (String zone : new String[]{null, "UTC", "Asia/Kolkata", "America/Los_Angeles"}) {
+
+                TimestampFormat tf = new TimestampFormat(pattern, zone == null ? null : ZoneId.of(zone));
+                SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+                if (zone != null) {
+                    sdf.setTimeZone(TimeZone.getTimeZone(zone));
+                }
+
+                long millis = 1470140394891L;
+                for (int i = 0; i < 2000; i++) {
+                    // mostly going forward, sometimes jumping back and forth
+                    millis += r.nextInt(10) == 0 ? r.nextInt(1000000000) - 500000000 : r.nextInt(700);
+                    Assertions.assertEquals(sdf.format(new Date(millis)), tf.format(millis), pattern + " @ " + zone);
+                }
+
+            }
+
+        }
+
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+
+        String pattern = "yyyy-MM-dd HH:mm:ss.SSS";
+        TimestampFormat tf = new TimestampFormat(pattern, null);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 4; t++) {
+            long seed = t;
+            Thread th = new Thread(()->{
+                SimpleDateFormat sdf = new SimpleDateFormat(pattern);
+                Random r = new Random(seed);
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        long millis = 1470140394891L + r.nextInt(5000);
+                        Assertions.assertEquals(sdf.format(new Date(millis)), tf.format(millis));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            threads.add(th);
+            th.start();
+        }
+
+        for (Thread th : threads) {
+            th.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+    }
+
+    @Test
+    public void testZoneSuffix() {
+
+        long testMillis = 1470140394891L;
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat(
+                "time\"${millis@UTC,yyyy-MM-dd'T'HH:mm:ss.SSSXXX}\";local\"[${millis@+05:30,HH:mm}]\"");
+
+        LogRecord lr = new LogRecord(Level.FINE, "a");
+        lr.setMillis(testMillis);
+
+        Assertions.assertEquals("2016-08-02T12:19:54.891Z", extractors.get(0).extract(lr));
+        Assertions.assertEquals("[17:49]", extractors.get(1).extract(lr));
+
+        Assertions.assertThrows(IllegalArgumentException.class, ()->FluentdHandler.parseFormat("time\"${millis@Nowhere/Atall,HH}\""));
+        Assertions.assertThrows(IllegalArgumentException.class, ()->FluentdHandler.parseFormat("time\"${millis,HHbb}\""));
+
+    }
+
+}
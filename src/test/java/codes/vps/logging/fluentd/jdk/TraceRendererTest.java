@@ -0,0 +1,221 @@
+package codes.vps.logging.fluentd.jdk;
+
+import codes.vps.logging.fluentd.jdk.util.U;
+import codes.vps.logging.fluentd.jdk.util.Utf8Builder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.msgpack.core.MessageBufferPacker;
+import org.msgpack.core.MessagePack;
+import org.msgpack.core.MessageUnpacker;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class TraceRendererTest {
+
+    private static Throwable fail(String msg) {
+        try {
+            throw new IllegalStateException(msg, new RuntimeException("cause"));
+        } catch (Throwable e) {
+            return e;
+        }
+    }
+
+    @Test
+    public void testCached() {
+
+        TraceRenderer tr = new TraceRenderer(0, 0, 2);
+
+        String cached = null;
+        Throwable boom = null;
+        for (int i = 0; i < 10; i++) {
+            // a new exception each time, from the same place
+            Throwable t = boom = fail("boom");
+            String s = tr.render(t);
+            Assertions.assertEquals(U.throwableToString(t), s);
+            // cached when it's rendered the second time
+            if (i == 1) {
+                cached = s;
+            } else if (i > 1) {
+                Assertions.assertSame(cached, s);
+            }
+        }
+
+        Assertions.assertEquals(2, tr.getMisses());
+        Assertions.assertEquals(8, tr.getHits());
+
+        // different message is a different trace
+        Throwable other = fail("bang");
+        Assertions.assertEquals(U.throwableToString(other), tr.render(other));
+        Assertions.assertEquals(3, tr.getMisses());
+
+        // traces rendered once are not cached, so they don't push "boom" out
+        tr.render(fail("third"));
+        Assertions.assertEquals(4, tr.getMisses());
+        Assertions.assertSame(cached, tr.render(boom));
+        Assertions.assertEquals(4, tr.getMisses());
+
+        // thrown from another place, so a different trace
+        tr.render(fail("boom"));
+        Assertions.assertEquals(5, tr.getMisses());
+
+        Assertions.assertEquals("", tr.render(null));
+
+    }
+
+    @Test
+    public void testCyclicCause() {
+
+        TraceRenderer tr = new TraceRenderer(0, 0, 2);
+
+        Throwable a = new IllegalStateException("a");
+        Throwable b = new RuntimeException("b", a);
+        a.initCause(b);
+
+        String trace = tr.render(a);
+        Assertions.assertTrue(trace.endsWith("Caused by : [CIRCULAR REFERENCE: java.lang.IllegalStateException a]"), trace);
+        Assertions.assertEquals(trace, tr.render(a));
+        Assertions.assertEquals(trace, tr.render(a));
+        Assertions.assertEquals(1, tr.getHits());
+        Assertions.assertNotEquals(trace, tr.render(b));
+        Assertions.assertFalse(TraceRenderer.sameTrace(a, b));
+
+    }
+
+    @Test
+    public void testLimits() {
+
+        Throwable t = fail("boom");
+
+        String s = new TraceRenderer(1, 0, 0).render(t);
+        String [] lines = s.split("\n");
+        Assertions.assertEquals(t.getClass().getName() + " boom", lines[0]);
+        Assertions.assertTrue(lines[1].startsWith("  at "));
+        Assertions.assertEquals(" <... skipped " + (t.getStackTrace().length - 1) + " trace lines...>", lines[2]);
+        Assertions.assertEquals("Caused by :java.lang.RuntimeException cause", lines[3]);
+
+        String full = U.throwableToString(t);
+        Assertions.assertEquals(full, new TraceRenderer(0, full.length(), 0).render(t));
+        String cut = new TraceRenderer(0, 100, 0).render(t);
+        Assertions.assertEquals(100, cut.length());
+        Assertions.assertTrue(cut.endsWith("\n <...truncated...>"));
+        Assertions.assertTrue(full.startsWith(cut.substring(0, 80)));
+
+        // limit is in UTF-8 bytes, multi-byte characters are not split
+        String wide = TraceRenderer.truncate("éééééééééééé😀", 24);
+        Assertions.assertTrue(wide.getBytes(StandardCharsets.UTF_8).length <= 24);
+        Assertions.assertEquals("éé\n <...truncated...>", wide);
+        Assertions.assertEquals("éé", TraceRenderer.truncate("éé😀", 7));
+
+    }
+
+    @Test
+    public void testFormat() {
+
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat("a\"${trace}\";b\"${trace,1}\";c\"${trace,0,50,0}\"");
+
+        LogRecord lr = new LogRecord(Level.SEVERE, "a");
+        lr.setThrown(fail("boom"));
+
+        Assertions.assertEquals(U.throwableToString(lr.getThrown()), extractors.get(0).extract(lr));
+        Assertions.assertEquals(new TraceRenderer(1, 0, 0).render(lr.getThrown()), extractors.get(1).extract(lr));
+        Assertions.assertEquals(50, ((String) extractors.get(2).extract(lr)).length());
+
+        Assertions.assertThrows(IllegalArgumentException.class, ()->FluentdHandler.parseFormat("a\"${trace,x}\""));
+        Assertions.assertThrows(IllegalArgumentException.class, ()->FluentdHandler.parseFormat("a\"${trace,-1}\""));
+        Assertions.assertThrows(IllegalArgumentException.class, ()->FluentdHandler.parseFormat("a\"${trace,1,2,3,4}\""));
+
+    }
+
+    @Test
+    public void testStream() throws Exception {
+
+        Throwable t = fail("unicode é 😀 boom");
+
+        for (TraceRenderer tr : new TraceRenderer[]{new TraceRenderer(0, 0, 0), new TraceRenderer(0, 0, 4),
+                new TraceRenderer(2, 0, 0), new TraceRenderer(0, 100, 0), new TraceRenderer(0, 101, 4),
+                new TraceRenderer(0, 10, 0)}) {
+
+            String expected = tr.render(t);
+            // three times, so the cached trace is written as well
+            for (int i = 0; i < 3; i++) {
+                MessageBufferPacker mp = MessagePack.newDefaultBufferPacker();
+                tr.writeTo(mp, t);
+                tr.writeTo(mp, null);
+                MessageUnpacker mu = MessagePack.newDefaultUnpacker(mp.toByteArray());
+                Assertions.assertEquals(expected, mu.unpackString());
+                Assertions.assertEquals("", mu.unpackString());
+                // and the text of a trace that was cached encoded
+                Assertions.assertEquals(expected, tr.render(t));
+            }
+
+        }
+
+        Utf8Builder ub = new Utf8Builder(1);
+        String s = "a é 😀 \ud800 \udc00 z";
+        ub.append(s).append(' ').append(Long.MIN_VALUE).append(' ').append(-42).append('ж');
+        // unpaired surrogates are replaced the same way String.getBytes() does
+        Assertions.assertArrayEquals((s + " " + Long.MIN_VALUE + " -42ж").getBytes(StandardCharsets.UTF_8),
+                Arrays.copyOf(ub.array(), ub.size()));
+        ub.truncate(3);
+        Assertions.assertEquals("a ", new String(ub.array(), 0, ub.size(), StandardCharsets.UTF_8));
+
+    }
+
+    @Test
+    public void testFrames() throws Exception {
+
+        Throwable t = fail("boom");
+        List<FieldExtractor> extractors = FluentdHandler.parseFormat("f\"${frames}\";l\"${frames,1}\";s\"${frames}\"s");
+
+        LogRecord lr = new LogRecord(Level.SEVERE, "a");
+        lr.setThrown(t);
+
+        List<?> frames = (List<?>) extractors.get(0).extract(lr);
+        Assertions.assertEquals(2, frames.size());
+        Map<?, ?> top = (Map<?, ?>) frames.get(0);
+        Assertions.assertEquals(IllegalStateException.class.getName(), top.get("class"));
+        Assertions.assertEquals("boom", top.get("message"));
+        Assertions.assertEquals(t.getStackTrace().length, ((List<?>) top.get("frames")).size());
+        Assertions.assertNull(top.get("skipped"));
+        Map<?, ?> frame = (Map<?, ?>) ((List<?>) top.get("frames")).get(0);
+        Assertions.assertEquals(getClass().getName(), frame.get("class"));
+        Assertions.assertEquals("fail", frame.get("method"));
+        Assertions.assertEquals("TraceRendererTest.java", frame.get("file"));
+        Assertions.assertEquals(t.getStackTrace()[0].getLineNumber(), frame.get("line"));
+
+        // the cause was created on the same line, all of its frames are in common
+        Map<?, ?> cause = (Map<?, ?>) frames.get(1);
+        Assertions.assertEquals("cause", cause.get("message"));
+        Assertions.assertEquals(0, ((List<?>) cause.get("frames")).size());
+        Assertions.assertEquals(t.getCause().getStackTrace().length, cause.get("skipped"));
+
+        Map<?, ?> limited = (Map<?, ?>) ((List<?>) extractors.get(1).extract(lr)).get(0);
+        Assertions.assertEquals(1, ((List<?>) limited.get("frames")).size());
+        Assertions.assertEquals(t.getStackTrace().length - 1, limited.get("skipped"));
+
+        Assertions.assertEquals(U.throwableToString(t), extractors.get(2).extract(lr));
+
+        // encoded the same
+        RecordEncoder.Encoded encoded = new RecordEncoder(extractors).encode(lr);
+        try {
+            Map<?, ?> decoded = new com.fasterxml.jackson.databind.ObjectMapper(new org.msgpack.jackson.dataformat.MessagePackFactory())
+                    .readValue(Arrays.copyOf(encoded.array(), encoded.length()), Map.class);
+            Assertions.assertEquals(frames, decoded.get("f"));
+            Assertions.assertEquals(extractors.get(1).extract(lr), decoded.get("l"));
+            Assertions.assertEquals(U.throwableToString(t), decoded.get("s"));
+        } finally {
+            encoded.release();
+        }
+
+        lr.setThrown(null);
+        Assertions.assertEquals(0, ((List<?>) extractors.get(0).extract(lr)).size());
+        Assertions.assertThrows(IllegalArgumentException.class, ()->FluentdHandler.parseFormat("a\"${frames,x}\""));
+
+    }
+
+}
@@ -0,0 +1,61 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void testBounded() {
+
+        BoundedCache<Integer, String> cache = new BoundedCache<>(4);
+
+        for (int i = 0; i < 100; i++) {
+            int k = i;
+            Assertions.assertEquals("v" + i, cache.computeIfAbsent(k, x->"v" + x));
+            Assertions.assertTrue(cache.size() <= 4);
+        }
+
+        Assertions.assertEquals(100, cache.getMisses());
+        Assertions.assertEquals(0, cache.getHits());
+
+    }
+
+    @Test
+    public void testBatches() {
+
+        BoundedCache<Integer, String> cache = new BoundedCache<>(100);
+
+        for (int i = 0; i < 100; i++) {
+            cache.put(i, "v" + i);
+        }
+        Assertions.assertEquals(100, cache.size());
+
+        // going over the capacity evicts down to 90% of it
+        cache.put(100, "v100");
+        Assertions.assertEquals(90, cache.size());
+
+    }
+
+    @Test
+    public void testUsedEntriesSurvive() {
+
+        BoundedCache<Integer, String> cache = new BoundedCache<>(4);
+
+        cache.put(0, "hot");
+        for (int i = 1; i < 50; i++) {
+            Assertions.assertEquals("hot", cache.get(0));
+            cache.put(i, "v" + i);
+        }
+
+        Assertions.assertEquals("hot", cache.get(0));
+        Assertions.assertEquals(4, cache.size());
+
+        // existing values are not replaced by put()
+        Assertions.assertEquals("hot", cache.put(0, "cold"));
+        cache.replace(0, "cold");
+        Assertions.assertEquals("cold", cache.get(0));
+
+    }
+
+}
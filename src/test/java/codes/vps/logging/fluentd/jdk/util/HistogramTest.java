@@ -0,0 +1,49 @@
+package codes.vps.logging.fluentd.jdk.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void testBuckets() {
+
+        long prev = -1;
+        for (int i = 0; i < 488; i++) {
+            long ub = Histogram.upperBound(i);
+            Assertions.assertTrue(ub > prev);
+            Assertions.assertEquals(i, Histogram.index(ub));
+            Assertions.assertEquals(i, Histogram.index(prev + 1));
+            prev = ub;
+        }
+        Assertions.assertEquals(Long.MAX_VALUE, prev);
+
+    }
+
+    @Test
+    public void testPercentiles() {
+
+        Histogram h = new Histogram();
+        Assertions.assertEquals(0, h.getPercentile(50));
+
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i * 1000L);
+        }
+
+        Assertions.assertEquals(1000, h.getCount());
+        Assertions.assertEquals(1000000, h.getMax());
+        Assertions.assertEquals(500500, h.getMean(), 0.001);
+
+        long p50 = h.getPercentile(50);
+        Assertions.assertTrue(p50 >= 500000 && p50 <= 500000 * 1.125, String.valueOf(p50));
+        long p99 = h.getPercentile(99);
+        Assertions.assertTrue(p99 >= 990000 && p99 <= 1000000, String.valueOf(p99));
+        Assertions.assertEquals(1000000, h.getPercentile(100));
+
+        h.reset();
+        Assertions.assertEquals(0, h.getCount());
+        Assertions.assertEquals(0, h.getPercentile(99));
+
+    }
+
+}